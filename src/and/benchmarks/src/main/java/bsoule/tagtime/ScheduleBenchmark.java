@@ -0,0 +1,87 @@
+package bsoule.tagtime;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The ping schedule as used by PingService: nextping() is a Stepper step(),
+ * next() its allocating counterpart, prevping() is a seekBefore() from the
+ * origin, which uses the shared checkpoints once they have been recorded.
+ * walkFromOrigin is the full RNG walk prevping() did before checkpoints
+ * existed, kept as a reference point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScheduleBenchmark {
+
+	// A fixed "now" keeps results comparable across runs
+	private static final long NOW = 1500000000L;
+	private static final int GAP = 45;
+
+	private PingSchedule mOrigin;
+	private PingSchedule mCurrent;
+	private PingSchedule.Stepper mStepper;
+	private long mSeed;
+
+	@Setup
+	public void setup() {
+		mOrigin = PingSchedule.origin(GAP);
+		// Records the checkpoints, as the first prevping() of a process does
+		mCurrent = mOrigin.seekBefore(NOW);
+		mSeed = PingSchedule.ran0(mCurrent.getSeed());
+		mStepper = mCurrent.stepper();
+	}
+
+	@Benchmark
+	public long step() {
+		return mStepper.step();
+	}
+
+	@Benchmark
+	public PingSchedule next() {
+		return mCurrent.next();
+	}
+
+	@Benchmark
+	public double exprand() {
+		return PingSchedule.exprand(mSeed, GAP);
+	}
+
+	@Benchmark
+	public PingSchedule seekBefore() {
+		return mOrigin.seekBefore(NOW);
+	}
+
+	@Benchmark
+	public long[] rangeOneDay() {
+		return mCurrent.range(NOW, NOW + 86400);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long walkFromOrigin() {
+		long nxt = PingSchedule.BOT;
+		long seed = PingSchedule.INITSEED;
+		long lst = nxt;
+		while (nxt < NOW) {
+			lst = nxt;
+			seed = PingSchedule.ran0(seed);
+			nxt = PingSchedule.nextTime(nxt, seed, GAP);
+		}
+		return lst;
+	}
+}
@@ -0,0 +1,76 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Tag filtering and completion in EditPing over a large vocabulary of 5000
+ * tags. The scan variant is a linear search over all tags, kept as a
+ * reference point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagIndexBenchmark {
+
+	private List<String> mTags;
+	private TagIndex mIndex;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(42);
+		mTags = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int len = 3 + r.nextInt(8);
+			for (int j = 0; j < len; j++)
+				sb.append((char) ('a' + r.nextInt(26)));
+			mTags.add(sb.toString());
+		}
+		mIndex = new TagIndex(mTags);
+	}
+
+	@Benchmark
+	public TagIndex build() {
+		return new TagIndex(mTags);
+	}
+
+	@Benchmark
+	public List<String> complete() {
+		return mIndex.complete("wo", 20);
+	}
+
+	@Benchmark
+	public List<String> completeScan() {
+		List<String> ret = new ArrayList<String>();
+		for (String t : mTags) {
+			if (t.toLowerCase(Locale.ROOT).startsWith("wo")) ret.add(t);
+			if (ret.size() == 20) break;
+		}
+		return ret;
+	}
+
+	@Benchmark
+	public int addRemove() {
+		mIndex.add("workout");
+		mIndex.remove("workout");
+		return mIndex.size();
+	}
+}
@@ -0,0 +1,57 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Tag string handling in EditPing.saveState(). The regex variants are what
+ * EditPing did before TagStrings, kept as a reference point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagStringsBenchmark {
+
+	private String mTyped = "  work email  meeting\tproject_x  ";
+	private List<String> mTags = Arrays.asList("work", "email", "meeting", "project_x");
+
+	@Benchmark
+	public List<String> split() {
+		return TagStrings.split(mTyped);
+	}
+
+	@Benchmark
+	public List<String> splitRegex() {
+		return new ArrayList<String>(Arrays.asList(mTyped.trim().split("\\s+")));
+	}
+
+	@Benchmark
+	public String join() {
+		return TagStrings.join(mTags);
+	}
+
+	@Benchmark
+	public String joinConcat() {
+		String s = "";
+		for (String t : mTags) {
+			if (s.length() > 0) s += " ";
+			s += t;
+		}
+		return s;
+	}
+}
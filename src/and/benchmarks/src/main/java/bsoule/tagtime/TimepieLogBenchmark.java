@@ -0,0 +1,43 @@
+package bsoule.tagtime;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Formatting of one timepie.log line, as done per ping by the log export. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimepieLogBenchmark {
+
+	private TimepieLog mLog;
+	private StringBuilder mOut;
+	private long mPing = 1500000000L;
+
+	@Setup
+	public void setup() {
+		mLog = new TimepieLog(Locale.US);
+		mOut = new StringBuilder(128);
+	}
+
+	@Benchmark
+	public int appendLine() throws IOException {
+		mOut.setLength(0);
+		mLog.appendLine(mOut, mPing++, "work email ");
+		return mOut.length();
+	}
+}
@@ -0,0 +1,800 @@
+/*
+ * Copyright (C) 2012 Uluc Saranli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.beeminder.beedroid.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * This class submits and deletes datapoints for any number of goals over a
+ * single binding to the Beeminder app's datapoint submission service.
+ *
+ * Unlike a Session, a Client is not tied to a user and goal. Each request
+ * names its user, goal slug and access token, and is matched to its response
+ * by its submission id. Requests can be sent back to back without waiting for
+ * earlier responses; each returns a Request object that can be waited on as a
+ * Future or given a listener. Goals must have been authorized beforehand
+ * through Session.openForNewGoal(), which records the tokens found by
+ * getToken().
+ * 
+ * Many requests can also be packed into a few messages with a Batch. Whether
+ * the Beeminder app handles batch messages is asked once per version of the
+ * app with a handshake and remembered in the preferences. Versions that do
+ * not, or do not answer, get batches one message per point.
+ */
+public class Client {
+	private final static String TAG = "Client";
+	private final static boolean LOCAL_LOGV = false;
+
+	/** Maximum number of points packed in one batch message */
+	private static final int MAX_BATCH_POINTS = 100;
+	/**
+	 * Time to wait for the answer to a batch handshake before sending points
+	 * one by one. Handshakes carry no points, so giving up on one can never
+	 * get a point submitted twice.
+	 */
+	private static final long HANDSHAKE_TIMEOUT = 15000;
+
+	/** Whether the Beeminder app handles batch messages, see mBatchSupport */
+	private static final int BATCH_UNKNOWN = 0;
+	private static final int BATCH_SUPPORTED = 1;
+	private static final int BATCH_UNSUPPORTED = 2;
+
+	/** Preference keys for the batch support of a version of the Beeminder app */
+	private static final String KEY_BATCH_SUPPORT = "batch_support";
+	private static final String KEY_BATCH_APPVERSION = "batch_support_appversion";
+
+	/**
+	 * This callback interface allows users of the Client class to be notified
+	 * when the response to a request has been received.
+	 */
+	public interface Listener {
+		public void onResult(Request request);
+	}
+
+	/**
+	 * This exception captures various fault conditions that can occur when
+	 * sending requests through the Client class
+	 */
+	public static class ClientException extends Exception {
+		private static final long serialVersionUID = 43L;
+
+		public ClientException(String msg) {
+			super(msg);
+		}
+	}
+
+	/**
+	 * This exception is thrown by Request.get() for requests that failed,
+	 * carrying the error type and message from the response.
+	 */
+	public static class RequestException extends Exception {
+		private static final long serialVersionUID = 44L;
+
+		private final Session.ErrorType mType;
+
+		public RequestException(Session.ErrorType type, String msg) {
+			super(msg);
+			mType = type;
+		}
+
+		public Session.ErrorType getType() {
+			return mType;
+		}
+	}
+
+	/**
+	 * A datapoint creation or deletion request. Its result is the request id
+	 * of the datapoint on Beeminder's side.
+	 */
+	public final class Request implements Future<String> {
+		private final int mSubmissionId;
+		private final String mUsername;
+		private final String mGoalSlug;
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		// Message type and content, kept for requests in a batch so they can
+		// be resent on their own
+		private int mWhat;
+		private Bundle mExtras;
+		// Guarded by mPending
+		private BatchMessage mBatch;
+		private Listener mListener;
+		private boolean mCancelled = false;
+		// Written before mDone is counted down
+		private volatile String mRequestId;
+		private volatile Session.ErrorType mErrorType = Session.ErrorType.ERROR_NONE;
+		private volatile String mErrorMessage;
+
+		private Request(int submissionId, String username, String slug) {
+			mSubmissionId = submissionId;
+			mUsername = username;
+			mGoalSlug = slug;
+		}
+
+		/** Returns the id the request was sent with, see KEY_API_POINTID. */
+		public int getSubmissionId() {
+			return mSubmissionId;
+		}
+
+		public String getUsername() {
+			return mUsername;
+		}
+
+		public String getGoalSlug() {
+			return mGoalSlug;
+		}
+
+		/** Returns the request id of the datapoint, or null if not available. */
+		public String getRequestId() {
+			return mRequestId;
+		}
+
+		/** Returns the error type of the response, ERROR_NONE on success. */
+		public Session.ErrorType getErrorType() {
+			return mErrorType;
+		}
+
+		public String getErrorMessage() {
+			return mErrorMessage;
+		}
+
+		/**
+		 * Sets the listener called on the reply thread once the response has
+		 * been received, or right away if it already was.
+		 */
+		public void setListener(Listener listener) {
+			boolean done;
+			synchronized (mPending) {
+				mListener = listener;
+				done = isDone();
+			}
+			if (done && listener != null) listener.onResult(this);
+		}
+
+		/**
+		 * Stops waiting for the response, which will be ignored. The request
+		 * itself may still be carried out by the Beeminder app.
+		 */
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (mPending) {
+				if (mPending.remove(mSubmissionId) == null) return false;
+				mCancelled = true;
+			}
+			finish(null, Session.ErrorType.ERROR_OTHER, "cancelled");
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		public boolean isDone() {
+			return mDone.getCount() == 0;
+		}
+
+		/**
+		 * Waits for the response, returning false if it did not arrive within
+		 * the given time. Must not be called from the reply thread.
+		 */
+		public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+			return mDone.await(timeout, unit);
+		}
+
+		public String get() throws InterruptedException, ExecutionException {
+			mDone.await();
+			return result();
+		}
+
+		public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if (!mDone.await(timeout, unit)) throw new TimeoutException();
+			return result();
+		}
+
+		private String result() throws ExecutionException {
+			if (mErrorType != Session.ErrorType.ERROR_NONE)
+				throw new ExecutionException(new RequestException(mErrorType, mErrorMessage));
+			return mRequestId;
+		}
+
+		// Records the response and notifies the listener. Called once.
+		private void finish(String requestId, Session.ErrorType type, String message) {
+			mRequestId = requestId;
+			mErrorType = type;
+			mErrorMessage = message;
+			Listener listener;
+			synchronized (mPending) {
+				mDone.countDown();
+				listener = mListener;
+			}
+			if (listener != null) listener.onResult(this);
+		}
+	}
+
+	// Shared preferences holding the tokens recorded by Session
+	private SharedPreferences mSP;
+	private Context mContext;
+	private String mPackageName;
+
+	// Objects related to the Messenger interface to the Beeminder app
+	private volatile Messenger mService = null;
+	private volatile boolean mBound = false;
+	private boolean mBinding = false;
+	private final Messenger mReplyTo;
+	private final Object mBindLock = new Object();
+
+	// Requests waiting for a response, by submission id. Also guards the
+	// listeners of requests and mBatches.
+	private final Map<Integer, Request> mPending = new HashMap<Integer, Request>();
+	// Batch messages not known to be handled yet, by their own submission id
+	private final Map<Integer, BatchMessage> mBatches = new HashMap<Integer, BatchMessage>();
+	// Batch support of the installed Beeminder app version, and the
+	// handshake asking for it: its id (0 once answered) and a latch counted
+	// down on the answer. Guarded by mPending.
+	private volatile int mBatchSupport;
+	private final int mAppVersion;
+	private int mHandshakeId = 0;
+	private CountDownLatch mHandshake = null;
+	private final Handler mReplyHandler;
+
+	/**
+	 * Creates a client whose responses are handled, and listeners called, on
+	 * the main thread.
+	 */
+	public Client(Context ctx) {
+		this(ctx, Looper.getMainLooper());
+	}
+
+	/**
+	 * Creates a client whose responses are handled, and listeners called, on
+	 * the thread of the given looper. Threads waiting for responses must not
+	 * be that thread.
+	 */
+	public Client(Context ctx, Looper replyLooper) {
+		mPackageName = ctx.getPackageName();
+		mContext = ctx;
+		mSP = ctx.getSharedPreferences(Session.BEEDROID_SESSION_PREFS, Activity.MODE_PRIVATE);
+		int version;
+		try {
+			version = ctx.getPackageManager().getPackageInfo(Session.BEEDROID_PACKAGE, 0).versionCode;
+		} catch (PackageManager.NameNotFoundException e) {
+			version = -1;
+		}
+		mAppVersion = version;
+		// Updates of the Beeminder app may change its batch support
+		mBatchSupport = (mSP.getInt(KEY_BATCH_APPVERSION, -1) == mAppVersion) ? mSP.getInt(KEY_BATCH_SUPPORT,
+				BATCH_UNKNOWN) : BATCH_UNKNOWN;
+		mReplyHandler = new IncomingHandler(replyLooper);
+		mReplyTo = new Messenger(mReplyHandler);
+	}
+
+	/**
+	 * Returns the access token recorded for the given user and goal slug when
+	 * it was authorized, or null if there is none.
+	 */
+	public String getToken(String username, String slug) {
+		return mSP.getString(username + "/" + slug + "_token", null);
+	}
+
+	/**
+	 * Starts binding to the Beeminder datapoint submission service, unless
+	 * bound or binding already.
+	 */
+	public void bind() throws ClientException {
+		synchronized (mBindLock) {
+			if (mBound || mBinding) return;
+			Intent intent = new Intent().setAction(Session.ACTION_API_EDITPOINT).setPackage(
+					Session.BEEDROID_PACKAGE);
+			if (!mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE))
+				throw new ClientException("Could not bind to Beeminder service");
+			mBinding = true;
+		}
+	}
+
+	/**
+	 * Waits until the client is bound, returning false if that did not happen
+	 * within the given time. Must not be called from the main thread, which
+	 * delivers the connection.
+	 */
+	public boolean awaitBound(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (mBindLock) {
+			while (!mBound) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) return false;
+				mBindLock.wait(left / 1000000, (int) (left % 1000000));
+			}
+		}
+		return true;
+	}
+
+	public boolean isBound() {
+		return mBound;
+	}
+
+	/**
+	 * Unbinds from the Beeminder service. Requests still waiting for their
+	 * response fail with ERROR_OPEN.
+	 */
+	public void close() {
+		synchronized (mBindLock) {
+			if (mBound || mBinding) mContext.unbindService(mConnection);
+			mBound = false;
+			mBinding = false;
+			mService = null;
+		}
+		failPending("Client closed");
+	}
+
+	/**
+	 * Sends a request to create a datapoint with the supplied content for the
+	 * given goal, without waiting for the response.
+	 */
+	public Request createPoint(String username, String slug, String token, double value, long timestamp,
+			String comment) throws ClientException {
+		Request request = prepare(Session.MSG_API_CREATEPOINT, username, slug, token,
+				createExtras(value, timestamp, comment));
+		send(request);
+		return request;
+	}
+
+	/**
+	 * Sends a request to delete the datapoint with the supplied request id
+	 * from the given goal, without waiting for the response.
+	 */
+	public Request deletePoint(String username, String slug, String token, String requestId)
+			throws ClientException {
+		Request request = prepare(Session.MSG_API_DELETEPOINT, username, slug, token, deleteExtras(requestId));
+		send(request);
+		return request;
+	}
+
+	/** Starts a new batch of requests, see Batch. */
+	public Batch newBatch() {
+		return new Batch();
+	}
+
+	/**
+	 * A set of datapoint requests sent together by send(). Requests are
+	 * created as they are added, and complete like any other request, but
+	 * nothing is sent until send() is called, which must be done.
+	 */
+	public final class Batch {
+		private final List<Request> mRequests = new ArrayList<Request>();
+
+		private Batch() {}
+
+		/** Adds a request to create a datapoint, see Client.createPoint(). */
+		public Request createPoint(String username, String slug, String token, double value, long timestamp,
+				String comment) throws ClientException {
+			Request request = prepare(Session.MSG_API_CREATEPOINT, username, slug, token,
+					createExtras(value, timestamp, comment));
+			mRequests.add(request);
+			return request;
+		}
+
+		/** Adds a request to delete a datapoint, see Client.deletePoint(). */
+		public Request deletePoint(String username, String slug, String token, String requestId)
+				throws ClientException {
+			Request request = prepare(Session.MSG_API_DELETEPOINT, username, slug, token, deleteExtras(requestId));
+			mRequests.add(request);
+			return request;
+		}
+
+		public int size() {
+			return mRequests.size();
+		}
+
+		/**
+		 * Sends all requests of the batch, packed into messages of at most
+		 * MAX_BATCH_POINTS points, or one by one if the Beeminder app does not
+		 * support batches. The first batch sent to a new version of the app
+		 * waits for the handshake, so this must not be called from the reply
+		 * thread. If sending fails, the requests not sent fail with
+		 * ERROR_OPEN.
+		 */
+		public void send() throws ClientException {
+			List<Request> requests = new ArrayList<Request>(mRequests);
+			mRequests.clear();
+			int sent = 0;
+			try {
+				if (requests.size() > 1) awaitBatchSupport();
+				if (mBatchSupport != BATCH_SUPPORTED || requests.size() == 1) {
+					for (Request request : requests) {
+						Client.this.send(request);
+						sent++;
+					}
+				} else {
+					while (sent < requests.size()) {
+						int end = Math.min(sent + MAX_BATCH_POINTS, requests.size());
+						sendBatch(requests.subList(sent, end));
+						sent = end;
+					}
+				}
+			} catch (ClientException e) {
+				for (Request request : requests.subList(sent, requests.size())) {
+					synchronized (mPending) {
+						mPending.remove(request.getSubmissionId());
+					}
+					request.finish(null, Session.ErrorType.ERROR_OPEN, e.getMessage());
+				}
+				throw e;
+			}
+		}
+	}
+
+	/** A batch message none of whose points got a response yet */
+	private final class BatchMessage {
+		final int mId;
+		final List<Request> mRequests;
+
+		BatchMessage(int id, List<Request> requests) {
+			mId = id;
+			mRequests = requests;
+		}
+	}
+
+	private static Bundle createExtras(double value, long timestamp, String comment) {
+		Bundle extras = new Bundle();
+		extras.putDouble(Session.KEY_API_VALUE, value);
+		if (timestamp != 0) extras.putLong(Session.KEY_API_TIMESTAMP, timestamp);
+		if (comment != null) extras.putString(Session.KEY_API_COMMENT, comment);
+		return extras;
+	}
+
+	private static Bundle deleteExtras(String requestId) {
+		Bundle extras = new Bundle();
+		extras.putString(Session.KEY_API_REQUESTID, requestId);
+		return extras;
+	}
+
+	// Returns an unused submission id. Must hold mPending.
+	private int newId() {
+		int id;
+		do {
+			id = newSubmissionId();
+		} while (mPending.containsKey(id) || mBatches.containsKey(id) || id == mHandshakeId);
+		return id;
+	}
+
+	// Creates a request waiting for its response, with the message to send
+	private Request prepare(int what, String username, String slug, String token, Bundle extras)
+			throws ClientException {
+		if (token == null) throw new ClientException("No token for " + username + "/" + slug);
+		Request request;
+		synchronized (mPending) {
+			request = new Request(newId(), username, slug);
+			mPending.put(request.getSubmissionId(), request);
+		}
+		extras.putString(Session.KEY_API_PACKAGENAME, mPackageName);
+		extras.putString(Session.KEY_API_PROTOCOLVERSION, Session.BEEDROID_PROTOCOL_VERSION);
+		extras.putString(Session.KEY_API_TOKEN, token);
+		extras.putString(Session.KEY_API_USERNAME, username);
+		extras.putString(Session.KEY_API_GOALSLUG, slug);
+		extras.putInt(Session.KEY_API_POINTID, request.getSubmissionId());
+		request.mWhat = what;
+		request.mExtras = extras;
+		return request;
+	}
+
+	private void sendMessage(int what, Bundle extras) throws ClientException {
+		Messenger service = mService;
+		if (!mBound || service == null) throw new ClientException("Beeminder service not bound");
+		Message msg = Message.obtain(null, what, 0, 0);
+		msg.setData(extras);
+		msg.replyTo = mReplyTo;
+		try {
+			service.send(msg);
+		} catch (RemoteException e) {
+			throw new ClientException("Could not send message to Beeminder service");
+		}
+	}
+
+	// Sends a prepared request on its own
+	private void send(Request request) throws ClientException {
+		try {
+			sendMessage(request.mWhat, request.mExtras);
+		} catch (ClientException e) {
+			synchronized (mPending) {
+				mPending.remove(request.getSubmissionId());
+			}
+			throw e;
+		}
+		if (LOCAL_LOGV) Log.v(TAG, "send: " + request.mWhat + " for " + request.getUsername() + "/"
+				+ request.getGoalSlug() + ", id=" + request.getSubmissionId());
+	}
+
+	/*
+	 * Asks the Beeminder app whether it handles batch messages, unless that
+	 * is known, and waits for the answer, see IncomingHandler. The handshake
+	 * is a batch message without points, which an app handling batches
+	 * answers with MSG_API_RESPONSE_OK and its protocol version. Without an
+	 * answer in time, batches are taken as unsupported by this client only:
+	 * a busy app is no sign of missing support, so the next client asks
+	 * again. An answer arriving later still counts.
+	 */
+	private void awaitBatchSupport() throws ClientException {
+		CountDownLatch answer;
+		int id = 0;
+		synchronized (mPending) {
+			if (mBatchSupport != BATCH_UNKNOWN) return;
+			if (mHandshake == null) {
+				id = newId();
+				mHandshakeId = id;
+				mHandshake = new CountDownLatch(1);
+			}
+			answer = mHandshake;
+		}
+		if (id != 0) {
+			Bundle extras = new Bundle();
+			extras.putString(Session.KEY_API_PACKAGENAME, mPackageName);
+			extras.putString(Session.KEY_API_PROTOCOLVERSION, Session.BEEDROID_BATCH_PROTOCOL_VERSION);
+			extras.putInt(Session.KEY_API_POINTID, id);
+			extras.putParcelableArrayList(Session.KEY_API_POINTS, new ArrayList<Bundle>());
+			try {
+				sendMessage(Session.MSG_API_BATCH, extras);
+			} catch (ClientException e) {
+				synchronized (mPending) {
+					mHandshakeId = 0;
+					mHandshake = null;
+				}
+				answer.countDown();
+				throw e;
+			}
+		}
+		boolean answered;
+		try {
+			answered = answer.await(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			answered = false;
+		}
+		if (!answered) setBatchSupport(BATCH_UNSUPPORTED, false, "no answer to handshake");
+	}
+
+	// Records the batch support of the Beeminder app, ending any handshake,
+	// and persists it if the app told
+	private void setBatchSupport(int support, boolean persist, String reason) {
+		synchronized (mPending) {
+			mBatchSupport = support;
+			if (mHandshake != null) mHandshake.countDown();
+			mHandshake = null;
+		}
+		Log.i(TAG, "setBatchSupport: Batches " + (support == BATCH_SUPPORTED ? "supported" : "not supported")
+				+ " (" + reason + ")");
+		if (persist) mSP.edit().putInt(KEY_BATCH_SUPPORT, support).putInt(KEY_BATCH_APPVERSION, mAppVersion).commit();
+	}
+
+	/*
+	 * Sends prepared requests as one batch message. Each point is the bundle
+	 * of its single message plus its message type, and gets its own response.
+	 * A response to the batch itself is a refusal: none of its points was
+	 * carried out. The batch is remembered until one of its points gets a
+	 * response, so that its points can be resent on their own after a
+	 * refusal, see resendBatch().
+	 */
+	private void sendBatch(List<Request> requests) throws ClientException {
+		ArrayList<Bundle> points = new ArrayList<Bundle>(requests.size());
+		for (Request request : requests) {
+			Bundle point = new Bundle(request.mExtras);
+			point.putInt(Session.KEY_API_OP, request.mWhat);
+			points.add(point);
+		}
+		final BatchMessage batch;
+		synchronized (mPending) {
+			batch = new BatchMessage(newId(), new ArrayList<Request>(requests));
+			mBatches.put(batch.mId, batch);
+			for (Request request : requests)
+				request.mBatch = batch;
+		}
+		Bundle extras = new Bundle();
+		extras.putString(Session.KEY_API_PACKAGENAME, mPackageName);
+		extras.putString(Session.KEY_API_PROTOCOLVERSION, Session.BEEDROID_BATCH_PROTOCOL_VERSION);
+		extras.putInt(Session.KEY_API_POINTID, batch.mId);
+		extras.putParcelableArrayList(Session.KEY_API_POINTS, points);
+		try {
+			sendMessage(Session.MSG_API_BATCH, extras);
+		} catch (ClientException e) {
+			synchronized (mPending) {
+				mBatches.remove(batch.mId);
+			}
+			throw e;
+		}
+		if (LOCAL_LOGV) Log.v(TAG, "sendBatch: " + requests.size() + " points, id=" + batch.mId);
+	}
+
+	/*
+	 * Marks batches as unsupported after the given batch was refused, and
+	 * resends its points that are still waiting, one message each. Called on
+	 * the reply thread.
+	 */
+	private void resendBatch(int batchId, String reason) {
+		List<Request> resend = new ArrayList<Request>();
+		synchronized (mPending) {
+			BatchMessage batch = mBatches.remove(batchId);
+			if (batch == null) return;
+			for (Request request : batch.mRequests) {
+				request.mBatch = null;
+				if (mPending.containsKey(request.getSubmissionId())) resend.add(request);
+			}
+		}
+		setBatchSupport(BATCH_UNSUPPORTED, true, reason);
+		Log.w(TAG, "resendBatch: Batch refused, resending " + resend.size() + " points");
+		for (Request request : resend) {
+			try {
+				send(request);
+			} catch (ClientException e) {
+				request.finish(null, Session.ErrorType.ERROR_OPEN, e.getMessage());
+			}
+		}
+	}
+
+	// Forgets the batch of a request once one of its points got a response,
+	// which means the batch was accepted. Must hold mPending.
+	private void batchHandled(Request request) {
+		BatchMessage batch = request.mBatch;
+		if (batch == null) return;
+		mBatches.remove(batch.mId);
+		for (Request r : batch.mRequests)
+			r.mBatch = null;
+	}
+
+	// Fails all requests waiting for a response and ends any handshake
+	// without an answer
+	private void failPending(String message) {
+		List<Request> pending;
+		synchronized (mPending) {
+			pending = new ArrayList<Request>(mPending.values());
+			mPending.clear();
+			mBatches.clear();
+			mHandshakeId = 0;
+			if (mHandshake != null) mHandshake.countDown();
+			mHandshake = null;
+		}
+		for (Request request : pending)
+			request.finish(null, Session.ErrorType.ERROR_OPEN, message);
+	}
+
+	// Class for interacting with the main interface of the service.
+	private ServiceConnection mConnection = new ServiceConnection() {
+		public void onServiceConnected(ComponentName className, IBinder service) {
+			if (LOCAL_LOGV) Log.v(TAG, "onServiceConnected()");
+			synchronized (mBindLock) {
+				mService = new Messenger(service);
+				mBound = true;
+				mBinding = false;
+				mBindLock.notifyAll();
+			}
+		}
+
+		public void onServiceDisconnected(ComponentName className) {
+			if (LOCAL_LOGV) Log.v(TAG, "onServiceDisconnected()");
+			synchronized (mBindLock) {
+				mService = null;
+				mBound = false;
+				// The system rebinds once the service is restarted
+				mBinding = true;
+			}
+			failPending("Beeminder service disconnected");
+		}
+	};
+
+	// Handler to process response messages coming from the Beeminder app.
+	private class IncomingHandler extends Handler {
+		IncomingHandler(Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			if (LOCAL_LOGV) Log.v(TAG, "handleMessage: Response received with " + msg.what);
+
+			Bundle extras = msg.getData();
+			if (extras == null || !extras.containsKey(Session.KEY_API_POINTID)) {
+				Log.w(TAG, "handleMessage: Response without submission id");
+				return;
+			}
+			int pointId = extras.getInt(Session.KEY_API_POINTID);
+			boolean handshake;
+			synchronized (mPending) {
+				handshake = (mHandshakeId != 0 && pointId == mHandshakeId);
+				if (handshake) mHandshakeId = 0;
+			}
+			if (handshake) {
+				String version = extras.getString(Session.KEY_API_PROTOCOLVERSION);
+				boolean supported = msg.what == Session.MSG_API_RESPONSE_OK && version != null
+						&& version.compareTo(Session.BEEDROID_BATCH_PROTOCOL_VERSION) >= 0;
+				setBatchSupport(supported ? BATCH_SUPPORTED : BATCH_UNSUPPORTED, true, "handshake response " + msg.what);
+				return;
+			}
+			Request request;
+			boolean batch;
+			synchronized (mPending) {
+				request = mPending.remove(pointId);
+				if (request != null) batchHandled(request);
+				batch = mBatches.containsKey(pointId);
+			}
+			if (batch) {
+				// A response to a whole batch is a refusal, an app that
+				// handles batches responds to each point
+				resendBatch(pointId, "response " + msg.what);
+				return;
+			}
+			if (request == null) {
+				if (LOCAL_LOGV) Log.v(TAG, "handleMessage: No request with id " + pointId);
+				return;
+			}
+
+			String errormsg = extras.getString(Session.KEY_API_ERRORMSG);
+			Session.ErrorType type;
+			switch (msg.what) {
+			case Session.MSG_API_RESPONSE_UNAUTHORIZED:
+				// Seems like authorization has been revoked for this goal.
+				// Forget its token.
+				mSP.edit().remove(request.getUsername() + "/" + request.getGoalSlug() + "_token").commit();
+				type = Session.ErrorType.ERROR_UNAUTHORIZED;
+				break;
+			case Session.MSG_API_RESPONSE_BADVERSION:
+				type = Session.ErrorType.ERROR_BADVERSION;
+				break;
+			case Session.MSG_API_RESPONSE_NOTFOUND:
+				type = Session.ErrorType.ERROR_NOTFOUND;
+				break;
+			case Session.MSG_API_RESPONSE_ERROR:
+				type = Session.ErrorType.ERROR_OTHER;
+				break;
+			default:
+				// As with Session, any other response is a success unless it
+				// carries an error message
+				type = (errormsg == null) ? Session.ErrorType.ERROR_NONE : Session.ErrorType.ERROR_OTHER;
+				break;
+			}
+			request.finish(extras.getString(Session.KEY_API_REQUESTID), type, errormsg);
+		}
+	}
+
+	private static Random random = null;
+
+	// Facility to generate random integer point identifiers, never 0 which
+	// stands for no handshake, see mHandshakeId. No need to be secure here.
+	private static synchronized int newSubmissionId() {
+		if (random == null) random = new Random();
+		return 1 + random.nextInt(Integer.MAX_VALUE - 1);
+	}
+}
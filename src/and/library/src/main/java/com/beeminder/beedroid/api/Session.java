@@ -51,11 +51,13 @@ public class Session {
 	private final static boolean LOCAL_LOGV = false;
 
 	/** Preference database name for storing session information */
-	private static final String BEEDROID_SESSION_PREFS = "com.beeminder.beedroid.api.sessions";
+	static final String BEEDROID_SESSION_PREFS = "com.beeminder.beedroid.api.sessions";
 
 	/** Beeminder app's package name and API protovol version */
-	private static final String BEEDROID_PACKAGE = "com.beeminder.beeminder";
-	private static final String BEEDROID_PROTOCOL_VERSION = "20131030";
+	static final String BEEDROID_PACKAGE = "com.beeminder.beeminder";
+	static final String BEEDROID_PROTOCOL_VERSION = "20131030";
+	/** Protocol version of batch messages, see MSG_API_BATCH */
+	static final String BEEDROID_BATCH_PROTOCOL_VERSION = "20140301";
 
 	/** Intent action to visit a Beeminder goal. */
 	private static final String ACTION_VISITGOAL = "com.beeminder.beeminder.VISITGOAL";
@@ -64,26 +66,30 @@ public class Session {
 	/** Intent action to remove an authorization using the Beeminder API. */
 	private static final String ACTION_API_UNAUTHORIZE = "com.beeminder.beeminder.UNAUTHORIZE";
 	/** Intent action to initiate datapoint submission. */
-	private static final String ACTION_API_EDITPOINT = "com.beeminder.beeminder.EDITPOINT";
+	static final String ACTION_API_EDITPOINT = "com.beeminder.beeminder.EDITPOINT";
 
 	/*
 	 * Keys used for communicating with the Beeminder authorization activity and
-	 * datapoint submission service.
+	 * datapoint submission service. Package visible ones are shared with
+	 * Client.
 	 */
-	private static final String KEY_API_PACKAGENAME = "pkgname";
+	static final String KEY_API_PACKAGENAME = "pkgname";
 	private static final String KEY_API_APPLICATIONNAME = "appname";
-	private static final String KEY_API_PROTOCOLVERSION = "protover";
-	private static final String KEY_API_USERNAME = "username";
-	private static final String KEY_API_GOALSLUG = "slug";
-	private static final String KEY_API_TOKEN = "token";
-
-	private static final String KEY_API_REQUESTID = "req_id";
-	private static final String KEY_API_POINTID = "ptid";
-	private static final String KEY_API_VALUE = "value";
-	private static final String KEY_API_TIMESTAMP = "timestamp";
-	private static final String KEY_API_COMMENT = "comment";
-
-	private static final String KEY_API_ERRORMSG = "error";
+	static final String KEY_API_PROTOCOLVERSION = "protover";
+	static final String KEY_API_USERNAME = "username";
+	static final String KEY_API_GOALSLUG = "slug";
+	static final String KEY_API_TOKEN = "token";
+
+	static final String KEY_API_REQUESTID = "req_id";
+	static final String KEY_API_POINTID = "ptid";
+	static final String KEY_API_VALUE = "value";
+	static final String KEY_API_TIMESTAMP = "timestamp";
+	static final String KEY_API_COMMENT = "comment";
+	/** Points of a batch message, and the message type of each point */
+	static final String KEY_API_POINTS = "points";
+	static final String KEY_API_OP = "op";
+
+	static final String KEY_API_ERRORMSG = "error";
 	private static final String KEY_API_ERRORCODE = "errorcode";
 
 	private static final String KEY_VISITGOAL_USERNAME = "user";
@@ -93,22 +99,30 @@ public class Session {
 	 * activities and services
 	 */
 	/** Identifies a message to initiate datapoint submission */
-	private static final int MSG_API_CREATEPOINT = 1;
-	private static final int MSG_API_DELETEPOINT = 2;
+	static final int MSG_API_CREATEPOINT = 1;
+	static final int MSG_API_DELETEPOINT = 2;
 	private static final int MSG_API_UPDATEPOINT = 3;
+	/**
+	 * Identifies a message carrying several create or delete requests, each
+	 * answered with its own response. Sent by Client.Batch. A response to the
+	 * message itself refuses all of its requests. A batch without requests is
+	 * a handshake, answered with MSG_API_RESPONSE_OK and the protocol version
+	 * by apps that handle batches.
+	 */
+	static final int MSG_API_BATCH = 4;
 	/** Identifies a message indicating a successful datapoint submission */
-	private static final int MSG_API_RESPONSE_OK = 100;
+	static final int MSG_API_RESPONSE_OK = 100;
 	/**
 	 * Identifies a message indicating a failed datapoint submission due to lack
 	 * of authorization
 	 */
-	private static final int MSG_API_RESPONSE_UNAUTHORIZED = 101;
+	static final int MSG_API_RESPONSE_UNAUTHORIZED = 101;
 	/** Identifies a message indicating a failed datapoint submission */
-	private static final int MSG_API_RESPONSE_ERROR = 102;
+	static final int MSG_API_RESPONSE_ERROR = 102;
 	/** Identifies a message indicating a version mismatch */
-	private static final int MSG_API_RESPONSE_BADVERSION = 103;
+	static final int MSG_API_RESPONSE_BADVERSION = 103;
 	/** Identifies a message indicating that a data point was not found */
-	private static final int MSG_API_RESPONSE_NOTFOUND = 104;
+	static final int MSG_API_RESPONSE_NOTFOUND = 104;
 
 	/** Unique identifier integer for the Beeminder authorization activity */
 	private static final int ACTIVITY_BEEMINDER_AUTH = 105674;
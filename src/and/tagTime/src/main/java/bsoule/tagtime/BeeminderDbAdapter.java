@@ -1,5 +1,6 @@
 package bsoule.tagtime;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
@@ -23,6 +24,7 @@ public class BeeminderDbAdapter {
 	// Private members to handle the Singleton pattern
 	private static BeeminderDbAdapter instance;
 	private static DatabaseHelper mDbHelper = null;
+	private static String mDatabasePath = null;
 
 	protected BeeminderDbAdapter() {
 	}
@@ -32,6 +34,7 @@ public class BeeminderDbAdapter {
 		if (instance == null) {
 			instance = new BeeminderDbAdapter();
 			if (mDbHelper == null) mDbHelper = new DatabaseHelper(ctx);
+			mDatabasePath = ctx.getDatabasePath(DATABASE_NAME).getPath();
 		}
 	}
 	public static synchronized BeeminderDbAdapter getInstance() {
@@ -45,8 +48,19 @@ public class BeeminderDbAdapter {
 	// Private members to handle the database reference counter
 	private SQLiteDatabase mDb = null;
 	private AtomicInteger mOpenCounter = new AtomicInteger();
+	// Set while the database file is being replaced, see beginReplace()
+	private boolean mReplacing = false;
 
 	public synchronized SQLiteDatabase openDatabase() throws SQLException {
+		boolean interrupted = false;
+		while (mReplacing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
 		if (mOpenCounter.incrementAndGet() == 1) {
 			mDb = mDbHelper.getWritableDatabase();
 		}
@@ -59,6 +73,48 @@ public class BeeminderDbAdapter {
 		}
 	}
 
+	/**
+	 * Keeps the database from being opened until endReplace() is called, so
+	 * that its file can be replaced with replaceDatabase(). Callers of
+	 * openDatabase() wait meanwhile. Fails, changing nothing, if the
+	 * database is open: its users could still be using the connection that
+	 * replaceDatabase() closes.
+	 */
+	public synchronized boolean beginReplace() {
+		if (mOpenCounter.get() > 0) return false;
+		mReplacing = true;
+		return true;
+	}
+
+	/** Lets the database be opened again after beginReplace(). */
+	public synchronized void endReplace() {
+		mReplacing = false;
+		notifyAll();
+	}
+
+	/**
+	 * Replaces the database file with src, which must be a valid Beeminder
+	 * database on the same filesystem (see DataBackupRestore). The current
+	 * file is moved to old, unless old is null, so that the swap can be
+	 * undone. If the swap fails, the current file stays in place. Must be
+	 * called between beginReplace() and endReplace().
+	 */
+	public synchronized boolean replaceDatabase(File src, File old) {
+		if (!mReplacing) throw new IllegalStateException("replaceDatabase: call beginReplace() first");
+		mDbHelper.close();
+		// The old connection was closed cleanly, any journal or log left is
+		// stale and must not be applied to the new file
+		File path = new File(mDatabasePath);
+		DataBackupRestore.deleteLogs(path);
+		boolean ok = old == null || path.renameTo(old);
+		if (ok && !src.renameTo(path)) {
+			if (old != null) old.renameTo(path);
+			ok = false;
+		}
+		if (!ok) Log.e(TAG, "replaceDatabase: could not rename " + src);
+		return ok;
+	}
+
 	// Column name for ID fields 
 	public static final String KEY_ROWID = "_id";
 	// Table for goal registrations
@@ -79,36 +135,206 @@ public class BeeminderDbAdapter {
 	// Table for point ping pairs
 	public static final String KEY_POINTID = "point_id";
 	// Uses KEY_PID
+	// Table for pending point operations, uses KEY_PID, KEY_GID, KEY_POINTID,
+	// KEY_VALUE, KEY_TIMESTAMP and KEY_COMMENT
+	public static final String KEY_OP = "op";
+	public static final String KEY_STATE = "state";
+	public static final String KEY_ATTEMPTS = "attempts";
+	public static final String KEY_NEXTAT = "next_at";
+
+	/** Outbox operations */
+	public static final int OUTBOX_CREATE = 1;
+	public static final int OUTBOX_DELETE = 2;
+	/** Outbox states */
+	public static final int OUTBOX_PENDING = 0;
+	public static final int OUTBOX_SENDING = 1;
+	public static final int OUTBOX_FAILED = 2;
+	/**
+	 * A creation sent without getting a response. It may have reached
+	 * Beeminder all the same, so it is not sent again unless the ping is
+	 * edited.
+	 */
+	public static final int OUTBOX_UNKNOWN = 3;
 
 	/* ****** SQL statements for database creation. ****** */
 
+	// Schema statements, table names and queries are package-private for
+	// QueryPlanTest, which checks the plans of the adapter queries.
+
 	// a goal is a user/slug with a Beeminder token for submission
-	private static final String CREATE_GOALS = "create table goals (_id integer primary key autoincrement, "
+	static final String CREATE_GOALS = "create table goals (_id integer primary key autoincrement, "
 			+ "user text not null, slug text not null, token text not null, updatedat integer not null, UNIQUE (user, slug));";
 
 	// a goal tag is a goal-tag pairing
-	private static final String CREATE_GOALTAGS = "create table goaltags (_id integer primary key autoincrement, "
+	static final String CREATE_GOALTAGS = "create table goaltags (_id integer primary key autoincrement, "
 			+ "goal_id integer not null, tag_id integer not null," + "UNIQUE (goal_id, tag_id));";
 
 	// a point records submission details, corresponding goal and generating
 	// ping
-	private static final String CREATE_POINTS = "create table points (_id integer primary key autoincrement, "
+	static final String CREATE_POINTS = "create table points (_id integer primary key autoincrement, "
 			+ "req_id text not null, value real not null, time integer not null, comment text not null, goal_id integer not null,"
 			+ "UNIQUE (req_id));";
 
 	// a point ping is a point-ping pairing
-	private static final String CREATE_POINTPINGS = "create table pointpings (_id integer primary key autoincrement, "
+	static final String CREATE_POINTPINGS = "create table pointpings (_id integer primary key autoincrement, "
 			+ "point_id integer not null, ping_id integer not null," + "UNIQUE (point_id, ping_id));";
 
+	// an outbox entry is a point creation or deletion waiting to be sent to
+	// Beeminder, see DATABASE_VERSION 4. There is at most one per ping and
+	// goal, so a create followed by a delete of the same point cancels out.
+	// point_id is the point to delete, -1 for creations.
+	static final String CREATE_OUTBOX = "create table outbox (_id integer primary key autoincrement, "
+			+ "op integer not null, ping_id integer not null, goal_id integer not null, point_id integer not null, "
+			+ "value real not null, time integer not null, comment text not null, state integer not null, "
+			+ "attempts integer not null, next_at integer not null, UNIQUE (ping_id, goal_id));";
+
+	/* ****** Secondary indexes, see DATABASE_VERSION 3 ****** */
+
+	// Goals linked to a tag. The UNIQUE constraint only covers lookups by goal.
+	static final String CREATE_GOALTAGS_TAG_INDEX = "create index if not exists goaltags_tag_idx "
+			+ "on goaltags (tag_id, goal_id);";
+	// Points submitted for a ping. The UNIQUE constraint only covers lookups
+	// by point.
+	static final String CREATE_POINTPINGS_PING_INDEX = "create index if not exists pointpings_ping_idx "
+			+ "on pointpings (ping_id, point_id);";
+	// Points submitted to a goal
+	static final String CREATE_POINTS_GOAL_INDEX = "create index if not exists points_goal_idx "
+			+ "on points (goal_id);";
+	// Outbox entries due for sending
+	static final String CREATE_OUTBOX_DUE_INDEX = "create index if not exists outbox_due_idx "
+			+ "on outbox (state, next_at);";
+
 	/* ****** Database and table names ****** */
 	
-	private static final String DATABASE_NAME = "timepie_beeminder";
-	private static final int DATABASE_VERSION = 2;
+	static final String DATABASE_NAME = "timepie_beeminder";
+	private static final int DATABASE_VERSION = 4;
+
+	/* ****** Metrics, see DbMetrics ****** */
+
+	private static final DbMetrics.Timer T_FETCH_GOAL = DbMetrics.timer("beeminder.fetchGoal");
+	private static final DbMetrics.Timer T_FETCH_ALL_GOALS = DbMetrics.timer("beeminder.fetchAllGoals");
+	private static final DbMetrics.Timer T_FIND_GOALS_FOR_TAG_NAMES = DbMetrics.timer("beeminder.findGoalsForTagNames");
+	private static final DbMetrics.Timer T_FIND_GOALS_FOR_TAGS = DbMetrics.timer("beeminder.findGoalsForTags");
+	private static final DbMetrics.Timer T_FETCH_GOAL_TAGS = DbMetrics.timer("beeminder.fetchGoalTags");
+	private static final DbMetrics.Timer T_UPDATE_GOAL_TAGS = DbMetrics.timer("beeminder.updateGoalTags");
+	private static final DbMetrics.Timer T_CREATE_POINT = DbMetrics.timer("beeminder.createPoint");
+	private static final DbMetrics.Timer T_GET_POINT_ID = DbMetrics.timer("beeminder.getPointID");
+	private static final DbMetrics.Timer T_FETCH_ALL_POINTS = DbMetrics.timer("beeminder.fetchAllPoints");
+	private static final DbMetrics.Timer T_REMOVE_POINT = DbMetrics.timer("beeminder.removePoint");
+	private static final DbMetrics.Timer T_NEW_POINT_PING = DbMetrics.timer("beeminder.newPointPing");
+	private static final DbMetrics.Timer T_FETCH_POINT_PINGS = DbMetrics.timer("beeminder.fetchPointPings");
+	private static final DbMetrics.Timer T_QUEUE_OUTBOX = DbMetrics.timer("beeminder.queueOutbox");
+	private static final DbMetrics.Timer T_FETCH_DUE_OUTBOX = DbMetrics.timer("beeminder.fetchDueOutbox");
+
+	static final String GOALS_TABLE = "goals";
+	static final String GOALTAGS_TABLE = "goaltags";
+	static final String POINTS_TABLE = "points";
+	static final String POINTPINGS_TABLE = "pointpings";
+	static final String OUTBOX_TABLE = "outbox";
+
+	/* ****** Queries ****** */
+
+	// Selections by row id, for updates and deletes
+	static String rowIdWhere(long id) {
+		return KEY_ROWID + "=" + id;
+	}
+
+	static String goalWhere(long goal_id) {
+		return KEY_GID + "=" + goal_id;
+	}
+
+	// Binds the user and the slug
+	static final String GOAL_ID_QUERY = "SELECT " + KEY_ROWID + " FROM " + GOALS_TABLE + " WHERE " + KEY_USERNAME
+			+ " = ? AND " + KEY_SLUG + " = ?";
+
+	static String goalUpdatedAtQuery(long gid) {
+		return "SELECT " + KEY_UPDATEDAT + " FROM " + GOALS_TABLE + " WHERE " + rowIdWhere(gid);
+	}
+
+	static String goalQuery(long gid) {
+		return "SELECT DISTINCT " + KEY_ROWID + ", " + KEY_USERNAME + ", " + KEY_SLUG + ", " + KEY_TOKEN + " FROM "
+				+ GOALS_TABLE + " WHERE " + rowIdWhere(gid);
+	}
+
+	static final String ALL_GOALS_QUERY = "SELECT " + KEY_ROWID + ", " + KEY_USERNAME + ", " + KEY_SLUG + ", "
+			+ KEY_TOKEN + ", " + KEY_UPDATEDAT + " FROM " + GOALS_TABLE;
+
+	static String goalTagWhere(long gid, long tid) {
+		return KEY_GID + "=" + gid + " AND " + KEY_TID + "=" + tid;
+	}
+
+	static String goalTagQuery(long gid, long tid) {
+		return "SELECT " + KEY_ROWID + " FROM " + GOALTAGS_TABLE + " WHERE " + goalTagWhere(gid, tid);
+	}
+
+	// Tags of a goal (col_key KEY_GID) or goals of a tag (col_key KEY_TID)
+	static String goalTagsQuery(long id, String col_key) {
+		return "SELECT DISTINCT " + KEY_GID + ", " + KEY_TID + " FROM " + GOALTAGS_TABLE + " WHERE " + col_key + " = "
+				+ id;
+	}
+
+	// Binds the request id
+	static final String POINT_ID_QUERY = "SELECT " + KEY_ROWID + " FROM " + POINTS_TABLE + " WHERE " + KEY_REQID
+			+ " = ?";
+
+	static final String ALL_POINTS_QUERY = "SELECT " + KEY_ROWID + ", " + KEY_REQID + ", " + KEY_VALUE + ", "
+			+ KEY_TIMESTAMP + ", " + KEY_COMMENT + ", " + KEY_GID + " FROM " + POINTS_TABLE;
+
+	static String pointQuery(long pointId) {
+		return "SELECT DISTINCT " + KEY_ROWID + ", " + KEY_REQID + ", " + KEY_VALUE + ", " + KEY_TIMESTAMP + ", "
+				+ KEY_COMMENT + ", " + KEY_GID + " FROM " + POINTS_TABLE + " WHERE " + rowIdWhere(pointId);
+	}
+
+	static String goalPointsQuery(long goal_id) {
+		return "SELECT DISTINCT " + KEY_ROWID + ", " + KEY_GID + " FROM " + POINTS_TABLE + " WHERE "
+				+ goalWhere(goal_id);
+	}
+
+	static String pointPingWhere(long pointId, long pingId) {
+		return KEY_POINTID + "=" + pointId + " AND " + KEY_PID + "=" + pingId;
+	}
+
+	static String pointPingQuery(long pointId, long pingId) {
+		return "SELECT " + KEY_ROWID + " FROM " + POINTPINGS_TABLE + " WHERE " + pointPingWhere(pointId, pingId);
+	}
+
+	// Pings of a point (col_key KEY_POINTID) or points of a ping (col_key
+	// KEY_PID)
+	static String pointPingsQuery(long id, String col_key) {
+		return "SELECT DISTINCT " + KEY_POINTID + ", " + KEY_PID + " FROM " + POINTPINGS_TABLE + " WHERE " + col_key
+				+ " = " + id;
+	}
+
+	static String outboxWhere(long ping_id, long goal_id) {
+		return KEY_PID + "=" + ping_id + " AND " + KEY_GID + "=" + goal_id;
+	}
+
+	// The given operation for a ping and goal, unless it failed for good or
+	// its outcome is unknown
+	static String queuedOutboxWhere(long ping_id, long goal_id, int op) {
+		return outboxWhere(ping_id, goal_id) + " AND " + KEY_OP + "=" + op + " AND " + KEY_STATE + " NOT IN ("
+				+ OUTBOX_FAILED + ", " + OUTBOX_UNKNOWN + ")";
+	}
+
+	static String pingOutboxQuery(long ping_id) {
+		return "SELECT " + KEY_ROWID + ", " + KEY_OP + ", " + KEY_GID + " FROM " + OUTBOX_TABLE + " WHERE " + KEY_PID
+				+ "=" + ping_id;
+	}
+
+	static String dueOutboxQuery(long time, int limit) {
+		return "SELECT " + KEY_ROWID + ", " + KEY_OP + ", " + KEY_PID + ", " + KEY_GID + ", " + KEY_POINTID + ", "
+				+ KEY_VALUE + ", " + KEY_TIMESTAMP + ", " + KEY_COMMENT + ", " + KEY_ATTEMPTS + " FROM " + OUTBOX_TABLE
+				+ " WHERE " + KEY_STATE + "=" + OUTBOX_PENDING + " AND " + KEY_NEXTAT + "<=" + time + " ORDER BY "
+				+ KEY_ROWID + " LIMIT " + limit;
+	}
 
-	private static final String GOALS_TABLE = "goals";
-	private static final String GOALTAGS_TABLE = "goaltags";
-	private static final String POINTS_TABLE = "points";
-	private static final String POINTPINGS_TABLE = "pointpings";
+	static final String NEXT_OUTBOX_TIME_QUERY = "SELECT MIN(" + KEY_NEXTAT + ") FROM " + OUTBOX_TABLE + " WHERE "
+			+ KEY_STATE + "=" + OUTBOX_PENDING;
+
+	static final String SENDING_OUTBOX_WHERE = KEY_STATE + "=" + OUTBOX_SENDING;
+	static final String SENDING_CREATES_WHERE = SENDING_OUTBOX_WHERE + " AND " + KEY_OP + "=" + OUTBOX_CREATE;
+	static final String SENDING_CREATES_QUERY = "SELECT " + KEY_PID + " FROM " + OUTBOX_TABLE + " WHERE "
+			+ SENDING_CREATES_WHERE;
 
 	private static long now() {
 		// Note that getTimeInMillis returns GMT unixtime anyway, so timezone is
@@ -130,17 +356,44 @@ public class BeeminderDbAdapter {
 			db.execSQL(CREATE_GOALTAGS);
 			db.execSQL(CREATE_POINTS);
 			db.execSQL(CREATE_POINTPINGS);
+			createIndexes(db);
+			createOutbox(db);
+		}
+
+		private void createOutbox(SQLiteDatabase db) {
+			db.execSQL(CREATE_OUTBOX);
+			db.execSQL(CREATE_OUTBOX_DUE_INDEX);
+		}
+
+		private void createIndexes(SQLiteDatabase db) {
+			db.execSQL(CREATE_GOALTAGS_TAG_INDEX);
+			db.execSQL(CREATE_POINTPINGS_PING_INDEX);
+			db.execSQL(CREATE_POINTS_GOAL_INDEX);
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
-					+ ", which will destroy all old data");
-			db.execSQL("DROP TABLE IF EXISTS goals");
-			db.execSQL("DROP TABLE IF EXISTS goaltags");
-			db.execSQL("DROP TABLE IF EXISTS points");
-			db.execSQL("DROP TABLE IF EXISTS pointpings");
-			onCreate(db);
+			if (oldVersion < 2) {
+				Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+						+ ", which will destroy all old data");
+				db.execSQL("DROP TABLE IF EXISTS goals");
+				db.execSQL("DROP TABLE IF EXISTS goaltags");
+				db.execSQL("DROP TABLE IF EXISTS points");
+				db.execSQL("DROP TABLE IF EXISTS pointpings");
+				db.execSQL("DROP TABLE IF EXISTS outbox");
+				onCreate(db);
+			} else {
+				if (oldVersion < 3 && newVersion >= 3) {
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " adding secondary indexes...");
+					createIndexes(db);
+				}
+				if (oldVersion < 4 && newVersion >= 4) {
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " adding the point outbox...");
+					createOutbox(db);
+				}
+			}
 		}
 	}
 
@@ -191,14 +444,14 @@ public class BeeminderDbAdapter {
 	public boolean deleteGoal(long rowId) {
 		updateGoalTags(rowId, new ArrayList<String>(0));
 		removeGoalPoints(rowId);
-		return mDb.delete(GOALS_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+		mDb.delete(OUTBOX_TABLE, goalWhere(rowId), null);
+		return mDb.delete(GOALS_TABLE, rowIdWhere(rowId), null) > 0;
 	}
 
 	public long getGoalID(String user, String slug) {
 		if (LOCAL_LOGV) Log.v(TAG, "getGoalID(" + user + "/" + slug + ")");
 		long gid = -1;
-		Cursor cursor = mDb.query(GOALS_TABLE, new String[] { KEY_ROWID, KEY_USERNAME, KEY_SLUG }, KEY_USERNAME + "='"
-				+ user + "' AND " + KEY_SLUG + "='" + slug + "'", null, null, null, null, null);
+		Cursor cursor = mDb.rawQuery(GOAL_ID_QUERY, new String[] { user, slug });
 		if (cursor.getCount() > 0) {
 			cursor.moveToFirst();
 			gid = cursor.getLong(cursor.getColumnIndex(KEY_ROWID));
@@ -209,8 +462,7 @@ public class BeeminderDbAdapter {
 
 	public long getGoalUpdatedAt(long gid) {
 		if (LOCAL_LOGV) Log.v(TAG, "getGoalUpdatedAt(" + gid + ")");
-		Cursor cursor = mDb.query(GOALS_TABLE, new String[] { KEY_UPDATEDAT }, KEY_ROWID + "=" + gid, null, null, null,
-				null, null);
+		Cursor cursor = mDb.rawQuery(goalUpdatedAtQuery(gid), null);
 		long updated_at = now();
 		if (cursor.getCount() > 0) {
 			cursor.moveToFirst();
@@ -221,8 +473,8 @@ public class BeeminderDbAdapter {
 	}
 
 	public Cursor fetchGoal(long rowId) throws SQLException {
-		Cursor pCursor = mDb.query(true, GOALS_TABLE, new String[] { KEY_ROWID, KEY_USERNAME, KEY_SLUG, KEY_TOKEN },
-				KEY_ROWID + "=" + rowId, null, null, null, null, null);
+		long t0 = T_FETCH_GOAL.start();
+		Cursor pCursor = T_FETCH_GOAL.stop(t0, mDb.rawQuery(goalQuery(rowId), null));
 		if (pCursor != null) {
 			pCursor.moveToFirst();
 		}
@@ -231,8 +483,8 @@ public class BeeminderDbAdapter {
 	}
 
 	public Cursor fetchAllGoals() {
-		return mDb.query(GOALS_TABLE, new String[] { KEY_ROWID, KEY_USERNAME, KEY_SLUG, KEY_TOKEN, KEY_UPDATEDAT },
-				null, null, null, null, null);
+		long t0 = T_FETCH_ALL_GOALS.start();
+		return T_FETCH_ALL_GOALS.stop(t0, mDb.rawQuery(ALL_GOALS_QUERY, null));
 	}
 
 	public boolean updateGoal(long goalId, String user, String slug, String token) {
@@ -243,7 +495,7 @@ public class BeeminderDbAdapter {
 		values.put(KEY_TOKEN, token);
 		// Uluc: We no longer invalidate existing datapoints on goal update
 		// values.put(KEY_UPDATEDAT, now());
-		int numrows = mDb.update(GOALS_TABLE, values, KEY_ROWID + " = " + goalId, null);
+		int numrows = mDb.update(GOALS_TABLE, values, rowIdWhere(goalId), null);
 
 		if (numrows == 1) {
 			// Uluc: We no longer invalidate existing datapoints on goal update
@@ -258,7 +510,7 @@ public class BeeminderDbAdapter {
 		// Insert authorization into the table
 		ContentValues values = new ContentValues();
 		values.put(KEY_UPDATEDAT, now());
-		int numrows = mDb.update(GOALS_TABLE, values, KEY_ROWID + " = " + goalId, null);
+		int numrows = mDb.update(GOALS_TABLE, values, rowIdWhere(goalId), null);
 
 		if (numrows == 1) {
 			// We remove previous point associations since our latest update
@@ -271,6 +523,7 @@ public class BeeminderDbAdapter {
 
 	// ============== Goal-tag pair database utilities ===============
 	public Set<Long> findGoalsForTagNames(List<String> tags) {
+		long t0 = T_FIND_GOALS_FOR_TAG_NAMES.start();
 		PingsDbAdapter pingDB = PingsDbAdapter.getInstance();
 		pingDB.openDatabase();
 
@@ -305,10 +558,12 @@ public class BeeminderDbAdapter {
 					"findGoalsForTags: Found goals <" + goalstr + "> for new tags " + TextUtils.join(" ", tags));
 		}
 		pingDB.closeDatabase();
+		T_FIND_GOALS_FOR_TAG_NAMES.stop(t0, goals.size());
 		return goals;
 	}
 
 	public Set<Long> findGoalsForTags(List<Long> tags) {
+		long t0 = T_FIND_GOALS_FOR_TAGS.start();
 		Set<Long> goals = new HashSet<Long>(0);
 		int idx;
 		Cursor c;
@@ -332,6 +587,7 @@ public class BeeminderDbAdapter {
 			if (LOCAL_LOGV) Log.v(TAG,
 					"findGoalsForTags: Found goals <" + goalstr + "> for new tags " + TextUtils.join(" ", tags));
 		}
+		T_FIND_GOALS_FOR_TAGS.stop(t0, goals.size());
 		return goals;
 	}
 
@@ -343,31 +599,28 @@ public class BeeminderDbAdapter {
 	}
 
 	public boolean isGoalTag(long gid, long tid) {
-		Cursor c = mDb.query(GOALTAGS_TABLE, new String[] { KEY_ROWID }, KEY_GID + "=" + gid + " AND " + KEY_TID + "="
-				+ tid, null, null, null, null);
+		Cursor c = mDb.rawQuery(goalTagQuery(gid, tid), null);
 		boolean ret = c.getCount() > 0;
 		c.close();
 		return ret;
 	}
 
 	public boolean deleteGoalTag(long goalId, long tagId) {
-		String query = KEY_GID + "=" + goalId + " AND " + KEY_TID + "=" + tagId;
-		return mDb.delete(GOALTAGS_TABLE, query, null) > 0;
+		return mDb.delete(GOALTAGS_TABLE, goalTagWhere(goalId, tagId), null) > 0;
 	}
 
 	public Cursor fetchGoalTags(long id, String col_key, String order) {
-		return mDb.query(true, GOALTAGS_TABLE, new String[] { KEY_GID, KEY_TID }, col_key + " = " + id, null, null,
-				null, KEY_PID + " DESC", null);
+		long t0 = T_FETCH_GOAL_TAGS.start();
+		return T_FETCH_GOAL_TAGS.stop(t0, mDb.rawQuery(goalTagsQuery(id, col_key) + " ORDER BY " + order, null));
 	}
 
 	public Cursor fetchGoalTags(long id, String col_key) {
-		return mDb.query(true, GOALTAGS_TABLE, new String[] { KEY_GID, KEY_TID }, col_key + " = " + id, null, null,
-				null, null, null);
+		long t0 = T_FETCH_GOAL_TAGS.start();
+		return T_FETCH_GOAL_TAGS.stop(t0, mDb.rawQuery(goalTagsQuery(id, col_key), null));
 	}
 
 	public String fetchTagString(long goal_id) throws Exception {
-		Cursor c = mDb.query(GOALTAGS_TABLE, new String[] { KEY_GID, KEY_TID }, KEY_GID + "=" + goal_id, null, null,
-				null, null);
+		Cursor c = mDb.rawQuery(goalTagsQuery(goal_id, KEY_GID), null);
 		String s = "";
 		PingsDbAdapter db = PingsDbAdapter.getInstance();
 		try {
@@ -416,16 +669,9 @@ public class BeeminderDbAdapter {
 
 	public boolean updateGoalTags(long goalId, List<String> newTags) {
 		if (LOCAL_LOGV) Log.v(TAG, "updateGoalTags()");
+		long t0 = T_UPDATE_GOAL_TAGS.start();
 		// Remove all the old tags.
-		List<String> cacheUpdates = new ArrayList<String>();
-		try {
-			cacheUpdates = fetchTagsForGoal(goalId);
-		} catch (Exception e) {
-			Log.w(TAG, "Some problem getting tags for this ping!");
-			e.printStackTrace();
-		}
-		cacheUpdates.addAll(newTags);
-		mDb.delete(GOALTAGS_TABLE, KEY_GID + "=" + goalId, null);
+		mDb.delete(GOALTAGS_TABLE, goalWhere(goalId), null);
 		PingsDbAdapter db = PingsDbAdapter.getInstance();
 		db.openDatabase();
 		for (String t : newTags) {
@@ -442,10 +688,8 @@ public class BeeminderDbAdapter {
 				Log.w(TAG, "error inserting newGoalTag(" + goalId + "," + tid + ") in updateTaggings()");
 			}
 		}
-		for (String tag : cacheUpdates) {
-			db.updateTagCache(db.getTID(tag));
-		}
 		db.closeDatabase();
+		T_UPDATE_GOAL_TAGS.stop(t0, newTags.size());
 		return true;
 	}
 
@@ -453,6 +697,7 @@ public class BeeminderDbAdapter {
 
 	public long createPoint(String req_id, double value, long time, String comment, long goal_id) {
 		if (LOCAL_LOGV) Log.v(TAG, "createPoint()");
+		long t0 = T_CREATE_POINT.start();
 		long gid;
 		try {
 			gid = newPoint(req_id, value, time, comment, goal_id);
@@ -462,6 +707,7 @@ public class BeeminderDbAdapter {
 		// if (!updateGoalTags(gid, tags)) {
 		// Log.e(TAG, "error creating the goal-tag entries");
 		// }
+		T_CREATE_POINT.stop(t0, 1);
 		return gid;
 	}
 
@@ -476,14 +722,14 @@ public class BeeminderDbAdapter {
 	}
 
 	private boolean deletePoint(long rowId) {
-		return mDb.delete(POINTS_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+		return mDb.delete(POINTS_TABLE, rowIdWhere(rowId), null) > 0;
 	}
 
 	public long getPointID(String req_id) {
 		if (LOCAL_LOGV) Log.v(TAG, "getPointID(" + req_id + ")");
 		long gid = -1;
-		Cursor cursor = mDb.query(POINTS_TABLE, new String[] { KEY_ROWID, KEY_REQID }, KEY_REQID + "='" + req_id + "'",
-				null, null, null, null, null);
+		long t0 = T_GET_POINT_ID.start();
+		Cursor cursor = T_GET_POINT_ID.stop(t0, mDb.rawQuery(POINT_ID_QUERY, new String[] { req_id }));
 		if (cursor.getCount() > 0) {
 			cursor.moveToFirst();
 			gid = cursor.getLong(cursor.getColumnIndex(KEY_ROWID));
@@ -493,8 +739,7 @@ public class BeeminderDbAdapter {
 	}
 
 	public Cursor fetchPoint(long rowId) throws SQLException {
-		Cursor pCursor = mDb.query(true, POINTS_TABLE, new String[] { KEY_ROWID, KEY_REQID, KEY_VALUE, KEY_TIMESTAMP,
-				KEY_COMMENT, KEY_GID }, KEY_ROWID + "=" + rowId, null, null, null, null, null);
+		Cursor pCursor = mDb.rawQuery(pointQuery(rowId), null);
 		if (pCursor != null) {
 			pCursor.moveToFirst();
 		}
@@ -503,8 +748,8 @@ public class BeeminderDbAdapter {
 	}
 
 	public Cursor fetchAllPoints() {
-		return mDb.query(POINTS_TABLE, new String[] { KEY_ROWID, KEY_REQID, KEY_VALUE, KEY_TIMESTAMP, KEY_COMMENT,
-				KEY_GID }, null, null, null, null, null);
+		long t0 = T_FETCH_ALL_POINTS.start();
+		return T_FETCH_ALL_POINTS.stopUncounted(t0, mDb.rawQuery(ALL_POINTS_QUERY, null));
 	}
 
 	public boolean updatePoint(long pointId, double value, long time, String comment) {
@@ -513,15 +758,14 @@ public class BeeminderDbAdapter {
 		values.put(KEY_VALUE, value);
 		values.put(KEY_TIMESTAMP, time);
 		values.put(KEY_COMMENT, comment);
-		int numrows = mDb.update(GOALS_TABLE, values, KEY_ROWID + " = " + pointId, null);
+		int numrows = mDb.update(GOALS_TABLE, values, rowIdWhere(pointId), null);
 
 		if (numrows == 1) return true;
 		else return false;
 	}
 
 	public void removeGoalPoints(long goal_id) {
-		Cursor c = mDb.query(true, POINTS_TABLE, new String[] { KEY_ROWID, KEY_GID }, KEY_GID + "=" + goal_id, null,
-				null, null, null, null);
+		Cursor c = mDb.rawQuery(goalPointsQuery(goal_id), null);
 		List<Long> points = new ArrayList<Long>();
 		c.moveToFirst();
 		while (!c.isAfterLast()) {
@@ -534,6 +778,7 @@ public class BeeminderDbAdapter {
 	}
 
 	public void removePoint(long point_id) {
+		long t0 = T_REMOVE_POINT.start();
 		List<Long> pings;
 		deletePoint(point_id);
 		try {
@@ -545,6 +790,7 @@ public class BeeminderDbAdapter {
 		for (long ping_id : pings) {
 			deletePointPing(point_id, ping_id);
 		}
+		T_REMOVE_POINT.stop(t0, pings.size());
 	}
 
 	// ===================== Point-ping pair database utilities =============
@@ -552,12 +798,14 @@ public class BeeminderDbAdapter {
 		ContentValues init = new ContentValues();
 		init.put(KEY_POINTID, point_id);
 		init.put(KEY_PID, ping_id);
-		return mDb.insertOrThrow(POINTPINGS_TABLE, null, init);
+		long t0 = T_NEW_POINT_PING.start();
+		long id = mDb.insertOrThrow(POINTPINGS_TABLE, null, init);
+		T_NEW_POINT_PING.stop(t0, 1);
+		return id;
 	}
 
 	public boolean isPointPing(long pointId, long pingId) {
-		Cursor c = mDb.query(POINTPINGS_TABLE, new String[] { KEY_ROWID }, KEY_POINTID + "=" + pointId + " AND "
-				+ KEY_PID + "=" + pingId, null, null, null, null);
+		Cursor c = mDb.rawQuery(pointPingQuery(pointId, pingId), null);
 		boolean ret = c.getCount() > 0;
 		c.close();
 		return ret;
@@ -569,13 +817,12 @@ public class BeeminderDbAdapter {
 	}
 
 	public boolean deletePointPing(long pointId, long pingId) {
-		String query = KEY_POINTID + "=" + pointId + " AND " + KEY_PID + "=" + pingId;
-		return mDb.delete(POINTPINGS_TABLE, query, null) > 0;
+		return mDb.delete(POINTPINGS_TABLE, pointPingWhere(pointId, pingId), null) > 0;
 	}
 
 	public Cursor fetchPointPings(long id, String col_key) {
-		return mDb.query(true, POINTPINGS_TABLE, new String[] { KEY_POINTID, KEY_PID }, col_key + " = " + id, null,
-				null, null, null, null);
+		long t0 = T_FETCH_POINT_PINGS.start();
+		return T_FETCH_POINT_PINGS.stop(t0, mDb.rawQuery(pointPingsQuery(id, col_key), null));
 	}
 
 	public List<Long> fetchPingsForPoint(long point_id) throws Exception {
@@ -591,4 +838,118 @@ public class BeeminderDbAdapter {
 		c.close();
 		return ret;
 	}
+
+	// ===================== Outbox database utilities ======================
+
+	/**
+	 * Queues a point operation for the given ping and goal, replacing any other
+	 * operation queued for them. Queuing the operation that is already queued
+	 * only updates its point details, keeping its attempts and schedule, unless
+	 * it had failed for good or its outcome is unknown, in which case it starts
+	 * over.
+	 */
+	public long queueOutbox(int op, long ping_id, long goal_id, long point_id, double value, long time,
+			String comment) {
+		long t0 = T_QUEUE_OUTBOX.start();
+		ContentValues values = new ContentValues();
+		values.put(KEY_POINTID, point_id);
+		values.put(KEY_VALUE, value);
+		values.put(KEY_TIMESTAMP, time);
+		values.put(KEY_COMMENT, comment);
+		long id = -1;
+		mDb.beginTransaction();
+		try {
+			int n = mDb.update(OUTBOX_TABLE, values, queuedOutboxWhere(ping_id, goal_id, op), null);
+			if (n == 0) {
+				mDb.delete(OUTBOX_TABLE, outboxWhere(ping_id, goal_id), null);
+				values.put(KEY_OP, op);
+				values.put(KEY_PID, ping_id);
+				values.put(KEY_GID, goal_id);
+				values.put(KEY_STATE, OUTBOX_PENDING);
+				values.put(KEY_ATTEMPTS, 0);
+				values.put(KEY_NEXTAT, now());
+				id = mDb.insert(OUTBOX_TABLE, null, values);
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		T_QUEUE_OUTBOX.stop(t0, 1);
+		return id;
+	}
+
+	/** Removes the operation queued for the given ping and goal, if any. */
+	public boolean cancelOutbox(long ping_id, long goal_id) {
+		return mDb.delete(OUTBOX_TABLE, outboxWhere(ping_id, goal_id), null) > 0;
+	}
+
+	public boolean removeOutbox(long rowId) {
+		return mDb.delete(OUTBOX_TABLE, rowIdWhere(rowId), null) > 0;
+	}
+
+	/** Returns the operations queued for a ping, with their goals and operation types. */
+	public Cursor fetchPingOutbox(long ping_id) {
+		return mDb.rawQuery(pingOutboxQuery(ping_id), null);
+	}
+
+	/**
+	 * Returns up to limit pending operations due at or before the given time,
+	 * oldest first.
+	 */
+	public Cursor fetchDueOutbox(long time, int limit) {
+		long t0 = T_FETCH_DUE_OUTBOX.start();
+		return T_FETCH_DUE_OUTBOX.stop(t0, mDb.rawQuery(dueOutboxQuery(time, limit), null));
+	}
+
+	/** Returns the time the next pending operation is due, or -1 if there is none. */
+	public long getNextOutboxTime() {
+		Cursor c = mDb.rawQuery(NEXT_OUTBOX_TIME_QUERY, null);
+		long next = -1;
+		if (c.moveToFirst() && !c.isNull(0)) next = c.getLong(0);
+		c.close();
+		return next;
+	}
+
+	public boolean setOutboxState(long rowId, int state) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_STATE, state);
+		return mDb.update(OUTBOX_TABLE, values, rowIdWhere(rowId), null) > 0;
+	}
+
+	/** Records a failed attempt and the time of the next one. */
+	public boolean rescheduleOutbox(long rowId, int attempts, long next_at) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_STATE, OUTBOX_PENDING);
+		values.put(KEY_ATTEMPTS, attempts);
+		values.put(KEY_NEXTAT, next_at);
+		return mDb.update(OUTBOX_TABLE, values, rowIdWhere(rowId), null) > 0;
+	}
+
+	/**
+	 * Cleans up after operations left in the sending state by a process that
+	 * died before getting their responses. Deletions go back in the queue,
+	 * while creations may have reached Beeminder and are marked
+	 * OUTBOX_UNKNOWN.
+	 * 
+	 * @return the pings of the creations marked OUTBOX_UNKNOWN
+	 */
+	public List<Long> resetOutboxSending() {
+		List<Long> unknown = new ArrayList<Long>();
+		mDb.beginTransaction();
+		try {
+			Cursor c = mDb.rawQuery(SENDING_CREATES_QUERY, null);
+			while (c.moveToNext())
+				unknown.add(c.getLong(0));
+			c.close();
+			ContentValues values = new ContentValues();
+			values.put(KEY_STATE, OUTBOX_UNKNOWN);
+			mDb.update(OUTBOX_TABLE, values, SENDING_CREATES_WHERE, null);
+			values.put(KEY_STATE, OUTBOX_PENDING);
+			mDb.update(OUTBOX_TABLE, values, SENDING_OUTBOX_WHERE, null);
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		return unknown;
+	}
 }
@@ -3,13 +3,15 @@ package bsoule.tagtime;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.AlarmManager;
 import android.app.IntentService;
@@ -19,65 +21,151 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
+import com.beeminder.beedroid.api.Client;
 import com.beeminder.beedroid.api.Session;
-import com.beeminder.beedroid.api.Session.SessionError;
-import com.beeminder.beedroid.api.Session.SessionState;
 
 /**
  * This service is used by the rest of TagTime to access Beeminder through its
  * API. The onHandleIntent() method listens for incoming intents, currently
  * supporting ping editing action with the ping id, old tag list and the new tag
  * list supplied.
+ * 
+ * Ping edits are turned into point creations and deletions queued in the
+ * outbox table of the Beeminder database, which is then drained in batches.
+ * Failed operations stay in the outbox and are retried with exponential
+ * backoff, driven by a single alarm sending ACTION_DRAIN. Creations that got
+ * no response are not retried, as they may have reached Beeminder, and the
+ * user is asked to check instead. Points of all goals go through one Client
+ * bound to the Beeminder app and are sent together, while responses are
+ * awaited per goal, so a slow or failing goal does not affect the others.
  */
 public class BeeminderService extends IntentService {
 	private static final String TAG = "BeeminderService";
 	private static final boolean LOCAL_LOGV = true && !TagTime.DISABLE_LOGV;
 
 	public static final String ACTION_EDITPING = "editping";
+	public static final String ACTION_DRAIN = "drain";
 
 	public static final String KEY_PID = "ping_id";
 	public static final String KEY_OLDTAGS = "oldtags";
 	public static final String KEY_NEWTAGS = "newtags";
-	public static final String KEY_RETRIES = "retries";
 
 	private static final int SEMAPHORE_TIMEOUT = 30;
+	/** Delay before the first retry, doubled for each further attempt */
 	private static final int RETRY_DELAY = 60;
-	private static final int MAX_RETRIES = 5;
+	private static final int MAX_RETRY_DELAY = 6 * 3600;
+	/** Attempts after which an operation fails for good */
+	private static final int MAX_ATTEMPTS = 12;
+	/**
+	 * Attempts after which a deletion giving NOTFOUND is dropped. Points that
+	 * did not yet make it to the server may appear as not found for a while.
+	 */
+	private static final int MAX_NOTFOUND_ATTEMPTS = 4;
 
 	private BeeminderDbAdapter mBeeDB;
 	private PingsDbAdapter mPingDB;
-	private Session mBeeminder;
+	/**
+	 * Client bound to the Beeminder service while this service runs, carrying
+	 * the points of all goals. Responses are delivered on the main thread.
+	 */
+	private Client mClient;
 
-	private final Semaphore mSubmitSem = new Semaphore(0, true);
-	private final Semaphore mOpenSem = new Semaphore(0, true);
-	private boolean mWaitingOpen = false;
-	private Session.ErrorType mLastError = null;
+	/** Maximum number of point operations sent before waiting for responses */
+	private static final int MAX_BATCH = 200;
 
-	/** Class used to record and maintain points to be submitted */
+	/** Class used to record and maintain points to be submitted or deleted */
 	private class Point {
-		public int submissionId;
+		public boolean create;
+		public long outboxId;
+		public int attempts;
+		public long pingId;
+		public long goalId;
+		public long pointId;
 		public String requestId;
 		public String user;
 		public String slug;
 		public double value;
 		public long timestamp;
 		public String comment;
+		public Client.Request request;
+		public boolean done;
+		public Session.ErrorType error;
+		/** Sent without a response, see BeeminderDbAdapter.OUTBOX_UNKNOWN */
+		public boolean unknown;
 
 		public Point() {
-			submissionId = -1;
 			requestId = null;
+			pointId = -1;
 		}
 	};
 
+	/** Points sent in the current batch, in order */
+	private final List<Point> mBatch = new ArrayList<Point>();
+
 	/**
-	 * Global Beeminder point object initialized for submission and later
-	 * accessed by callback functions
+	 * The points of the current batch for one goal. Responses are counted as
+	 * they arrive on the reply thread, so each goal is waited for on its own
+	 * clock: a goal that stops responding or refuses the token is given up
+	 * without cutting the wait short for the others.
 	 */
-	private Point mPoint = new Point();
+	private static class GoalPoints implements Client.Listener {
+		public final String user;
+		public final String slug;
+		public final List<Point> points = new ArrayList<Point>();
+		// Guarded by this
+		private int mPending = 0;
+		private long mLastResponse;
+		private boolean mRefused = false;
+
+		public GoalPoints(String user, String slug) {
+			this.user = user;
+			this.slug = slug;
+		}
+
+		/** Starts counting the responses to the requests sent for this goal. */
+		public synchronized void listen() {
+			mLastResponse = SystemClock.elapsedRealtime();
+			for (Point point : points) {
+				if (!point.done) mPending++;
+			}
+			for (Point point : points) {
+				if (!point.done) point.request.setListener(this);
+			}
+		}
+
+		public synchronized void onResult(Client.Request request) {
+			mPending--;
+			mLastResponse = SystemClock.elapsedRealtime();
+			if (request.getErrorType() == Session.ErrorType.ERROR_UNAUTHORIZED) mRefused = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until all responses for this goal are in, the token was
+		 * refused, or none arrived for SEMAPHORE_TIMEOUT seconds. Returns
+		 * false in the last case.
+		 */
+		public synchronized boolean await() throws InterruptedException {
+			while (mPending > 0 && !mRefused) {
+				long left = mLastResponse + SEMAPHORE_TIMEOUT * 1000L - SystemClock.elapsedRealtime();
+				if (left <= 0) return false;
+				wait(left);
+			}
+			return true;
+		}
+
+		public synchronized boolean isRefused() {
+			return mRefused;
+		}
+	}
+
+	/** Number of intents delivered to the service and not yet handled */
+	private final AtomicInteger mQueued = new AtomicInteger(0);
 
 	/**
 	 * This method generates a Notification that indicates a protocol version
@@ -115,275 +203,393 @@ public class BeeminderService extends IntentService {
 	}
 
 	/**
-	 * This method resends the edit ping request (with a delay) to
-	 * BeeminderService in cases where point submission failed. We will keep
-	 * retrying until submission succeeds, or until MAX_RETRIES is reached
-	 * (checked by onHandleIntent()).
+	 * This method sets the alarm that wakes the service up to send the
+	 * operations left in the outbox, for when the next one is due, or cancels
+	 * it if the outbox is empty. There is only ever one such alarm. Assumes
+	 * mBeeDB is opened and ready.
 	 */
-	private void retryIntent() {
+	private void scheduleDrain() {
 		Intent intent = new Intent(getApplicationContext(), BeeminderService.class);
-		intent.setAction(ACTION_EDITPING);
-		intent.putExtra(KEY_PID, mPingId);
-		intent.putExtra(KEY_OLDTAGS, mOldTagsIn);
-		intent.putExtra(KEY_NEWTAGS, mNewTagsIn);
-		intent.putExtra(KEY_RETRIES, mRetries);
-		intent.setData(Uri.parse("file://" + mPoint.requestId + mRetries));
-		PendingIntent sender = PendingIntent.getService(getApplicationContext(), 0, intent, 0);
+		intent.setAction(ACTION_DRAIN);
+		PendingIntent sender = PendingIntent.getService(getApplicationContext(), 0, intent,
+				PendingIntent.FLAG_UPDATE_CURRENT);
 		AlarmManager am = (AlarmManager) getSystemService(ALARM_SERVICE);
-		Calendar cal = Calendar.getInstance();
-		cal.add(Calendar.SECOND, RETRY_DELAY);
-		if (LOCAL_LOGV) Log.v(TAG, "Retrying edits for ping " + mPingId + " at " + cal.getTimeInMillis());
-		am.set(AlarmManager.RTC_WAKEUP, cal.getTimeInMillis(), sender);
+		long next = mBeeDB.getNextOutboxTime();
+		if (next < 0) {
+			am.cancel(sender);
+			return;
+		}
+		long time = Math.max(next * 1000, System.currentTimeMillis());
+		if (LOCAL_LOGV) Log.v(TAG, "scheduleDrain: Draining outbox at " + time);
+		am.set(AlarmManager.RTC_WAKEUP, time, sender);
+	}
+
+	/** Returns the delay in seconds before the given attempt, counting from 1. */
+	private static long retryDelay(int attempts) {
+		long delay = RETRY_DELAY;
+		for (int i = 1; i < attempts && delay < MAX_RETRY_DELAY; i++)
+			delay *= 2;
+		return Math.min(delay, MAX_RETRY_DELAY);
 	}
 
 	/**
 	 * This method generates a notification that indicates that the maximum
-	 * number of retries for point submission has been reached. If the user
+	 * number of attempts for point submission has been reached. If the user
 	 * clicks the notification, the offending will be opened so the user can
 	 * re-edit it and attempt submission.
 	 */
-	private void notifyForResubmit() {
-		String msg = "Error updating ping " + mPingId;
+	private void notifyForResubmit(long pingId) {
+		String msg = "Error updating ping " + pingId;
 		String submsg = "Click to re-edit ping";
 		Intent intent = new Intent(this, EditPing.class);
-		intent.putExtra(PingsDbAdapter.KEY_ROWID, mPingId);
-		PendingIntent ci = PendingIntent.getActivity(this, mPoint.submissionId, intent, 0);
+		intent.putExtra(PingsDbAdapter.KEY_ROWID, pingId);
+		PendingIntent ci = PendingIntent.getActivity(this, (int) pingId, intent, 0);
 		NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 		Notification notif = new NotificationCompat.Builder(this).setContentTitle(msg).setContentText(submsg)
 				.setSmallIcon(R.drawable.error_ticker).setContentIntent(ci).build();
 		notif.flags |= Notification.FLAG_AUTO_CANCEL;
-		nm.notify(mPoint.submissionId, notif);
-	}
-
-	/**
-	 * This callback tracks Beeminder API library status changes. It uses
-	 * semaphores to synchronize with the rest of the service execution. This
-	 * will be called from the main thread (depends on the implementation of the
-	 * Beeminder API library), so proper thread synchronization will be
-	 * necessary.
-	 */
-	private class SessionStatusCallback implements Session.StatusCallback {
-		@Override
-		public void call(Session session, SessionState state, SessionError error) {
-			if (LOCAL_LOGV) Log.v(TAG,
-					"Session Callback: Beeminder status changed:" + state + ", error=" + session.getError());
-
-			if (state == SessionState.OPENED) {
-				// Successful open. Signal the service thread to continue.
-				if (mWaitingOpen) {
-					mOpenSem.release();
-					mWaitingOpen = false;
-				}
-			} else if (state == SessionState.CLOSED_ON_ERROR) {
-				// Failed with error. Signal the service thread to continue.
-				if (mWaitingOpen) {
-					mOpenSem.release();
-					mWaitingOpen = false;
-				}
-				// Generate a notification depending on the type of error
-				if (error == null) {
-					Log.w(TAG, "Session closed with unknown error");
-				} else { 
-					if (error.type == Session.ErrorType.ERROR_BADVERSION) {
-						notifyVersionError(session.getError().message);
-					} else if (error.type == Session.ErrorType.ERROR_UNAUTHORIZED) {
-						// TODO: Must remove this goal from the list of
-						// Beeminder
-						// links. This might happen when Beeminder app is
-						// uninstalled and reinstalled
-						notifyAuthorizationError(mPoint.user, mPoint.slug);
-					}
-					mLastError = session.getError().type;
-				}
-			} else if (state == SessionState.CLOSED) {
-				// Nothing here since it is a normal close.
-			}
-		}
+		nm.notify((int) pingId, notif);
 	}
 
 	/**
-	 * This class implements a callback handling the response at the end of
-	 * datapoint submission. This will be called from the main thread (depends
-	 * on the implementation of the Beeminder API library), so proper thread
-	 * synchronization will be necessary.
+	 * This method generates a notification that indicates that a datapoint
+	 * for the given ping may or may not have reached Beeminder. It is not
+	 * sent again automatically, since that could duplicate it. If the user
+	 * clicks the notification, the ping is opened so that it can be edited,
+	 * which sends the datapoint again.
 	 */
-	private class PointSubmissionCallback implements Session.SubmissionCallback {
-		@Override
-		public void call(Session session, int submission_id, String request_id, String error) {
-			if (LOCAL_LOGV) Log.v(TAG, "Point Callback: Point operation completed, id=" + submission_id + ", req_id="
-					+ request_id + ", error=" + error);
-			if (error == null && submission_id == mPoint.submissionId) {
-				// All is well. Record the returned request ID.
-				mPoint.requestId = request_id;
-				mLastError = null;
-			} else {
-				// Point submission failed. Figure out why and inform the user.
-				Log.w(TAG, "Point Callback: Submission error or ID mismatch. msg=" + error);
-				if (session.getError().type == Session.ErrorType.ERROR_BADVERSION) {
-					notifyVersionError(session.getError().message);
-				} else if (session.getError().type == Session.ErrorType.ERROR_UNAUTHORIZED) {
-					// TODO: Remove this goal from the list of Beeminder links.
-					notifyAuthorizationError(mPoint.user, mPoint.slug);
-				} else if (session.getError().type == Session.ErrorType.ERROR_NOTFOUND) {
-					// Points that did not yet make it to the server may appear
-					// as not found. Give up only after all the retries.
-				}
-				mLastError = session.getError().type;
-			}
-			mSubmitSem.release();
-			TagTime.broadcastPingUpdate( false );
-		}
+	private void notifyUnknown(long pingId) {
+		String msg = "Ping " + pingId + " may not have reached Beeminder";
+		String submsg = "Check your goals, re-edit the ping to send it again";
+		Intent intent = new Intent(this, EditPing.class);
+		intent.putExtra(PingsDbAdapter.KEY_ROWID, pingId);
+		PendingIntent ci = PendingIntent.getActivity(this, (int) pingId, intent, 0);
+		NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		Notification notif = new NotificationCompat.Builder(this).setContentTitle(msg).setContentText(submsg)
+				.setSmallIcon(R.drawable.error_ticker).setContentIntent(ci).build();
+		notif.flags |= Notification.FLAG_AUTO_CANCEL;
+		nm.notify((int) pingId, notif);
 	}
 
 	/**
-	 * This method initializes the global point object from user and slug
-	 * details associated with a goal in the Beeminder goal database. It assumes
-	 * mBeeDB is opened and ready.
+	 * This method initializes a point object from user and slug details
+	 * associated with a goal in the Beeminder goal database. It assumes mBeeDB
+	 * is opened and ready.
 	 */
-	private boolean initializePointFromGoal(long goal_id) {
+	private boolean initializePointFromGoal(Point point, long goal_id) {
 		Cursor c = mBeeDB.fetchGoal(goal_id);
-		if (c.getCount() == 0) return false;
-		mPoint.user = c.getString(1);
-		mPoint.slug = c.getString(2);
-		mPoint.requestId = null;
+		if (c.getCount() == 0) {
+			c.close();
+			return false;
+		}
+		point.goalId = goal_id;
+		point.user = c.getString(1);
+		point.slug = c.getString(2);
+		point.requestId = null;
 		c.close();
 		return true;
 	}
 
 	/**
-	 * This method initializes the global point object from an existing point in
-	 * the Beeminder goal database. It assumes mBeeDB is opened and ready.
+	 * This method initializes a point object from an existing point in the
+	 * Beeminder goal database. It assumes mBeeDB is opened and ready.
 	 */
-	private boolean initializePoint(long point_id) {
+	private boolean initializePoint(Point point, long point_id) {
 		Cursor c = mBeeDB.fetchPoint(point_id);
-		if (c.getCount() == 0) return false;
-		initializePointFromGoal(c.getLong(5));
-		mPoint.requestId = c.getString(1);
+		if (c.getCount() == 0) {
+			c.close();
+			return false;
+		}
+		boolean found = initializePointFromGoal(point, c.getLong(5));
+		point.pointId = point_id;
+		point.requestId = c.getString(1);
 		c.close();
-		return true;
+		return found;
 	}
 
 	/**
-	 * This method starts the process for creating a Beeminder point. It first
-	 * reopens a session using the Beeminder API library for the specified goal
-	 * and waits for the result. It then issues a point creation request through
-	 * the API and waits for it to finish. Called by the worker thread.
+	 * This method makes sure the client is bound to the Beeminder service,
+	 * waiting for the connection if needed. Called by the worker thread.
 	 */
-	private String createBeeminderPoint(long goal_id, double value, long time, String comment) {
-		mLastError = null;
-		if (!initializePointFromGoal(goal_id)) return null;
-		mPoint.value = value;
-		mPoint.timestamp = time;
-		mPoint.comment = comment;
-
-		if (mBeeminder != null) {
-			try {
-				if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Requesting open for " + mPoint.user + "/"
-						+ mPoint.slug);
-
-				mWaitingOpen = true;
-				mBeeminder.reopenForGoal(mPoint.user, mPoint.slug);
-
-				// if (LOCAL_LOGV) Log.v(TAG,
-				// "createBeeminderPoint: Open finished, waiting for open semaphore.");
-
-				// Try to acquire semaphore with a timeout of 2 seconds
-				boolean opened = mOpenSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
-
-				// if (LOCAL_LOGV) Log.v(TAG,
-				// "createBeeminderPoint: Open semaphore acquired:" + opened);
-
-				if (mBeeminder.getState() == Session.SessionState.OPENED) {
-
-					if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Submitting point.");
+	private boolean bindClient() {
+		if (mClient.isBound()) return true;
+		if (LOCAL_LOGV) Log.v(TAG, "bindClient: Binding to Beeminder");
+		try {
+			mClient.bind();
+			boolean bound = mClient.awaitBound(SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
+			if (LOCAL_LOGV) Log.v(TAG, "bindClient: Bound:" + bound);
+			return bound;
+		} catch (Client.ClientException e) {
+			Log.w(TAG, "bindClient: Error binding to Beeminder. msg=" + e.getMessage());
+		} catch (InterruptedException e) {
+			Log.w(TAG, "bindClient: interrupted. msg=" + e.getMessage());
+		}
+		return false;
+	}
 
-					mPoint.submissionId = mBeeminder.createPoint(mPoint.value, mPoint.timestamp, mPoint.comment);
+	/**
+	 * This method adds a point creation or deletion request to the given batch
+	 * of the client. Its response is collected by finishBatch(). Failures are
+	 * recorded on the point right away. Called by the worker thread.
+	 */
+	private void addPoint(Client.Batch batch, Point point) {
+		if (point.done) return;
+		String token = mClient.getToken(point.user, point.slug);
+		if (token == null) {
+			// The token is forgotten once Beeminder refuses it
+			Log.w(TAG, "addPoint: Unauthorized goal. Deleting link to goal " + point.goalId);
+			if (point.create) mBeeDB.deleteGoal(point.goalId);
+			notifyAuthorizationError(point.user, point.slug);
+			point.done = true;
+			point.error = Session.ErrorType.ERROR_UNAUTHORIZED;
+			return;
+		}
+		try {
+			if (point.create) point.request = batch.createPoint(point.user, point.slug, token, point.value,
+					point.timestamp, point.comment);
+			else point.request = batch.deletePoint(point.user, point.slug, token, point.requestId);
+		} catch (Client.ClientException e) {
+			Log.w(TAG, "addPoint: Error adding point. msg=" + e.getMessage());
+			point.done = true;
+			point.error = Session.ErrorType.ERROR_OPEN;
+		}
+	}
 
-					// if (LOCAL_LOGV) Log.v(TAG,
-					// "createBeeminderPoint: Submission done, waiting for point semaphore");
+	/**
+	 * This method collects the result of the request of the given point if
+	 * its response has arrived. Called by the worker thread.
+	 */
+	private void collectPoint(Point point) {
+		if (point.done || !point.request.isDone()) return;
+		point.done = true;
+		Session.ErrorType type = point.request.getErrorType();
+		if (type == Session.ErrorType.ERROR_NONE) {
+			// All is well. Record the returned request ID.
+			if (point.create) point.requestId = point.request.getRequestId();
+			return;
+		}
+		// Point submission failed. Figure out why and inform the user.
+		Log.w(TAG, "collectPoint: Submission error. msg=" + point.request.getErrorMessage());
+		if (type == Session.ErrorType.ERROR_BADVERSION) {
+			notifyVersionError(point.request.getErrorMessage());
+		}
+		point.error = type;
+	}
 
-					// Try to acquire semaphore with a timeout of 2 seconds
-					boolean submitted = mSubmitSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
+	/**
+	 * This method gives up waiting for the response to the request of the
+	 * given point, which has been cancelled. A creation may have reached
+	 * Beeminder all the same, so its outcome is left unknown rather than
+	 * risking a duplicate datapoint. A deletion simply fails and is sent
+	 * again later. Called by the worker thread.
+	 */
+	private void abandonPoint(Point point, boolean refused) {
+		point.done = true;
+		if (refused) point.error = Session.ErrorType.ERROR_UNAUTHORIZED;
+		else if (point.create) point.unknown = true;
+		else point.error = Session.ErrorType.ERROR_OTHER;
+	}
 
-					if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Submit semaphore acquired:" + submitted);
-				}
+	/**
+	 * This method waits for the responses to the points of one goal and
+	 * collects them. Responses still missing when the goal is given up are
+	 * ignored, see abandonPoint(). Called by the worker thread.
+	 */
+	private void finishGoal(GoalPoints goal) throws InterruptedException {
+		if (!goal.await()) {
+			Log.w(TAG, "finishGoal: Timed out waiting for responses for " + goal.user + "/" + goal.slug);
+		}
+		boolean refused = goal.isRefused();
+		for (Point point : goal.points) {
+			// Late responses are ignored
+			if (!point.done && point.request.cancel(false)) abandonPoint(point, refused);
+			else collectPoint(point);
+		}
+		if (refused) {
+			// TODO: Remove this goal from the list of Beeminder links.
+			notifyAuthorizationError(goal.user, goal.slug);
+		}
+	}
 
-				if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Closing session.");
+	/**
+	 * This method waits for the responses to all points sent in the current
+	 * batch, then records the results in the database. Requests of all goals
+	 * are in flight together and each goal is given up on its own once none
+	 * of its responses arrived for SEMAPHORE_TIMEOUT seconds, so the wait is
+	 * bounded by the slowest goal. Completed operations leave the outbox,
+	 * failed ones are rescheduled and creations without a response are kept
+	 * aside as OUTBOX_UNKNOWN. Called by the worker thread with mBeeDB
+	 * opened.
+	 */
+	private void finishBatch() {
+		if (mBatch.isEmpty()) return;
+		if (LOCAL_LOGV) Log.v(TAG, "finishBatch: Waiting for " + mBatch.size() + " points");
+		Map<String, GoalPoints> goals = new LinkedHashMap<String, GoalPoints>();
+		for (Point point : mBatch) {
+			String key = point.user + "/" + point.slug;
+			GoalPoints goal = goals.get(key);
+			if (goal == null) {
+				goal = new GoalPoints(point.user, point.slug);
+				goals.put(key, goal);
+			}
+			goal.points.add(point);
+		}
+		for (GoalPoints goal : goals.values()) {
+			goal.listen();
+		}
+		try {
+			// Goals progress in parallel, so waiting for them in turn costs
+			// no more than waiting for the slowest one
+			for (GoalPoints goal : goals.values()) {
+				finishGoal(goal);
+			}
+		} catch (InterruptedException e) {
+			Log.w(TAG, "finishBatch: interrupted. msg=" + e.getMessage());
+		}
+		for (Point point : mBatch) {
+			// Only left if interrupted. Late responses are ignored.
+			if (!point.done && point.request.cancel(false)) abandonPoint(point, false);
+			else collectPoint(point);
+		}
 
-				// mBeeminder.close();
-			} catch (Session.SessionException e) {
-				Log.w(TAG, "createBeeminderPoint: Error opening session or submitting point. msg=" + e.getMessage());
-				Session.SessionError err = mBeeminder.getError();
-				if (err != null && err.type == Session.ErrorType.ERROR_UNAUTHORIZED) {
-					Log.w(TAG, "createBeeminderPoint: Unauthorized goal. Deleting link to goal " + goal_id);
-					mBeeDB.deleteGoal(goal_id);
+		long now = System.currentTimeMillis() / 1000;
+		for (Point point : mBatch) {
+			if (point.unknown) {
+				Log.w(TAG, "finishBatch: No response to the submission for ping=" + point.pingId + ", goal "
+						+ point.goalId);
+				mBeeDB.setOutboxState(point.outboxId, BeeminderDbAdapter.OUTBOX_UNKNOWN);
+				notifyUnknown(point.pingId);
+				continue;
+			}
+			if (point.error == null && (!point.create || point.requestId != null)) {
+				if (point.create) {
+					long ptid = mBeeDB.createPoint(point.requestId, point.value, point.timestamp, point.comment,
+							point.goalId);
+					try {
+						mBeeDB.newPointPing(ptid, point.pingId);
+					} catch (Exception e) {
+						Log.w(TAG, "finishBatch: Could not create pair for point=" + ptid + ", ping="
+								+ point.pingId + " for goal " + point.goalId);
+					}
+				} else {
+					mBeeDB.removePoint(point.pointId);
 				}
-			} catch (InterruptedException e) {
-				Log.w(TAG, "createBeeminderPoint: interrupted. msg=" + e.getMessage());
+				mBeeDB.removeOutbox(point.outboxId);
+				continue;
 			}
 
+			int attempts = point.attempts + 1;
+			Log.w(TAG, "finishBatch: " + (point.create ? "Submission" : "Deletion") + " failed for ping="
+					+ point.pingId + ", goal " + point.goalId + ", attempt " + attempts);
+			if (!point.create && point.error == Session.ErrorType.ERROR_NOTFOUND
+					&& attempts >= MAX_NOTFOUND_ATTEMPTS) {
+				// We give up on point deletion after a number of attempts
+				// with NOTFOUND as a result.
+				Log.w(TAG, "finishBatch: Giving up on delete for " + point.user + "/" + point.slug);
+				mBeeDB.removePoint(point.pointId);
+				mBeeDB.removeOutbox(point.outboxId);
+			} else if (attempts >= MAX_ATTEMPTS) {
+				// Kept in the outbox until the ping is edited again
+				mBeeDB.setOutboxState(point.outboxId, BeeminderDbAdapter.OUTBOX_FAILED);
+				notifyForResubmit(point.pingId);
+			} else {
+				mBeeDB.rescheduleOutbox(point.outboxId, attempts, now + retryDelay(attempts));
+			}
 		}
-
-		if (mLastError != null) {
-			retryIntent();
-			return null;
-		}
-
-		return mPoint.requestId;
+		mBatch.clear();
+		TagTime.broadcastPingUpdate(false);
 	}
 
-	/** Called by the worker thread */
-	private boolean deleteBeeminderPoint(long point_id) {
-		boolean result = false;
-		mLastError = null;
-		if (!initializePoint(point_id)) return false;
-
-		if (mBeeminder != null) {
-			try {
-				if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Requesting open for " + mPoint.user + "/"
-						+ mPoint.slug);
-
-				mWaitingOpen = true;
-				mBeeminder.reopenForGoal(mPoint.user, mPoint.slug);
-
-				// if (LOCAL_LOGV) Log.v(TAG,
-				// "deleteBeeminderPoint: Open finished, waiting for open semaphore.");
-
-				// Try to acquire semaphore with a timeout of 2 seconds
-				boolean opened = mOpenSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
-
-				// if (LOCAL_LOGV) Log.v(TAG,
-				// "deleteBeeminderPoint: Open semaphore acquired:" + opened);
-
-				if (mBeeminder.getState() == Session.SessionState.OPENED) {
-
-					if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Deleting point.");
-
-					mPoint.submissionId = mBeeminder.deletePoint(mPoint.requestId);
-
-					// if (LOCAL_LOGV) Log.v(TAG,
-					// "deleteBeeminderPoint: Submission done, waiting for point semaphore");
-
-					// Try to acquire semaphore with a timeout of 2 seconds
-					boolean submitted = mSubmitSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
-					if (mLastError == null) result = true;
-
-					if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Submit semaphore acquired:" + submitted);
+	/**
+	 * Sends the operations due in the outbox, in batches of at most MAX_BATCH,
+	 * and schedules the next drain. Holds a wake lock until all responses are
+	 * in, since the service may have been started by an alarm. Called by the
+	 * worker thread.
+	 */
+	private void drainOutbox() {
+		PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+		PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "beeminderservice");
+		wl.acquire();
+		mBeeDB.openDatabase();
+		try {
+			// Batches are always finished before draining again, so anything
+			// still marked as sending was left by a process that died
+			for (long pingId : mBeeDB.resetOutboxSending())
+				notifyUnknown(pingId);
+			long now = System.currentTimeMillis() / 1000;
+			while (true) {
+				Cursor c = mBeeDB.fetchDueOutbox(now, MAX_BATCH);
+				int count = c.getCount();
+				c.moveToFirst();
+				while (!c.isAfterLast()) {
+					loadOutboxPoint(c);
+					c.moveToNext();
 				}
-
-				if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Closing session.");
-
-				// mBeeminder.close();
-			} catch (Session.SessionException e) {
-				Log.w(TAG, "deleteBeeminderPoint: Error opening session or deleting point. msg=" + e.getMessage());
-			} catch (InterruptedException e) {
-				Log.w(TAG, "deleteBeeminderPoint: interrupted. msg=" + e.getMessage());
+				c.close();
+				if (mBatch.isEmpty()) {
+					// Nothing due, or only stale entries that were dropped:
+					// don't bind to the Beeminder app for nothing
+					if (count < MAX_BATCH) break;
+					continue;
+				}
+				// Send all points in as few messages as the Beeminder app
+				// allows, then wait for the responses
+				boolean bound = bindClient();
+				Client.Batch batch = mClient.newBatch();
+				for (Point point : mBatch) {
+					if (bound) {
+						addPoint(batch, point);
+					} else {
+						point.done = true;
+						point.error = Session.ErrorType.ERROR_OPEN;
+					}
+				}
+				try {
+					batch.send();
+				} catch (Client.ClientException e) {
+					// The requests not sent have failed, see finishBatch()
+					Log.w(TAG, "drainOutbox: Error sending points. msg=" + e.getMessage());
+				}
+				finishBatch();
+				// Failed operations are rescheduled later than now, so this
+				// terminates
+				if (count < MAX_BATCH) break;
 			}
-
+			scheduleDrain();
+		} finally {
+			mBeeDB.closeDatabase();
+			wl.release();
 		}
-		if (!result) retryIntent();
+	}
 
-		return result;
+	/**
+	 * Adds the outbox operation at the current position of the cursor to the
+	 * current batch.
+	 */
+	private void loadOutboxPoint(Cursor c) {
+		long rowId = c.getLong(c.getColumnIndex(BeeminderDbAdapter.KEY_ROWID));
+		Point point = new Point();
+		point.outboxId = rowId;
+		point.create = c.getInt(c.getColumnIndex(BeeminderDbAdapter.KEY_OP)) == BeeminderDbAdapter.OUTBOX_CREATE;
+		point.pingId = c.getLong(c.getColumnIndex(BeeminderDbAdapter.KEY_PID));
+		point.attempts = c.getInt(c.getColumnIndex(BeeminderDbAdapter.KEY_ATTEMPTS));
+		boolean found;
+		if (point.create) {
+			found = initializePointFromGoal(point, c.getLong(c.getColumnIndex(BeeminderDbAdapter.KEY_GID)));
+			point.value = c.getDouble(c.getColumnIndex(BeeminderDbAdapter.KEY_VALUE));
+			point.timestamp = c.getLong(c.getColumnIndex(BeeminderDbAdapter.KEY_TIMESTAMP));
+			point.comment = c.getString(c.getColumnIndex(BeeminderDbAdapter.KEY_COMMENT));
+		} else {
+			found = initializePoint(point, c.getLong(c.getColumnIndex(BeeminderDbAdapter.KEY_POINTID)));
+		}
+		if (!found) {
+			// The goal or point went away in the meantime
+			Log.w(TAG, "loadOutboxPoint: Dropping stale outbox entry " + rowId);
+			mBeeDB.removeOutbox(rowId);
+			return;
+		}
+		mBeeDB.setOutboxState(rowId, BeeminderDbAdapter.OUTBOX_SENDING);
+		mBatch.add(point);
 	}
 
 	@Override
@@ -393,21 +599,19 @@ public class BeeminderService extends IntentService {
 
 		mBeeDB = BeeminderDbAdapter.getInstance();
 		mPingDB = PingsDbAdapter.getInstance();
-		
-		try {
-			mBeeminder = new Session(getApplicationContext());
-			mBeeminder.setStatusCallback(new SessionStatusCallback());
-			mBeeminder.setSubmissionCallback(new PointSubmissionCallback());
-		} catch (Session.SessionException e) {
-			Log.w(TAG, "onCreate: Error creating Beeminder Session: " + e.getMessage());
-			mBeeminder = null;
-		}
+		mClient = new Client(getApplicationContext());
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		mQueued.incrementAndGet();
+		return super.onStartCommand(intent, flags, startId);
 	}
 
 	@Override
 	public void onDestroy() {
 		if (LOCAL_LOGV) Log.v(TAG, "onDestroy()");
-		if (mBeeminder != null) mBeeminder.close();
+		mClient.close();
 		super.onDestroy();
 	}
 
@@ -445,8 +649,8 @@ public class BeeminderService extends IntentService {
 		return -1;
 	}
 
-	private void newPointForPing(long ping_id, long goal_id) {
-		if (LOCAL_LOGV) Log.v(TAG, "newPointForPing: Creating new point for ping " + ping_id + " and goal " + goal_id);
+	private void queueCreate(long ping_id, String tags, long goal_id) {
+		if (LOCAL_LOGV) Log.v(TAG, "queueCreate: Creating new point for ping " + ping_id + " and goal " + goal_id);
 
 		Cursor ping = mPingDB.fetchPing(ping_id);
 		int ping_idx = ping.getColumnIndex(PingsDbAdapter.KEY_PING);
@@ -456,34 +660,44 @@ public class BeeminderService extends IntentService {
 		ping.close();
 		double value = 1.0 / 60.0 * period;
 		SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
-		String comment = "TagTime ping: " + mNewTagsIn +" ["+sdf.format(new Date(time * 1000))+"]";
-
-		// Initiate creation of a Beeminder point submission. Will block until
-		// response with request ID is received
-		String req_id = createBeeminderPoint(goal_id, value, time, comment);
-
-		if (req_id != null) {
-			long ptid = mBeeDB.createPoint(req_id, value, time, comment, goal_id);
-			try {
-				mBeeDB.newPointPing(ptid, ping_id);
-			} catch (Exception e) {
-				Log.w(TAG, "newPointForPing: Could not create pair for point=" + ptid + ", ping=" + ping_id
-						+ " for goal " + goal_id);
-			}
-		} else {
-			Log.w(TAG, "newPointForPing: Beeminder submission failed for ping=" + ping_id + " to goal " + goal_id);
-		}
+		String comment = "TagTime ping: " + tags + " [" + sdf.format(new Date(time * 1000)) + "]";
+
+		mBeeDB.queueOutbox(BeeminderDbAdapter.OUTBOX_CREATE, ping_id, goal_id, -1, value, time, comment);
 	}
 
-	private long mPingId;
-	private long mPingTime;
-	private String mOldTagsIn;
-	private String mNewTagsIn;
-	private int mRetries = 0;
+	private void queueDelete(long ping_id, long point_id) {
+		if (LOCAL_LOGV) Log.v(TAG, "queueDelete: Removing point " + point_id);
 
-	/** Method to handle incoming intents within the worker thread. */
+		Cursor c = mBeeDB.fetchPoint(point_id);
+		if (c.getCount() == 0) {
+			c.close();
+			return;
+		}
+		long goal_id = c.getLong(c.getColumnIndex(BeeminderDbAdapter.KEY_GID));
+		double value = c.getDouble(c.getColumnIndex(BeeminderDbAdapter.KEY_VALUE));
+		long time = c.getLong(c.getColumnIndex(BeeminderDbAdapter.KEY_TIMESTAMP));
+		String comment = c.getString(c.getColumnIndex(BeeminderDbAdapter.KEY_COMMENT));
+		c.close();
+
+		mBeeDB.queueOutbox(BeeminderDbAdapter.OUTBOX_DELETE, ping_id, goal_id, point_id, value, time, comment);
+	}
+
+	/**
+	 * Method to handle incoming intents within the worker thread. Ping edits
+	 * only update the outbox, which is drained once no more intents are
+	 * waiting, so that the points of consecutive edits are sent back to back.
+	 */
 	@Override
 	protected void onHandleIntent(Intent intent) {
+		mQueued.decrementAndGet();
+		try {
+			handleIntent(intent);
+		} finally {
+			if (mQueued.get() <= 0) drainOutbox();
+		}
+	}
+
+	private void handleIntent(Intent intent) {
 		if (intent != null) {
 			String action = intent.getAction();
 			if (LOCAL_LOGV) Log.v(TAG, "onHandleIntent: act=" + action + ", data=" + intent.getDataString());
@@ -502,94 +716,32 @@ public class BeeminderService extends IntentService {
 					return;
 				}
 
-				mPingId = intent.getLongExtra(KEY_PID, -1);
-				mOldTagsIn = intent.getStringExtra(KEY_OLDTAGS);
-				mNewTagsIn = intent.getStringExtra(KEY_NEWTAGS);
-
-				mRetries = intent.getIntExtra(KEY_RETRIES, 0);
-				mRetries++;
+				long pingId = intent.getLongExtra(KEY_PID, -1);
+				String oldTags = intent.getStringExtra(KEY_OLDTAGS);
+				String newTags = intent.getStringExtra(KEY_NEWTAGS);
 
 				if (LOCAL_LOGV) {
 					Log.v(TAG, "onHandleIntent: =================================================");
-					Log.v(TAG, "onHandleIntent: Got ping_id=" + mPingId + ", oldtags=" + mOldTagsIn + ", newtags="
-							+ mNewTagsIn + ", attempt=" + mRetries);
+					Log.v(TAG, "onHandleIntent: Got ping_id=" + pingId + ", oldtags=" + oldTags + ", newtags="
+							+ newTags);
 				}
 
-				if (mRetries >= MAX_RETRIES) {
-					Log.w(TAG, "onHandleIntent: Exceeded maximum retries for ping " + mPingId);
-					notifyForResubmit();
-					return;
-				}
-				if (mOldTagsIn == null || mNewTagsIn == null || mPingId < 0) {
-					Log.w(TAG, "onHandleIntent: Incomplete intent! ping_id=" + mPingId + ", oldtags=" + mOldTagsIn
-							+ ", newtags=" + mNewTagsIn);
+				if (oldTags == null || newTags == null || pingId < 0) {
+					Log.w(TAG, "onHandleIntent: Incomplete intent! ping_id=" + pingId + ", oldtags=" + oldTags
+							+ ", newtags=" + newTags);
 					return;
 				}
 
 				mBeeDB.openDatabase();
 				mPingDB.openDatabase();
-
-				// Find data points that were previously generated by this ping.
-				List<Long> points = findPingPoints(mPingId);
-				Cursor pc = mPingDB.fetchPing(mPingId);
-				if (pc.getCount() == 0) {
-					Log.w(TAG, "onHandleIntent: Could not find requested ping with id " + mPingId);
-					return;
-				}
-				int idx = pc.getColumnIndex(PingsDbAdapter.KEY_PING);
-				if (idx < 0) {
-					Log.w(TAG, "onHandleIntent: Could not retrieve ping time for id " + mPingId);
-					return;
-				}
-				mPingTime = pc.getLong(idx);
-
-				// Find all goals that match the new set of tags
-				String[] newtags = mNewTagsIn.trim().split(" ");
-				Set<Long> goals = mBeeDB.findGoalsForTagNames(Arrays.asList(newtags));
-
-				// Create new data points for all goals matching the edited ping
-				// if they were not found in the database
-				for (long gid : goals) {
-					// If goal was updated later than the ping, skip this goal
-					long updated_at = mBeeDB.getGoalUpdatedAt(gid);
-					if (updated_at > mPingTime) {
-						if (LOCAL_LOGV) Log.v(TAG, "onHandleIntent: Skipping goal " + gid + " since " + updated_at
-								+ ">" + mPingTime);
-						continue;
-					}
-
-					// If we find an existing data point for this goal among
-					// points for this ping. Remove the point from the list
-					// since a point is always associated with only a single
-					// goal and ping
-					long ptid = findGoalInPoints(gid, points);
-					if (ptid >= 0) {
-						points.remove(ptid);
-						continue;
-					}
-
-					// Create a new data point for this goal together with a
-					// ping pairing
-					newPointForPing(mPingId, gid);
-				}
-
-				// Remove all points that were left unassociated with any goals
-				// that matched the new set of tags.
-				for (long ptid : points) {
-					if (LOCAL_LOGV) Log.v(TAG, "onHandleIntent: Removing point " + ptid);
-					boolean deleted = deleteBeeminderPoint(ptid);
-					if (deleted) mBeeDB.removePoint(ptid);
-					else if (mRetries >= (MAX_RETRIES - 1) && mLastError == Session.ErrorType.ERROR_NOTFOUND) {
-						// We give up on retrying point deletion after a number
-						// of retries with NOTFOUND as a result. The last retry
-						// will have gone through already
-						Log.w(TAG, "onHandleIntent: Giving up on delete for " + mPoint.user + "/" + mPoint.slug);
-						mBeeDB.removePoint(ptid);
-					}
+				try {
+					editPingPoints(pingId, newTags);
+				} finally {
+					mPingDB.closeDatabase();
+					mBeeDB.closeDatabase();
 				}
-
-				mPingDB.closeDatabase();
-				mBeeDB.closeDatabase();
+			} else if (action.equals(ACTION_DRAIN)) {
+				// Nothing to do, the outbox is drained below
 			}
 		} else {
 			Log.w(TAG, "onHandleIntent: No intent received!");
@@ -597,6 +749,82 @@ public class BeeminderService extends IntentService {
 		}
 	}
 
+	/**
+	 * Queues the point operations needed for the given ping to match its new
+	 * tags, cancelling queued operations that are no longer needed. Assumes
+	 * both databases are open.
+	 */
+	private void editPingPoints(long pingId, String tags) {
+		// Find data points that were previously generated by this ping.
+		List<Long> points = findPingPoints(pingId);
+		Cursor pc = mPingDB.fetchPing(pingId);
+		if (pc.getCount() == 0) {
+			Log.w(TAG, "onHandleIntent: Could not find requested ping with id " + pingId);
+			pc.close();
+			return;
+		}
+		int idx = pc.getColumnIndex(PingsDbAdapter.KEY_PING);
+		if (idx < 0) {
+			Log.w(TAG, "onHandleIntent: Could not retrieve ping time for id " + pingId);
+			pc.close();
+			return;
+		}
+		long pingTime = pc.getLong(idx);
+		pc.close();
+
+		// Find all goals that match the new set of tags
+		String[] newtags = tags.trim().split(" ");
+		Set<Long> goals = mBeeDB.findGoalsForTagNames(Arrays.asList(newtags));
+		Set<Long> wanted = new HashSet<Long>();
+
+		// Create new data points for all goals matching the edited ping
+		// if they were not found in the database
+		for (long gid : goals) {
+			// If goal was updated later than the ping, skip this goal
+			long updated_at = mBeeDB.getGoalUpdatedAt(gid);
+			if (updated_at > pingTime) {
+				if (LOCAL_LOGV) Log.v(TAG, "onHandleIntent: Skipping goal " + gid + " since " + updated_at + ">"
+						+ pingTime);
+				continue;
+			}
+			wanted.add(gid);
+
+			// If we find an existing data point for this goal among
+			// points for this ping. Remove the point from the list
+			// since a point is always associated with only a single
+			// goal and ping. A deletion still queued for it is cancelled.
+			long ptid = findGoalInPoints(gid, points);
+			if (ptid >= 0) {
+				points.remove(ptid);
+				mBeeDB.cancelOutbox(pingId, gid);
+				continue;
+			}
+
+			// Queue a new data point for this goal together with a
+			// ping pairing
+			queueCreate(pingId, tags, gid);
+		}
+
+		// Cancel queued creations for goals that no longer match, which
+		// have no point to remove yet
+		Cursor oc = mBeeDB.fetchPingOutbox(pingId);
+		List<Long> stale = new ArrayList<Long>();
+		oc.moveToFirst();
+		while (!oc.isAfterLast()) {
+			if (oc.getInt(1) == BeeminderDbAdapter.OUTBOX_CREATE && !wanted.contains(oc.getLong(2)))
+				stale.add(oc.getLong(0));
+			oc.moveToNext();
+		}
+		oc.close();
+		for (long id : stale)
+			mBeeDB.removeOutbox(id);
+
+		// Remove all points that were left unassociated with any goals
+		// that matched the new set of tags.
+		for (long ptid : points)
+			queueDelete(pingId, ptid);
+	}
+
 	public BeeminderService() {
 		super(TAG);
 	}
@@ -1,16 +1,348 @@
 package bsoule.tagtime;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
+/**
+ * Backs up and restores all TagTime data: the pings and Beeminder databases
+ * together with the ping schedule state (PingService.KEY_NEXT and KEY_SEED)
+ * in a single zip file. Zip entries are deflated and carry a CRC32 which is
+ * verified on restore.
+ *
+ * Database files are copied page for page while holding a transaction on
+ * them, which keeps other writers out, so the copy is consistent without
+ * dumping and re-inserting rows. A write-ahead log is checkpointed into the
+ * database file first, as the copy does not include it. A restore first
+ * extracts and checks every entry into temporary files next to the databases
+ * and only then swaps them in, so a damaged backup leaves the current data
+ * untouched. The current databases are kept aside until both swaps have
+ * succeeded and put back if either fails. Nothing else may have the
+ * databases open during the swap, so a restore fails while TagTime is
+ * using them elsewhere, e.g. syncing with Beeminder.
+ *
+ * Both operations do file I/O and must not run on the UI thread.
+ */
 public class DataBackupRestore {
 	private static final String TAG = "DataBackupRestore";
 	private static final boolean LOCAL_LOGV = false && !TagTime.DISABLE_LOGV;
 
-	public static void saveBackup( String filename ) {
-		if (LOCAL_LOGV) Log.v(TAG, "saveBackup(): "+filename);
+	private static final int FORMAT_VERSION = 1;
+
+	// Zip entry names
+	private static final String ENTRY_PINGS = "pings.db";
+	private static final String ENTRY_BEEMINDER = "beeminder.db";
+	private static final String ENTRY_STATE = "state.properties";
+
+	private static final String KEY_VERSION = "version";
+	private static final String RESTORE_SUFFIX = ".restore";
+	private static final String OLD_SUFFIX = ".old";
+
+	// Files SQLite keeps beside a database while it is open
+	private static final String[] LOG_SUFFIXES = { "-journal", "-wal", "-shm" };
+
+	// Times to try checkpointing a database that is being written to before
+	// giving up on the backup
+	private static final int CHECKPOINT_ATTEMPTS = 5;
+
+	/**
+	 * Writes a backup of all data to the given file. The backup is written
+	 * to a temporary file first and renamed when complete.
+	 */
+	public static boolean saveBackup(Context ctx, File file) {
+		if (LOCAL_LOGV) Log.v(TAG, "saveBackup(): " + file);
+		File tmp = new File(file.getPath() + ".tmp");
+		ZipOutputStream zip = null;
+		boolean ok = false;
+		try {
+			zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			// Database pages compress well, favor speed over size
+			zip.setLevel(Deflater.BEST_SPEED);
+
+			PingsDbAdapter pingsDb = PingsDbAdapter.getInstance();
+			copyDatabase(pingsDb.openDatabase(), ctx.getDatabasePath(PingsDbAdapter.DATABASE_NAME), zip,
+					ENTRY_PINGS);
+			pingsDb.closeDatabase();
+
+			BeeminderDbAdapter beeDb = BeeminderDbAdapter.getInstance();
+			copyDatabase(beeDb.openDatabase(), ctx.getDatabasePath(BeeminderDbAdapter.DATABASE_NAME), zip,
+					ENTRY_BEEMINDER);
+			beeDb.closeDatabase();
+
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+			Properties state = new Properties();
+			state.setProperty(KEY_VERSION, Integer.toString(FORMAT_VERSION));
+			if (prefs.contains(PingService.KEY_NEXT))
+				state.setProperty(PingService.KEY_NEXT, Long.toString(prefs.getLong(PingService.KEY_NEXT, -1)));
+			if (prefs.contains(PingService.KEY_SEED))
+				state.setProperty(PingService.KEY_SEED, Long.toString(prefs.getLong(PingService.KEY_SEED, -1)));
+			zip.putNextEntry(new ZipEntry(ENTRY_STATE));
+			state.store(zip, "TagTime backup");
+			zip.closeEntry();
+
+			zip.close();
+			zip = null;
+			ok = tmp.renameTo(file);
+		} catch (Exception e) {
+			Log.e(TAG, "saveBackup: " + e.getMessage());
+		} finally {
+			if (zip != null) {
+				try {
+					zip.close();
+				} catch (IOException e) {}
+			}
+			if (!ok) tmp.delete();
+		}
+		return ok;
+	}
+
+	// Copies a database file into a new zip entry, holding an exclusive
+	// transaction so that no other connection modifies it meanwhile. The
+	// write-ahead log, if any, must be empty once the transaction is held,
+	// otherwise the file misses its latest pages.
+	private static void copyDatabase(SQLiteDatabase db, File path, ZipOutputStream zip, String entry)
+			throws IOException {
+		File wal = new File(path.getPath() + "-wal");
+		for (int attempt = 1; !checkpoint(db) || !copyIfCheckpointed(db, path, wal, zip, entry); attempt++) {
+			if (attempt == CHECKPOINT_ATTEMPTS) throw new IOException("could not checkpoint " + path);
+			SystemClock.sleep(100);
+		}
+	}
+
+	// Copies the database if its write-ahead log is still empty once writers
+	// are kept out. Checkpointing is not possible within a transaction, so a
+	// write may have slipped in after checkpoint().
+	private static boolean copyIfCheckpointed(SQLiteDatabase db, File path, File wal, ZipOutputStream zip,
+			String entry) throws IOException {
+		db.beginTransaction();
+		try {
+			if (wal.length() > 0) return false;
+			zip.putNextEntry(new ZipEntry(entry));
+			InputStream in = new FileInputStream(path);
+			try {
+				copy(in, zip);
+			} finally {
+				in.close();
+			}
+			zip.closeEntry();
+			return true;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Moves everything in the write-ahead log of db, if it has one, into the
+	 * database file and truncates the log. Returns false if the log could
+	 * not be checkpointed completely, e.g. because of readers in other
+	 * connections. Must not be called within a transaction.
+	 */
+	static boolean checkpoint(SQLiteDatabase db) {
+		Cursor c = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+		try {
+			// Columns are busy, frames in the log and frames checkpointed,
+			// both -1 if the database is not in WAL mode
+			return c.moveToFirst() && c.getInt(0) == 0 && c.getInt(1) == c.getInt(2);
+		} finally {
+			c.close();
+		}
 	}
-	public static void restoreBackup( String filename ) {
-		if (LOCAL_LOGV) Log.v(TAG, "restoreBackup(): "+filename);
-		
+
+	/**
+	 * Deletes the journal and write-ahead log files of a database, which
+	 * must be closed and checkpointed.
+	 */
+	static void deleteLogs(File path) {
+		for (String suffix : LOG_SUFFIXES)
+			new File(path.getPath() + suffix).delete();
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[16384];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+	}
+
+	/**
+	 * Replaces all data with the contents of the given backup file. Returns
+	 * false without touching the current data if the backup is incomplete,
+	 * fails its checksums or holds a damaged database.
+	 */
+	public static boolean restoreBackup(Context ctx, File file) {
+		if (LOCAL_LOGV) Log.v(TAG, "restoreBackup(): " + file);
+		File pingsTmp = ctx.getDatabasePath(PingsDbAdapter.DATABASE_NAME + RESTORE_SUFFIX);
+		File beeTmp = ctx.getDatabasePath(BeeminderDbAdapter.DATABASE_NAME + RESTORE_SUFFIX);
+		Properties state = new Properties();
+		boolean hasPings = false, hasBee = false, hasState = false;
+
+		// Extract everything first. ZipInputStream checks each entry's CRC
+		// once it has been read completely.
+		ZipInputStream zip = null;
+		try {
+			zip = new ZipInputStream(new FileInputStream(file));
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (name.equals(ENTRY_PINGS)) {
+					extract(zip, pingsTmp);
+					hasPings = true;
+				} else if (name.equals(ENTRY_BEEMINDER)) {
+					extract(zip, beeTmp);
+					hasBee = true;
+				} else if (name.equals(ENTRY_STATE)) {
+					state.load(zip);
+					hasState = true;
+				}
+				zip.closeEntry();
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "restoreBackup: " + e.getMessage());
+			hasPings = false;
+		} finally {
+			if (zip != null) {
+				try {
+					zip.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		boolean ok = hasPings && hasBee && hasState && checkDatabase(pingsTmp) && checkDatabase(beeTmp);
+		// The ping schedule state is either complete or absent, and checked
+		// as well before anything is replaced
+		String nextProp = state.getProperty(PingService.KEY_NEXT);
+		String seedProp = state.getProperty(PingService.KEY_SEED);
+		long next = -1, seed = -1;
+		if (ok) {
+			try {
+				int version = Integer.parseInt(state.getProperty(KEY_VERSION, "0"));
+				if (version != FORMAT_VERSION)
+					throw new IllegalArgumentException("unsupported backup version " + version);
+				if ((nextProp == null) != (seedProp == null))
+					throw new IllegalArgumentException("incomplete ping schedule");
+				if (nextProp != null) {
+					next = Long.parseLong(nextProp);
+					seed = Long.parseLong(seedProp);
+					if (next < PingSchedule.BOT || !PingSchedule.isSeed(seed))
+						throw new IllegalArgumentException("invalid ping schedule " + next + "/" + seed);
+				}
+			} catch (IllegalArgumentException e) {
+				// Includes NumberFormatException
+				Log.e(TAG, "restoreBackup: " + e.getMessage());
+				ok = false;
+			}
+		}
+		if (!ok) {
+			pingsTmp.delete();
+			beeTmp.delete();
+			return false;
+		}
+
+		// Keep everyone else out of both databases during the swap. Tag edits
+		// still queued are written first, as they hold the pings database
+		// open while being written.
+		TaggingWriter.getInstance().flush();
+		BeeminderDbAdapter beeDb = BeeminderDbAdapter.getInstance();
+		PingsDbAdapter pingsDb = PingsDbAdapter.getInstance();
+		if (!beeDb.beginReplace()) {
+			Log.e(TAG, "restoreBackup: the Beeminder database is in use");
+			ok = false;
+		} else if (!pingsDb.beginReplace()) {
+			Log.e(TAG, "restoreBackup: the pings database is in use");
+			beeDb.endReplace();
+			ok = false;
+		}
+		if (!ok) {
+			pingsTmp.delete();
+			beeTmp.delete();
+			return false;
+		}
+
+		// Swap the databases in, keeping the current ones aside until both
+		// are in place
+		File pingsOld = ctx.getDatabasePath(PingsDbAdapter.DATABASE_NAME + OLD_SUFFIX);
+		File beeOld = ctx.getDatabasePath(BeeminderDbAdapter.DATABASE_NAME + OLD_SUFFIX);
+		try {
+			ok = beeDb.replaceDatabase(beeTmp, beeOld);
+			if (ok && !pingsDb.replaceDatabase(pingsTmp, pingsOld)) {
+				Log.e(TAG, "restoreBackup: putting the current Beeminder database back");
+				if (!beeDb.replaceDatabase(beeOld, null)) Log.e(TAG, "restoreBackup: could not roll back");
+				ok = false;
+			}
+		} finally {
+			pingsDb.endReplace();
+			beeDb.endReplace();
+		}
+		pingsTmp.delete();
+		beeTmp.delete();
+		pingsOld.delete();
+		beeOld.delete();
+		if (!ok) return false;
+
+		// A backup from an older version is upgraded when reopened
+		beeDb.openDatabase();
+		beeDb.closeDatabase();
+		pingsDb.openDatabase();
+		pingsDb.loadTagDictionary();
+		pingsDb.rebuildTagRankIfStale();
+		pingsDb.closeDatabase();
+
+		SharedPreferences.Editor ed = PreferenceManager.getDefaultSharedPreferences(ctx).edit();
+		if (nextProp != null) {
+			ed.putLong(PingService.KEY_NEXT, next);
+			ed.putLong(PingService.KEY_SEED, seed);
+		} else {
+			ed.remove(PingService.KEY_NEXT);
+			ed.remove(PingService.KEY_SEED);
+		}
+		ed.commit();
+
+		return true;
+	}
+
+	private static void extract(InputStream in, File dst) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(dst), 65536);
+		try {
+			copy(in, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	// Opens an extracted database read-only and runs SQLite's quick check.
+	private static boolean checkDatabase(File path) {
+		SQLiteDatabase db = null;
+		try {
+			db = SQLiteDatabase.openDatabase(path.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+			Cursor c = db.rawQuery("PRAGMA quick_check", null);
+			try {
+				return c.moveToFirst() && "ok".equals(c.getString(0));
+			} finally {
+				c.close();
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "checkDatabase: " + path + ": " + e.getMessage());
+			return false;
+		} finally {
+			if (db != null) db.close();
+		}
 	}
 }
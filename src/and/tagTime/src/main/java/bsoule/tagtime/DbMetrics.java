@@ -0,0 +1,197 @@
+package bsoule.tagtime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+
+/**
+ * Process-wide registry of database metrics: per-method timers with a
+ * latency histogram and row counts, and plain counters such as committed
+ * transactions. The adapters create their timers and counters once, in
+ * static fields, and report into them from every instrumented method.
+ * Reporting only updates primitive fields and does not allocate, so it stays
+ * on in release builds.
+ *
+ * A snapshot can be dumped as JSON with writeJson(), see ManageData.
+ */
+public final class DbMetrics {
+
+	/**
+	 * Number of latency buckets. Bucket 0 counts calls under 1us, bucket i
+	 * calls in [2^(i-1), 2^i) us and the last bucket everything slower.
+	 */
+	public static final int BUCKETS = 24;
+
+	private static final List<Timer> sTimers = new ArrayList<Timer>();
+	private static final List<Counter> sCounters = new ArrayList<Counter>();
+
+	private DbMetrics() {}
+
+	/** Latency and row statistics for one adapter method. */
+	public static final class Timer {
+		private final String mName;
+		private long mCount = 0;
+		private long mTotalNanos = 0;
+		private long mMaxNanos = 0;
+		private long mRows = 0;
+		private final long[] mBuckets = new long[BUCKETS];
+
+		private Timer(String name) {
+			mName = name;
+		}
+
+		/** Returns a start time to be passed to stop(). */
+		public long start() {
+			return System.nanoTime();
+		}
+
+		public void stop(long start) {
+			stop(start, 0);
+		}
+
+		/**
+		 * Records a call that started at start and returned or changed the
+		 * given number of rows.
+		 */
+		public void stop(long start, long rows) {
+			long nanos = System.nanoTime() - start;
+			int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+			if (bucket >= BUCKETS) bucket = BUCKETS - 1;
+			synchronized (this) {
+				mCount++;
+				mTotalNanos += nanos;
+				if (nanos > mMaxNanos) mMaxNanos = nanos;
+				mRows += rows;
+				mBuckets[bucket]++;
+			}
+		}
+
+		/**
+		 * Records a query that started at start. Counting the rows of the
+		 * cursor makes sure the query has actually run, so its cost is
+		 * attributed here rather than to the first caller touching the cursor.
+		 */
+		public Cursor stop(long start, Cursor c) {
+			stop(start, c.getCount());
+			return c;
+		}
+
+		/**
+		 * Records a query that started at start without counting its rows.
+		 * For queries whose results are streamed, such as exports, where
+		 * getCount() would run the whole query once more before the caller
+		 * iterates it. Only the preparation of the query is timed.
+		 */
+		public Cursor stopUncounted(long start, Cursor c) {
+			stop(start, 0);
+			return c;
+		}
+
+		// Upper bound in microseconds of the bucket holding the p-th
+		// percentile of recorded calls.
+		private long percentile(double p) {
+			long rank = (long) Math.ceil(p * mCount);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += mBuckets[i];
+				if (seen >= rank) return 1L << i;
+			}
+			return 1L << (BUCKETS - 1);
+		}
+
+		private synchronized void reset() {
+			mCount = mTotalNanos = mMaxNanos = mRows = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				mBuckets[i] = 0;
+		}
+
+		private synchronized void writeJson(Appendable out) throws IOException {
+			out.append("{\"name\":\"").append(mName).append("\",\"count\":").append(Long.toString(mCount));
+			out.append(",\"total_us\":").append(Long.toString(mTotalNanos / 1000));
+			out.append(",\"max_us\":").append(Long.toString(mMaxNanos / 1000));
+			out.append(",\"rows\":").append(Long.toString(mRows));
+			if (mCount > 0) {
+				out.append(",\"p50_us\":").append(Long.toString(percentile(0.5)));
+				out.append(",\"p90_us\":").append(Long.toString(percentile(0.9)));
+				out.append(",\"p99_us\":").append(Long.toString(percentile(0.99)));
+			}
+			out.append(",\"buckets\":[");
+			for (int i = 0; i < BUCKETS; i++) {
+				if (i > 0) out.append(',');
+				out.append(Long.toString(mBuckets[i]));
+			}
+			out.append("]}");
+		}
+	}
+
+	/** A monotonically increasing count, e.g. of committed transactions. */
+	public static final class Counter {
+		private final String mName;
+		private long mCount = 0;
+
+		private Counter(String name) {
+			mName = name;
+		}
+
+		public synchronized void add(long n) {
+			mCount += n;
+		}
+
+		public void inc() {
+			add(1);
+		}
+
+		public synchronized long get() {
+			return mCount;
+		}
+
+		private synchronized void reset() {
+			mCount = 0;
+		}
+	}
+
+	/** Registers a new timer. Call once per method, from a static initializer. */
+	public static synchronized Timer timer(String name) {
+		Timer t = new Timer(name);
+		sTimers.add(t);
+		return t;
+	}
+
+	/** Registers a new counter. Call once, from a static initializer. */
+	public static synchronized Counter counter(String name) {
+		Counter c = new Counter(name);
+		sCounters.add(c);
+		return c;
+	}
+
+	/** Clears all recorded values, keeping the registrations. */
+	public static synchronized void reset() {
+		for (Timer t : sTimers)
+			t.reset();
+		for (Counter c : sCounters)
+			c.reset();
+	}
+
+	/**
+	 * Writes a snapshot of all timers and counters, together with the
+	 * TagDictionary hit counts, as a JSON object.
+	 */
+	public static synchronized void writeJson(Appendable out) throws IOException {
+		out.append("{\"timers\":[");
+		for (int i = 0; i < sTimers.size(); i++) {
+			if (i > 0) out.append(",\n");
+			sTimers.get(i).writeJson(out);
+		}
+		out.append("],\n\"counters\":{");
+		for (int i = 0; i < sCounters.size(); i++) {
+			Counter c = sCounters.get(i);
+			if (i > 0) out.append(',');
+			out.append('"').append(c.mName).append("\":").append(Long.toString(c.get()));
+		}
+		TagDictionary dict = TagDictionary.getInstance();
+		out.append("},\n\"tag_dictionary\":{\"hits\":").append(Long.toString(dict.getHits()));
+		out.append(",\"misses\":").append(Long.toString(dict.getMisses())).append("}}\n");
+	}
+}
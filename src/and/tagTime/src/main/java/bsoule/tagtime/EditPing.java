@@ -2,8 +2,8 @@ package bsoule.tagtime;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 
@@ -12,27 +12,30 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.content.Loader;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.util.TypedValue;
-import android.view.Gravity;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
-import android.view.ViewGroup.LayoutParams;
-import android.view.ViewTreeObserver;
-import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.LinearLayout;
-import android.widget.ScrollView;
+import android.widget.MultiAutoCompleteTextView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.actionbarsherlock.app.ActionBar;
-import com.actionbarsherlock.app.SherlockActivity;
+import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.MenuItem;
 
 /* 2013.10.26 Uluc: If the activity is invoked with RowId = null, it will let the user 
@@ -48,25 +51,36 @@ import com.actionbarsherlock.view.MenuItem;
  * 
  * First type of entry retrieves the initial tag selection from the database, and all 
  * subsequent updates to the tag list are immediately reflected in the database.
+ *
+ * The ping and the tag list are read by a PingEditorLoader, with a placeholder shown
+ * until it delivers. Edits are saved through the TaggingWriter queue. Neither reads
+ * nor writes happen on the UI thread.
+ *
+ * The prev/next buttons and horizontal swipes move to the neighbouring pings by ping
+ * time, reloading the editor in place rather than starting a new activity.
  * 
  * In landscape mode, the EditText field is present. Its contents are read when the
  * confirmation button is pressed, or when saveState() is called on orientation change 
  * 
  * @formatter:on
  */
-public class EditPing extends SherlockActivity {
+public class EditPing extends SherlockFragmentActivity implements LoaderManager.LoaderCallbacks<EditPing.EditorData> {
 
 	private final static String TAG = "EditPing";
 	private static final boolean LOCAL_LOGV = true && !TagTime.DISABLE_LOGV;
 
 	public static final String KEY_TAGS = "tags";
 
+	// Loader ids
+	private static final int LOADER_EDITOR = 0;
+
 	private PingsDbAdapter mPingsDB;
-	private Cursor mTagsCursor;
+	private TaggingWriter mWriter;
+	private EditorData mData = null;
 
 	private Button mModeButton = null;
-	private ScrollView mTagScroll = null;
-	private LinearLayout mTagParent;
+	private TagFlowView mTagFlow = null;
+	private EditText mTagFilter = null;
 	private EditText mTagsEdit = null;
 	private TextView mEditTitle = null;
 	private TextView mPingTitle;
@@ -75,8 +89,6 @@ public class EditPing extends SherlockActivity {
 	private Long mRowId;
 	private int mGap;
 	private Long mPingUTC;
-	private int FIXTAGS = R.layout.tagtime_editping;
-	private ViewTreeObserver mVto;
 
 	private boolean landscape;
 	private boolean editmode; // false: tags, true: edittext
@@ -86,6 +98,116 @@ public class EditPing extends SherlockActivity {
 
 	private String mOrdering;
 
+	/** What the editor shows: the ping, its neighbours and all tags */
+	public static final class EditorData {
+		boolean found = true;
+		long ping;
+		int period;
+		/** Ids of the pings before and after this one, -1 if none */
+		long prevId = -1, nextId = -1;
+		/** Tags of the ping, null when only selecting tags */
+		List<String> tags;
+		/** All tags in display order, and their ids */
+		String[] names;
+		long[] ids;
+	}
+
+	/**
+	 * Loads the EditorData of a ping, or only the tag list if the ping id is
+	 * negative. Waits for queued edits to be written first, so that the data
+	 * includes them.
+	 */
+	public static final class PingEditorLoader extends AsyncTaskLoader<EditorData> {
+
+		private final PingsDbAdapter mHelper;
+		private final long mRowId;
+		private final String mOrdering;
+		private EditorData mResult;
+
+		public PingEditorLoader(Context context, PingsDbAdapter helper, long rowId, String ordering) {
+			super(context);
+			mHelper = helper;
+			mRowId = rowId;
+			mOrdering = ordering;
+		}
+
+		@Override
+		public EditorData loadInBackground() {
+			TaggingWriter.getInstance().flush();
+			// The activity may be destroyed, and close its reference, while
+			// we load
+			mHelper.openDatabase();
+			try {
+				return load();
+			} finally {
+				mHelper.closeDatabase();
+			}
+		}
+
+		private EditorData load() {
+			EditorData d = new EditorData();
+			if (mRowId >= 0) {
+				Cursor ping = mHelper.fetchPing(mRowId);
+				try {
+					d.found = ping.getCount() > 0;
+					if (!d.found) return d;
+					d.ping = ping.getLong(ping.getColumnIndexOrThrow(PingsDbAdapter.KEY_PING));
+					d.period = ping.getInt(ping.getColumnIndexOrThrow(PingsDbAdapter.KEY_PERIOD));
+				} finally {
+					ping.close();
+				}
+				long[] neighbors = mHelper.fetchNeighborPings(d.ping);
+				d.prevId = neighbors[0];
+				d.nextId = neighbors[1];
+				try {
+					d.tags = mHelper.fetchTagNamesForPing(mRowId);
+				} catch (Exception e) {
+					Log.i(TAG, "PingEditorLoader: could not read tags of ping " + mRowId + ": " + e.getMessage());
+					d.tags = new ArrayList<String>();
+				}
+			}
+			Cursor c = mHelper.fetchAllTags(mOrdering);
+			try {
+				int n = c.getCount();
+				d.names = new String[n];
+				d.ids = new long[n];
+				int tagIdx = c.getColumnIndex(PingsDbAdapter.KEY_TAG);
+				int idIdx = c.getColumnIndex(PingsDbAdapter.KEY_ROWID);
+				for (int i = 0; c.moveToNext(); i++) {
+					d.names[i] = c.getString(tagIdx);
+					d.ids[i] = c.getLong(idIdx);
+				}
+			} finally {
+				c.close();
+			}
+			return d;
+		}
+
+		@Override
+		public void deliverResult(EditorData data) {
+			mResult = data;
+			if (isStarted()) super.deliverResult(data);
+		}
+
+		@Override
+		protected void onStartLoading() {
+			if (mResult != null) deliverResult(mResult);
+			if (takeContentChanged() || mResult == null) forceLoad();
+		}
+
+		@Override
+		protected void onStopLoading() {
+			cancelLoad();
+		}
+
+		@Override
+		protected void onReset() {
+			super.onReset();
+			onStopLoading();
+			mResult = null;
+		}
+	}
+
 	private void showSoftKeyboard() {
 		if (getCurrentFocus() != null && getCurrentFocus() instanceof EditText) {
 			InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
@@ -106,7 +228,8 @@ public class EditPing extends SherlockActivity {
 		if (landscape) return;
 
 		if (editmode) {
-			mTagScroll.setVisibility(View.GONE);
+			mTagFlow.setVisibility(View.GONE);
+			mTagFilter.setVisibility(View.GONE);
 			mTagsEdit.setVisibility(View.VISIBLE);
 			if (mModeButton != null) mModeButton.setText(getText(R.string.editping_buttons));
 			mEditTitle.setText(getText(R.string.editping_tags_land));
@@ -114,7 +237,8 @@ public class EditPing extends SherlockActivity {
 			// showSoftKeyboard();
 		} else {
 			hideSoftKeyboard();
-			mTagScroll.setVisibility(View.VISIBLE);
+			mTagFlow.setVisibility(View.VISIBLE);
+			mTagFilter.setVisibility(View.VISIBLE);
 			mTagsEdit.setVisibility(View.GONE);
 			if (mModeButton != null) mModeButton.setText(getText(R.string.editping_keyboard));
 			mEditTitle.setText(getText(R.string.editping_tags_port));
@@ -135,22 +259,27 @@ public class EditPing extends SherlockActivity {
 		mAction.setDisplayHomeAsUpEnabled(true);
 		mAction.setIcon(R.drawable.tagtime_03);
 
-		// If rowId is supplied, that means we are editing a ping
+		// If rowId is supplied, that means we are editing a ping. It
+		// changes when navigating to other pings.
 		mRowId = getIntent().getLongExtra(PingsDbAdapter.KEY_ROWID, -1);
+		if (savedInstanceState != null) mRowId = savedInstanceState.getLong("editping_rowid", mRowId);
 
 		// Hack to figure out whether we are in landscape or portrait mode
 		View v = findViewById(R.id.editping_tagedit_landscape);
 		if (v == null) {
 			landscape = false;
-			mTagScroll = (ScrollView) findViewById(R.id.editping_tagselect);
+			mTagFlow = (TagFlowView) findViewById(R.id.editping_tagselect);
+			mTagFlow.setOnTagClickListener(mTogListener);
+			mTagFilter = (EditText) findViewById(R.id.editping_tagfilter);
 			mTagsEdit = (EditText) findViewById(R.id.editping_tagedit_portrait);
-
-			mTagParent = (LinearLayout) findViewById(R.id.lintags);
-			mVto = mTagParent.getViewTreeObserver();
+			mTagFilter.addTextChangedListener(mFilterWatcher);
 		} else {
 			landscape = true;
 			mTagsEdit = (EditText) v;
 		}
+		TagCompletionAdapter.attach((MultiAutoCompleteTextView) mTagsEdit);
+		// Build the tag prefix index before the first keystroke needs it
+		new IndexTask().execute();
 
 		// cancel the notification
 		// TODO: only cancel note if it is for same ping as we are editing
@@ -161,12 +290,8 @@ public class EditPing extends SherlockActivity {
 
 		mPingsDB = PingsDbAdapter.getInstance();
 		mPingsDB.openDatabase();
-		if (mRowId >= 0 && mPingsDB.fetchPing(mRowId).getCount() == 0) {
-			Toast.makeText(this, getText(R.string.editping_noping), Toast.LENGTH_SHORT).show();
-			finish();
-			mPingsDB.closeDatabase();
-			return;
-		}
+		mWriter = TaggingWriter.getInstance();
+		mSwipeDetector = new GestureDetector(this, mSwipeListener);
 
 		Button prevButton = (Button) findViewById(R.id.prev);
 		Button nextButton = (Button) findViewById(R.id.next);
@@ -179,19 +304,15 @@ public class EditPing extends SherlockActivity {
 			mPingTitle.setVisibility(View.GONE);
 			mEditTitle.setTextSize(TypedValue.COMPLEX_UNIT_DIP, 18);
 		} else {
-			if (mPingsDB.fetchPing(mRowId + 1).getCount() == 0) nextButton.setVisibility(View.INVISIBLE);
-			if (mPingsDB.fetchPing(mRowId - 1).getCount() == 0) prevButton.setVisibility(View.INVISIBLE);
+			showPlaceholder();
 		}
 
 		// This is the sort ordering preference for the tag list
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-		mOrdering = prefs.getString("sortOrderPref", "FREQ");
+		mOrdering = prefs.getString("sortOrderPref", "RANK");
 
 		if (LOCAL_LOGV) Log.w(TAG, "Getting Tags with order: " + mOrdering);
 
-		mTagsCursor = mPingsDB.fetchAllTags(mOrdering);
-		startManagingCursor(mTagsCursor);
-
 		String savedtags = null;
 		if (savedInstanceState != null) {
 			// Check for previously saved tag list to handle orientation change
@@ -204,8 +325,8 @@ public class EditPing extends SherlockActivity {
 			editmode = false;
 		}
 		if (savedtags != null) {
-			mCurrentTags = new ArrayList<String>(Arrays.asList(savedtags.split("\\s+")));
-			mCurrentTagString = TextUtils.join(" ", mCurrentTags);
+			mCurrentTags = TagStrings.split(savedtags);
+			mCurrentTagString = TagStrings.join(mCurrentTags);
 		}
 
 		// Set confirm button behaviour
@@ -213,9 +334,8 @@ public class EditPing extends SherlockActivity {
 		confirm.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
 				if (landscape || editmode) {
-					String[] newtagstrings = mTagsEdit.getText().toString().trim().split("\\s+");
-					mCurrentTags = new ArrayList<String>(Arrays.asList(newtagstrings));
-					mCurrentTagString = TextUtils.join(" ", mCurrentTags);
+					mCurrentTags = TagStrings.split(mTagsEdit.getText().toString());
+					mCurrentTagString = TagStrings.join(mCurrentTags);
 				}
 				finish();
 			}
@@ -226,48 +346,66 @@ public class EditPing extends SherlockActivity {
 		if (mModeButton != null) {
 			mModeButton.setOnClickListener(new OnClickListener() {
 				public void onClick(View v) {
-					saveState();
-					mTagsCursor = mPingsDB.fetchAllTags(mOrdering);
-					startManagingCursor(mTagsCursor);
+					if (mData == null) return;
+					saveState(null);
 					editmode = !editmode;
 					setEditMode();
-					populateFields();
+					// Reload the tag list to include tags typed in
+					getSupportLoaderManager().restartLoader(LOADER_EDITOR, null, EditPing.this);
 				}
 			});
 		}
+
+		// Always load afresh: data cached by the loader across a rotation
+		// predates the edits saved in onPause()
+		getSupportLoaderManager().restartLoader(LOADER_EDITOR, null, this);
+	}
+
+	public Loader<EditorData> onCreateLoader(int id, Bundle args) {
+		return new PingEditorLoader(this, mPingsDB, mRowId, mOrdering);
+	}
+
+	public void onLoadFinished(Loader<EditorData> loader, EditorData data) {
+		if (!data.found) {
+			Toast.makeText(this, getText(R.string.editping_noping), Toast.LENGTH_SHORT).show();
+			finish();
+			return;
+		}
+		// The tags of the ping are only taken from the first load, later
+		// loads are for the tag list and mCurrentTags is more recent
+		boolean first = (mData == null);
+		mData = data;
+		if (first && data.tags != null) {
+			mCurrentTags = new ArrayList<String>(data.tags);
+			mCurrentTagString = TextUtils.join(" ", mCurrentTags);
+		}
+		populateFields();
 	}
 
+	public void onLoaderReset(Loader<EditorData> loader) {}
+
 	/*
-	 * This method sets the initial title and list of tags. Called from
-	 * onResume()
+	 * This method sets the title and list of tags from the loaded data. Called
+	 * from onResume() and when the loader delivers.
 	 */
 	private void populateFields() {
+		if (mData == null) return;
 		if (mRowId >= 0) {
 			if (LOCAL_LOGV) Log.v(TAG, "populateFields: Editing ping in DB");
 
-			Cursor ping = mPingsDB.fetchPing(mRowId);
-			startManagingCursor(ping);
-			try {
-				// set ping time title
-				mPingUTC = ping.getLong(ping.getColumnIndexOrThrow(PingsDbAdapter.KEY_PING));
-				mGap = ping.getInt(ping.getColumnIndexOrThrow(PingsDbAdapter.KEY_PERIOD));
-				SimpleDateFormat SDF = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss", Locale.getDefault());
-				mPingTitle.setText(SDF.format(new Date(mPingUTC * 1000)));
-				if (mGap != 0) {
-					mPingGap.setText(getText(R.string.editping_gap).toString()
-							.replaceAll("mmm", Integer.toString(mGap)));
-				} else {
-					mPingGap.setText(getText(R.string.editping_nogap));
-				}
-				
-				// get tags from the database
-				mCurrentTags = mPingsDB.fetchTagNamesForPing(mRowId);
-				mCurrentTagString = TextUtils.join(" ", mCurrentTags);
-			} catch (Exception e) {
-				Log.i(TAG, "caught an exception in populateFields():");
-				Log.i(TAG, "    " + e.getLocalizedMessage());
-				Log.i(TAG, "    " + e.getMessage());
+			// set ping time title
+			mPingUTC = mData.ping;
+			mGap = mData.period;
+			SimpleDateFormat SDF = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss", Locale.getDefault());
+			mPingTitle.setText(SDF.format(new Date(mPingUTC * 1000)));
+			if (mGap != 0) {
+				mPingGap.setText(getText(R.string.editping_gap).toString()
+						.replaceAll("mmm", Integer.toString(mGap)));
+			} else {
+				mPingGap.setText(getText(R.string.editping_nogap));
 			}
+			findViewById(R.id.prev).setVisibility(mData.prevId >= 0 ? View.VISIBLE : View.INVISIBLE);
+			findViewById(R.id.next).setVisibility(mData.nextId >= 0 ? View.VISIBLE : View.INVISIBLE);
 		} else {
 			if (LOCAL_LOGV) Log.v(TAG, "populateFields: ROWID was null, only selecting tags");
 
@@ -287,82 +425,80 @@ public class EditPing extends SherlockActivity {
 
 	/**
 	 * This method refreshes the list of tag buttons based on the contents of
-	 * the tag database.
+	 * the tag database. Buttons are only created for the rows on screen, see
+	 * TagFlowView.
 	 */
 	private void refreshTags() {
-		mTagParent.removeAllViews();
-		mTagsCursor.moveToFirst();
-
-		LinearLayout ll = new LinearLayout(this);
-		ll.setId(FIXTAGS);
-		ll.setOrientation(1);
-		ll.setLayoutParams(new LayoutParams(LayoutParams.FILL_PARENT, LayoutParams.WRAP_CONTENT));
-		while (!mTagsCursor.isAfterLast()) {
-			String tag = mTagsCursor.getString(mTagsCursor.getColumnIndex(PingsDbAdapter.KEY_TAG));
-			long id = mTagsCursor.getLong(mTagsCursor.getColumnIndex(PingsDbAdapter.KEY_ROWID));
-			boolean on = false;
-			if (mCurrentTags != null) on = mCurrentTags.contains(tag);
-			TagToggle tog = new TagToggle(this, tag, id, on);
-			tog.setOnClickListener(mTogListener);
-			ll.addView(tog);
-
-			mTagsCursor.moveToNext();
-		}
-		mTagParent.addView(ll);
-		mVto = mTagParent.getViewTreeObserver();
-		mVto.addOnPreDrawListener(mDrawListener);
+		mTagFlow.setTags(mData.names, mData.ids);
+		mTagFlow.setCheckedTags(mCurrentTags);
+	}
+
+	/** Shown in place of the ping until the loader delivers */
+	private void showPlaceholder() {
+		findViewById(R.id.prev).setVisibility(View.INVISIBLE);
+		findViewById(R.id.next).setVisibility(View.INVISIBLE);
+		mPingTitle.setText(getText(R.string.editping_loading));
+		mPingGap.setText("");
 	}
 
 	/**
-	 * This method fixes the layout of the tag buttons to make them fit into the
-	 * screen width
+	 * Switches the editor to another ping, after submitting the edits of the
+	 * current one as finish() would.
 	 */
-	private void fixTags() {
-		LinearLayout ll = (LinearLayout) mTagParent.getChildAt(0);
-		mTagParent.removeAllViews();
-		int pwidth = mTagParent.getWidth() - 15;
-		int twidth = 0;
-		LinearLayout tagrow = new LinearLayout(this);
-		tagrow.setOrientation(0);
-		tagrow.setGravity(Gravity.CENTER_HORIZONTAL);
-		tagrow.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
-		while (ll.getChildCount() > 0) {
-			View tog = ll.getChildAt(0);
-			ll.removeViewAt(0);
-			int leftover = pwidth - twidth;
-			if (tog.getWidth() > leftover) {
-				mTagParent.addView(tagrow);
-				tagrow = new LinearLayout(this);// .removeAllViews();
-				tagrow.setOrientation(0);
-				tagrow.setGravity(Gravity.CENTER_HORIZONTAL);
-				tagrow.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
-				twidth = 0;
-			}
-			tagrow.addView(tog);
-			twidth += tog.getWidth();
-		}
-		mTagParent.addView(tagrow);
+	private void showPing(long rowId) {
+		if (rowId < 0 || mData == null) return;
+		submitPing();
+		mRowId = rowId;
+		mData = null;
+		mCurrentTags = null;
+		mCurrentTagString = "";
+		showPlaceholder();
+		getSupportLoaderManager().restartLoader(LOADER_EDITOR, null, this);
 	}
 
 	public void handlePrev(View v) {
-		Intent i = new Intent(this, EditPing.class);
-		i.putExtra(PingsDbAdapter.KEY_ROWID, mRowId - 1);
-		startActivity(i);
-		finish();
+		if (mData != null) showPing(mData.prevId);
 	}
 
 	public void handleNext(View v) {
-		Intent i = new Intent(this, EditPing.class);
-		i.putExtra(PingsDbAdapter.KEY_ROWID, mRowId + 1);
-		startActivity(i);
-		finish();
+		if (mData != null) showPing(mData.nextId);
+	}
+
+	/** Minimum horizontal distance of a swipe to another ping, in dips */
+	private static final int SWIPE_MIN_DIP = 100;
+
+	/** Swiping left goes to the next ping, swiping right to the previous */
+	private GestureDetector mSwipeDetector;
+
+	private GestureDetector.SimpleOnGestureListener mSwipeListener = new GestureDetector.SimpleOnGestureListener() {
+		@Override
+		public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+			// Text entry needs horizontal drags for selection
+			if (mRowId < 0 || mData == null || landscape || editmode || e1 == null) return false;
+			float dx = e2.getX() - e1.getX();
+			float min = SWIPE_MIN_DIP * getResources().getDisplayMetrics().density;
+			if (Math.abs(dx) < min || Math.abs(velocityX) < 2 * Math.abs(velocityY)) return false;
+			long target = (dx < 0) ? mData.nextId : mData.prevId;
+			if (target < 0) return false;
+			showPing(target);
+			return true;
+		}
+	};
+
+	@Override
+	public boolean dispatchTouchEvent(MotionEvent ev) {
+		if (mSwipeDetector.onTouchEvent(ev)) {
+			// Don't let the button under the finger take the swipe as a click
+			ev.setAction(MotionEvent.ACTION_CANCEL);
+		}
+		return super.dispatchTouchEvent(ev);
 	}
 
 	@Override
 	protected void onPause() {
 		if (LOCAL_LOGV) Log.i(TAG, "onPause()");
 		super.onPause();
-		saveState();
+		saveState(null);
 	}
 
 	@Override
@@ -370,11 +506,10 @@ public class EditPing extends SherlockActivity {
 		super.onResume();
 		if (findViewById(R.id.editping_tagedit_landscape) == null) {
 			landscape = false;
-			mTagScroll = (ScrollView) findViewById(R.id.editping_tagselect);
+			mTagFlow = (TagFlowView) findViewById(R.id.editping_tagselect);
+			mTagFlow.setOnTagClickListener(mTogListener);
+			mTagFilter = (EditText) findViewById(R.id.editping_tagfilter);
 			mTagsEdit = (EditText) findViewById(R.id.editping_tagedit_portrait);
-
-			mTagParent = (LinearLayout) findViewById(R.id.lintags);
-			mVto = mTagParent.getViewTreeObserver();
 			if (LOCAL_LOGV) Log.v(TAG, "onResume: PORTRAIT");
 		} else {
 			landscape = true;
@@ -385,29 +520,26 @@ public class EditPing extends SherlockActivity {
 	}
 
 	/**
-	 * Called from onPause(), this method saves the current tag selection into
-	 * the database, or updates the outgoing intent to include current tag
-	 * selection
+	 * Called from onPause(), this method queues the current tag selection to
+	 * be saved into the database, or updates the outgoing intent to include
+	 * current tag selection. Does nothing until the ping has been loaded.
+	 *
+	 * @param then
+	 *            Optional action to run on the writer thread once the tags of
+	 *            the ping have been saved
 	 */
-	private void saveState() {
+	private void saveState(Runnable then) {
 		if (LOCAL_LOGV) Log.v(TAG, "saveState()");
+		if (mData == null) return;
 
 		if (landscape || editmode) {
-			String[] newtagstrings = mTagsEdit.getText().toString().trim().split("\\s+");
-			mCurrentTags = new ArrayList<String>(Arrays.asList(newtagstrings));
-			mCurrentTagString = TextUtils.join(" ", mCurrentTags);
-			if (mRowId >= 0) mPingsDB.updateTaggings(mRowId, Arrays.asList(newtagstrings));
-			else {
-				for (String t : mCurrentTags) {
-					if (t.trim().length() == 0) continue;
-
-					if (LOCAL_LOGV) Log.v(TAG, "saveState: Storing tag \"" + t + "\"");
-					mPingsDB.getOrMakeNewTID(t);
-				}
-			}
+			mCurrentTags = TagStrings.split(mTagsEdit.getText().toString());
+			mCurrentTagString = TagStrings.join(mCurrentTags);
+			if (mRowId >= 0) mWriter.save(mRowId, mCurrentTags, then);
+			else mWriter.createTags(mCurrentTags);
 		} else {
 			if (mRowId >= 0) {
-				mPingsDB.updateTaggings(mRowId, mCurrentTags);
+				mWriter.save(mRowId, mCurrentTags, then);
 			} else {
 				// Nothing, onSaveInstanceState will take care of saving the
 				// current tags for orientation change
@@ -427,23 +559,47 @@ public class EditPing extends SherlockActivity {
 			resultIntent.putExtra(KEY_TAGS, mCurrentTagString);
 			setResult(RESULT_OK, resultIntent);
 
-			// Submit datapoint associated with the ping
-			if (mRowId >= 0) {
-				Intent intent = new Intent(this, BeeminderService.class);
-				intent.setAction(BeeminderService.ACTION_EDITPING);
-				intent.putExtra(BeeminderService.KEY_PID, mRowId);
-				intent.putExtra(BeeminderService.KEY_OLDTAGS, "");
-				intent.putExtra(BeeminderService.KEY_NEWTAGS, mCurrentTagString);
-				this.startService(intent);
+			// Submit datapoint associated with the ping. onPause() will
+			// queue the same tags again, which the writer coalesces.
+			if (mRowId >= 0 && mData != null) {
+				submitPing();
+				super.finish();
+				return;
 			}
 		}
 		TagTime.broadcastPingUpdate( false );
 		super.finish();
 	}
 
+	/**
+	 * Queues the current tags of the ping to be saved, then submits the
+	 * datapoints associated with the ping and broadcasts the update once the
+	 * tags are in the database.
+	 */
+	private void submitPing() {
+		if (landscape || editmode) {
+			mCurrentTagString = TagStrings.join(TagStrings.split(mTagsEdit.getText().toString()));
+		}
+		final Context ctx = getApplicationContext();
+		final long rowId = mRowId;
+		final String tags = mCurrentTagString;
+		saveState(new Runnable() {
+			public void run() {
+				Intent intent = new Intent(ctx, BeeminderService.class);
+				intent.setAction(BeeminderService.ACTION_EDITPING);
+				intent.putExtra(BeeminderService.KEY_PID, rowId);
+				intent.putExtra(BeeminderService.KEY_OLDTAGS, "");
+				intent.putExtra(BeeminderService.KEY_NEWTAGS, tags);
+				ctx.startService(intent);
+				TagTime.broadcastPingUpdate(false);
+			}
+		});
+	}
+
 	@Override
 	protected void onSaveInstanceState(Bundle outState) {
 		super.onSaveInstanceState(outState);
+		outState.putLong("editping_rowid", mRowId);
 		if (mCurrentTags != null) {
 			mCurrentTagString = TextUtils.join(" ", mCurrentTags);
 			outState.putString("editping_tagsave", mCurrentTagString);
@@ -458,13 +614,30 @@ public class EditPing extends SherlockActivity {
 		super.onDestroy();
 	}
 
-	private OnPreDrawListener mDrawListener = new OnPreDrawListener() {
-		public boolean onPreDraw() {
-			fixTags();
-			ViewTreeObserver vto = mTagParent.getViewTreeObserver();
-			vto.removeOnPreDrawListener(mDrawListener);
-			return true;
+	/** Builds the TagDictionary prefix index off the UI thread */
+	private static class IndexTask extends AsyncTask<Void, Void, Void> {
+		@Override
+		protected Void doInBackground(Void... params) {
+			TagDictionary.getInstance().buildIndex();
+			return null;
 		}
+	}
+
+	/** Restricts the tag buttons to tags starting with the filter text */
+	private TextWatcher mFilterWatcher = new TextWatcher() {
+		public void afterTextChanged(Editable s) {
+			String prefix = s.toString().trim();
+			if (prefix.length() == 0) {
+				mTagFlow.setFilter(null);
+				return;
+			}
+			TagDictionary dict = TagDictionary.getInstance();
+			mTagFlow.setFilter(new HashSet<String>(dict.complete(prefix, dict.countPrefix(prefix))));
+		}
+
+		public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+		public void onTextChanged(CharSequence s, int start, int before, int count) {}
 	};
 
 	private OnClickListener mTogListener = new OnClickListener() {
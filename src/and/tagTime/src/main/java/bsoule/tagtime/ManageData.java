@@ -1,12 +1,13 @@
 package bsoule.tagtime;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.text.SimpleDateFormat;
+import java.io.Writer;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.Locale;
 
 import android.app.AlertDialog;
@@ -17,12 +18,14 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.widget.Button;
 
 import com.actionbarsherlock.app.ActionBar;
@@ -34,7 +37,7 @@ public class ManageData extends SherlockActivity {
 	private PingsDbAdapter mDb;
 	private BeeminderDbAdapter mBeeDb;
 
-	//private static final int DIALOG_PROGRESS = 0;
+	private static final int DIALOG_PROGRESS = 0;
 	private static final int DIALOG_NOMOUNT = 1;
 	private static final int DIALOG_CANTSENDMAIL = 2;
 	private static final int DIALOG_CANTWRITEFILE = 3;
@@ -43,11 +46,15 @@ public class ManageData extends SherlockActivity {
 	private static final int DIALOG_REALLY = 6;
 	private static final int DIALOG_CLEANUP_TAGS = 7;
 	private static final String FNAME = "timepie.log";
+	private static final String METRICS_FNAME = "timepie_metrics.json";
+	// Number of pings written between progress updates
+	private static final int PROGRESS_STEP = 500;
 
 	ActionBar mAction;
 	
 	SharedPreferences mPrefs;
 	ProgressDialog mProgress;
+	ExportTask mExportTask = null;
 	
 	/** Called when the activity is first created. */
 	@Override
@@ -70,18 +77,27 @@ public class ManageData extends SherlockActivity {
 		doSD.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
 				if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-					//showDialog(DIALOG_PROGRESS);
-					writeFile(Environment.getExternalStorageDirectory(), FNAME, getLogData().toString());
-					showDialog(DIALOG_DONE);
+					startExport(false);
+				} else {
+					showDialog(DIALOG_NOMOUNT);
+				}
+			}
+		});
+		// Hidden: dumps database metrics next to the exported log
+		doSD.setOnLongClickListener(new OnLongClickListener() {
+			public boolean onLongClick(View v) {
+				if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+					dumpMetrics();
 				} else {
 					showDialog(DIALOG_NOMOUNT);
 				}
+				return true;
 			}
 		});
 		Button doEmail = (Button) findViewById(R.id.export_eml);
 		doEmail.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
-				startEmail();
+				startExport(true);
 			}
 		});
 		Button doDeleteLog = (Button) findViewById(R.id.delete_logs);
@@ -121,6 +137,8 @@ public class ManageData extends SherlockActivity {
 		String title = "";
 		String body = "";
 		switch (id) {
+		case DIALOG_PROGRESS:
+			return progressDialog();
 		case DIALOG_NOMOUNT:
 			title = "No SD card mounted!";
 			break;
@@ -165,7 +183,6 @@ public class ManageData extends SherlockActivity {
 			.setPositiveButton("Clean", new DialogInterface.OnClickListener() {
 				public void onClick(DialogInterface dialog, int which) {
 					cleanupUnusedTags();
-					showDialog(DIALOG_DONE);
 				}
 			}).create();
 		}
@@ -212,31 +229,217 @@ public class ManageData extends SherlockActivity {
 	}
 
 	private void cleanupUnusedTags() {
-		mDb.cleanupUnusedTags();
+		new CleanupTask().execute();
+	}
+
+	/** Removes unused tags in the background and reports how many went away. */
+	private class CleanupTask extends AsyncTask<Void, Void, Integer> {
+		private ProgressDialog mCleanupProgress;
+
+		@Override
+		protected void onPreExecute() {
+			// Hold our own reference in case the activity goes away
+			mDb.openDatabase();
+			mCleanupProgress = ProgressDialog.show(ManageData.this, null, "Cleaning up tags...", true, false);
+		}
+
+		@Override
+		protected Integer doInBackground(Void... params) {
+			try {
+				return mDb.cleanupUnusedTags();
+			} finally {
+				mDb.closeDatabase();
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Integer removed) {
+			if (isFinishing()) return;
+			if (mCleanupProgress.isShowing()) mCleanupProgress.dismiss();
+			String msg;
+			if (removed < 0) msg = "Could not clean up tags.";
+			else if (removed == 1) msg = "Removed 1 unused tag.";
+			else msg = "Removed " + removed + " unused tags.";
+			new AlertDialog.Builder(ManageData.this).setTitle("Done!").setMessage(msg)
+					.setPositiveButton("Ok", new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int whichButton) {}
+					}).create().show();
+		}
+	}
+
+	/** Writes a snapshot of DbMetrics to the SD card. */
+	private void dumpMetrics() {
+		File file = new File(Environment.getExternalStorageDirectory(), METRICS_FNAME);
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)));
+			try {
+				DbMetrics.writeJson(out);
+			} finally {
+				out.close();
+			}
+			Log.i(TAG, "dumpMetrics: wrote " + file.getAbsolutePath());
+			showDialog(DIALOG_DONE);
+		} catch (IOException e) {
+			Log.e(TAG, "dumpMetrics: " + e.getMessage());
+			showDialog(DIALOG_CANTWRITEFILE);
+		}
 	}
 
 	private Dialog progressDialog() {
 		mProgress = new ProgressDialog(ManageData.this);
 		mProgress.setIcon(R.drawable.alert_dialog_icon);
 		mProgress.setTitle(R.string.saving_log);
-		mProgress.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+		mProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		mProgress.setCancelable(false);
 		mProgress.setButton("Hide", new DialogInterface.OnClickListener() {
 			public void onClick(DialogInterface dialog, int which) {
-				// TODO Just make dialog go away (Do I need to do anything?)
+				// The export keeps running and reports when it is done
 			}
 		});
 		mProgress.setButton2("Cancel", new DialogInterface.OnClickListener() {
 			public void onClick(DialogInterface dialog, int which) {
-				// TODO Cancel the save	
+				if (mExportTask != null) mExportTask.cancel(false);
 			}
 		});
 		return mProgress;
 	}
 
+	/**
+	 * Starts writing the log in the background, either to the SD card or to
+	 * a private file attached to an email once the export is done.
+	 */
+	private void startExport(boolean email) {
+		if (mExportTask != null && mExportTask.getStatus() != AsyncTask.Status.FINISHED) {
+			showDialog(DIALOG_PROGRESS);
+			return;
+		}
+		mExportTask = new ExportTask(email);
+		mExportTask.execute();
+	}
+
+	/**
+	 * Writes the timepie log, one line per ping, iterating over a single
+	 * cursor joining pings with their tags and streaming lines through a
+	 * buffered writer, so memory use does not grow with the number of pings.
+	 */
+	private class ExportTask extends AsyncTask<Void, Integer, Boolean> {
+		private final boolean mEmail;
+		private File mFile;
+
+		public ExportTask(boolean email) {
+			mEmail = email;
+		}
+
+		@Override
+		protected void onPreExecute() {
+			// Hold our own reference so the database stays open if the
+			// activity goes away during the export
+			mDb.openDatabase();
+			if (mEmail) mFile = getFileStreamPath(FNAME);
+			else mFile = new File(Environment.getExternalStorageDirectory(), FNAME);
+			removeDialog(DIALOG_PROGRESS);
+			showDialog(DIALOG_PROGRESS);
+			// Until the pings are counted in the background
+			mProgress.setIndeterminate(true);
+		}
+
+		@Override
+		protected Boolean doInBackground(Void... params) {
+			Cursor pings = null;
+			Writer out = null;
+			boolean ok = false;
+			try {
+				OutputStream os;
+				if (mEmail) os = openFileOutput(FNAME, MODE_WORLD_READABLE);
+				else os = new FileOutputStream(mFile);
+				out = new BufferedWriter(new OutputStreamWriter(os), 16384);
+				publishProgress(0, (int) mDb.countPings());
+				pings = mDb.fetchPingsWithTags();
+				ok = writeLog(pings, out);
+			} catch (Exception e) {
+				Log.e(TAG, "ExportTask: " + e.getMessage());
+			} finally {
+				if (pings != null) pings.close();
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						Log.e(TAG, "ExportTask close: " + e.getMessage());
+						ok = false;
+					}
+				}
+				mDb.closeDatabase();
+			}
+			if (!ok) mFile.delete();
+			return ok;
+		}
+
+		// Writes a line per ping, grouping the consecutive rows of each ping.
+		// Returns false if the export was cancelled.
+		private boolean writeLog(Cursor pings, Writer out) throws IOException {
+			TimepieLog log = new TimepieLog(Locale.getDefault());
+			StringBuilder tags = new StringBuilder();
+			int idIdx = pings.getColumnIndexOrThrow(PingsDbAdapter.KEY_ROWID);
+			int pingIdx = pings.getColumnIndexOrThrow(PingsDbAdapter.KEY_PING);
+			int tagIdx = pings.getColumnIndexOrThrow(PingsDbAdapter.KEY_TAG);
+
+			if (pings.getCount() == 0) {
+				out.write(getString(R.string.nodata));
+				return true;
+			}
+			long lastid = -1;
+			long pt = 0;
+			int written = 0;
+			while (pings.moveToNext()) {
+				long id = pings.getLong(idIdx);
+				if (id != lastid) {
+					if (lastid != -1) {
+						log.appendLine(out, pt, tags);
+						if (++written % PROGRESS_STEP == 0) {
+							if (isCancelled()) return false;
+							publishProgress(written);
+						}
+					}
+					lastid = id;
+					pt = pings.getLong(pingIdx);
+					tags.setLength(0);
+				}
+				if (!pings.isNull(tagIdx)) tags.append(pings.getString(tagIdx)).append(' ');
+			}
+			log.appendLine(out, pt, tags);
+			publishProgress(written + 1);
+			return !isCancelled();
+		}
+
+		// Progress is the number of pings written, first published along
+		// with the total
+		@Override
+		protected void onProgressUpdate(Integer... values) {
+			if (mProgress == null) return;
+			if (values.length > 1) {
+				mProgress.setIndeterminate(false);
+				mProgress.setMax(values[1]);
+			}
+			mProgress.setProgress(values[0]);
+		}
+
+		@Override
+		protected void onCancelled() {
+			if (isFinishing()) return;
+			removeDialog(DIALOG_PROGRESS);
+		}
+
+		@Override
+		protected void onPostExecute(Boolean ok) {
+			if (isFinishing()) return;
+			removeDialog(DIALOG_PROGRESS);
+			if (!ok) showDialog(DIALOG_CANTWRITEFILE);
+			else if (mEmail) startEmail();
+			else showDialog(DIALOG_DONE);
+		}
+	}
+
 	private void startEmail() {
-		writeFileTemp(FNAME, getLogData().toString());
-		//writeFile(Environment.getExternalStorageDirectory(), FNAME, getLogData().toString());
-		
 		Intent emailIntent = new Intent(android.content.Intent.ACTION_SEND);
 		//emailIntent.putExtra(android.content.Intent.EXTRA_SUBJECT, "TESTING EMAIL");
 		emailIntent.putExtra(android.content.Intent.EXTRA_SUBJECT, "Timepie: your timepie log");
@@ -255,61 +458,6 @@ public class ManageData extends SherlockActivity {
 		}
 	}
 
-	private StringBuilder getLogData() {
-		SimpleDateFormat SDF = new SimpleDateFormat("[yyyy.MM.dd HH:mm:ss EEE]", Locale.getDefault());
-		StringBuilder log = new StringBuilder();
-
-		Cursor pings = mDb.fetchAllPings(false);
-		startManagingCursor(pings);
-		pings.moveToFirst();
-		if (pings.isAfterLast()) { return log.append(this.getString(R.string.nodata)); }
-		while (!pings.isAfterLast()) {
-			try {
-				long pt = pings.getLong(pings.getColumnIndexOrThrow(PingsDbAdapter.KEY_PING));
-				String tags = mDb.fetchTagString(pings.getLong(pings.getColumnIndexOrThrow(PingsDbAdapter.KEY_ROWID)));
-				log.append(pt+" "+tags+" "+SDF.format(new Date(pt*1000))+"\n");
-			} catch (Exception e) {
-				Log.e(TAG, "&&&&&&&&&&&& getLogString: "+e.getMessage());
-			}
-			pings.moveToNext();
-		}
-		return log;
-	}
-
-	private void writeFileTemp(String fname, String filedata) {
-		try {
-			FileOutputStream fos = this.openFileOutput(fname, MODE_WORLD_READABLE);
-			OutputStreamWriter out_stream = new OutputStreamWriter(new 
-					BufferedOutputStream(fos));
-			out_stream.write(filedata);
-			out_stream.close();
-			fos.close();
-		} catch (Exception e) {
-			showDialog(DIALOG_CANTWRITEFILE);
-		}
-	}
-
-	private void writeFile(File fpath, String fname, String filedata) {
-		try {
-			File log = new File(fpath, fname);
-			log.createNewFile();
-			FileOutputStream file_out = new FileOutputStream(log);
-			OutputStreamWriter out_stream = new OutputStreamWriter(new 
-					BufferedOutputStream(file_out));
-			try {
-				out_stream.write(filedata);
-			} catch (Exception e) {
-				Log.e(TAG,"&&&&&&&&&&&& writeFile() write: "+e.getMessage());
-				showDialog(DIALOG_CANTWRITEFILE);
-			}
-			out_stream.close();
-			file_out.close();
-		} catch (Exception e) {
-			Log.e(TAG,"&&&&&&&&&&&& writeFile() open: "+e.getMessage());
-			showDialog(DIALOG_CANTWRITEFILE);
-		}
-	}
-
 	@Override
 	protected void onDestroy() {
 		// TODO Auto-generated method stub
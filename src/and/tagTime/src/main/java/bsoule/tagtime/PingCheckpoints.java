@@ -0,0 +1,146 @@
+package bsoule.tagtime;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Periodic snapshots of the ping schedule, used to avoid walking the RNG
+ * forward from the birth of timepie every time the schedule state is lost.
+ *
+ * For each gap value, checkpoint i holds the ping time and RNG seed reached
+ * after i*INTERVAL pings starting from (BOT, INITSEED). Since the schedule is
+ * deterministic for a given gap, any walk that starts at a checkpoint with a
+ * time before t ends up at exactly the same state as a walk from the very
+ * beginning. Checkpoints are only ever appended in order, so the list for a
+ * gap is always a prefix of the full schedule.
+ */
+public class PingCheckpoints {
+
+	/** Number of pings between consecutive checkpoints */
+	public static final int INTERVAL = 1000;
+
+	private static class Index {
+		long[] times;
+		long[] seeds;
+		int count;
+
+		Index(long origin, long seed) {
+			times = new long[16];
+			seeds = new long[16];
+			times[0] = origin;
+			seeds[0] = seed;
+			count = 1;
+		}
+	}
+
+	private final long mOrigin;
+	private final long mInitSeed;
+	private final Map<Integer, Index> mIndices = new HashMap<Integer, Index>();
+	private boolean mDirty = false;
+
+	public PingCheckpoints(long origin, long initseed) {
+		mOrigin = origin;
+		mInitSeed = initseed;
+	}
+
+	private Index index(int gap) {
+		Index idx = mIndices.get(gap);
+		if (idx == null) {
+			idx = new Index(mOrigin, mInitSeed);
+			mIndices.put(gap, idx);
+		}
+		return idx;
+	}
+
+	/**
+	 * Returns the number of the latest checkpoint for the given gap whose
+	 * ping time is strictly before t. Checkpoint 0 is the origin itself and
+	 * is returned if no other checkpoint qualifies.
+	 */
+	public synchronized int floor(int gap, long t) {
+		Index idx = index(gap);
+		int lo = 0, hi = idx.count - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (idx.times[mid] < t) lo = mid;
+			else hi = mid - 1;
+		}
+		return lo;
+	}
+
+	public synchronized long getTime(int gap, int i) {
+		return index(gap).times[i];
+	}
+
+	public synchronized long getSeed(int gap, int i) {
+		return index(gap).seeds[i];
+	}
+
+	/**
+	 * Records checkpoint i for the given gap. Only the checkpoint right after
+	 * the last known one is stored, anything else is already known or would
+	 * leave a hole in the list.
+	 */
+	public synchronized void add(int gap, int i, long time, long seed) {
+		Index idx = index(gap);
+		if (i != idx.count) return;
+		if (idx.count == idx.times.length) {
+			long[] times = new long[idx.count * 2];
+			long[] seeds = new long[idx.count * 2];
+			System.arraycopy(idx.times, 0, times, 0, idx.count);
+			System.arraycopy(idx.seeds, 0, seeds, 0, idx.count);
+			idx.times = times;
+			idx.seeds = seeds;
+		}
+		idx.times[idx.count] = time;
+		idx.seeds[idx.count] = seed;
+		idx.count++;
+		mDirty = true;
+	}
+
+	/** Returns true if checkpoints were added since the last call. */
+	public synchronized boolean takeDirty() {
+		boolean dirty = mDirty;
+		mDirty = false;
+		return dirty;
+	}
+
+	/**
+	 * Serializes checkpoints for the given gap as a comma separated list of
+	 * time:seed pairs, excluding the origin.
+	 */
+	public synchronized String encode(int gap) {
+		Index idx = index(gap);
+		StringBuilder sb = new StringBuilder(idx.count * 22);
+		for (int i = 1; i < idx.count; i++) {
+			if (i > 1) sb.append(',');
+			sb.append(idx.times[i]).append(':').append(idx.seeds[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Restores checkpoints for the given gap from the output of encode().
+	 * Malformed input is ignored and leaves only the checkpoints parsed so
+	 * far, which are still a valid prefix of the schedule.
+	 */
+	public synchronized void decode(int gap, String data) {
+		if (data == null || data.length() == 0) return;
+		Index idx = index(gap);
+		if (idx.count > 1) return;
+		String[] pairs = data.split(",");
+		for (int i = 0; i < pairs.length; i++) {
+			int sep = pairs[i].indexOf(':');
+			if (sep < 0) break;
+			try {
+				long time = Long.parseLong(pairs[i].substring(0, sep));
+				long seed = Long.parseLong(pairs[i].substring(sep + 1));
+				if (time <= idx.times[idx.count - 1]) break;
+				add(gap, idx.count, time, seed);
+			} catch (NumberFormatException e) {
+				break;
+			}
+		}
+		mDirty = false;
+	}
+}
@@ -0,0 +1,228 @@
+package bsoule.tagtime;
+
+/*
+ * A position on the TagTime ping schedule: the time of a ping together with
+ * the random number generator state from which the following ping is drawn,
+ * and the gap (mean minutes between pings) used to draw it.
+ *
+ * Instances are immutable and do not depend on any Android classes, so the
+ * schedule can be computed concurrently and outside of the PingService, e.g.
+ * for forecasting or backfilling. The walks in seekBefore() and range() only
+ * manipulate primitives and do not allocate per ping. Loops that step through
+ * the schedule one ping at a time should use a Stepper rather than next(),
+ * which allocates a new instance per ping.
+ */
+public final class PingSchedule {
+
+	private static final long IA = 16807;
+	private static final long IM = 2147483647;
+	public static final long INITSEED = 11193462;
+
+	/** Start at the birth of timepie! */
+	public static final long BOT = 1184097393;
+
+	// Checkpoints shared by all schedules, see PingCheckpoints
+	private static final PingCheckpoints sCheckpoints = new PingCheckpoints(BOT, INITSEED);
+
+	private final long mTime;
+	private final long mSeed;
+	private final int mGap;
+
+	public PingSchedule(long time, long seed, int gap) {
+		mTime = time;
+		mSeed = seed;
+		mGap = gap;
+	}
+
+	/** Returns the very first ping of the schedule for the given gap. */
+	public static PingSchedule origin(int gap) {
+		return new PingSchedule(BOT, INITSEED, gap);
+	}
+
+	/** Returns the checkpoint index shared by all schedules. */
+	public static PingCheckpoints getCheckpoints() {
+		return sCheckpoints;
+	}
+
+	public long getTime() {
+		return mTime;
+	}
+
+	public long getSeed() {
+		return mSeed;
+	}
+
+	public int getGap() {
+		return mGap;
+	}
+
+	/* *********************** *
+	 * Random number generator * ***********************
+	 */
+
+	// Returns the RNG state following seed, a random integer in [1,$IM-1].
+	// (This is ran0 from Numerical Recipes and has a period of ~2 billion.)
+	public static long ran0(long seed) {
+		return IA * seed % IM;
+	}
+
+	// Returns whether seed is a state the RNG can be in.
+	public static boolean isSeed(long seed) {
+		return seed >= 1 && seed < IM;
+	}
+
+	// Returns a random number drawn from an exponential distribution with
+	// mean gap, using the U(0,1) number given by the RNG state seed. Gap is
+	// in minutes, we want seconds, so multiply by 60.
+	public static double exprand(long seed, int gap) {
+		return -1 * gap * 60 * Math.log(seed / (IM * 1.0));
+	}
+
+	// Returns the ping time following prev, drawn with the RNG state seed
+	// (which must already have been advanced with ran0).
+	public static long nextTime(long prev, long seed, int gap) {
+		return Math.max(prev + 1, Math.round(prev + exprand(seed, gap)));
+	}
+
+	/** Returns the schedule position of the ping following this one. */
+	public PingSchedule next() {
+		long seed = ran0(mSeed);
+		return new PingSchedule(nextTime(mTime, seed, mGap), seed, mGap);
+	}
+
+	/** Returns a mutable cursor starting at this position. */
+	public Stepper stepper() {
+		return new Stepper(mTime, mSeed, mGap);
+	}
+
+	/** Returns the same position on the schedule, drawing later pings with a different gap. */
+	public PingSchedule withGap(int gap) {
+		return new PingSchedule(mTime, mSeed, gap);
+	}
+
+	/**
+	 * Returns the position of the last scheduled ping before time t, so that
+	 * next() yields the first ping at or after t. Starts from this position
+	 * if it is before t, otherwise from the latest checkpoint before t,
+	 * whichever is later.
+	 */
+	public PingSchedule seekBefore(long t) {
+		int cp = sCheckpoints.floor(mGap, t);
+		long nxt = sCheckpoints.getTime(mGap, cp);
+		long seed = sCheckpoints.getSeed(mGap, cp);
+		// Checkpoints can only be recorded when the walk starts at one
+		boolean record = true;
+		if (mTime < t && mTime > nxt) {
+			nxt = mTime;
+			seed = mSeed;
+			record = false;
+		}
+		if (nxt >= t) return (nxt == mTime && seed == mSeed) ? this : new PingSchedule(nxt, seed, mGap);
+
+		long lst = nxt;
+		long lstseed = seed;
+		int steps = 0;
+		while (nxt < t) {
+			lst = nxt;
+			lstseed = seed;
+			seed = ran0(seed);
+			nxt = nextTime(nxt, seed, mGap);
+			if (record && ++steps == PingCheckpoints.INTERVAL) {
+				sCheckpoints.add(mGap, ++cp, nxt, seed);
+				steps = 0;
+			}
+		}
+		return new PingSchedule(lst, lstseed, mGap);
+	}
+
+	/**
+	 * Returns the times of all scheduled pings in [from, to), in increasing
+	 * order. If this position is before from, the walk starts here, otherwise
+	 * the schedule is first searched for the last ping before from.
+	 */
+	public long[] range(long from, long to) {
+		PingSchedule start = (mTime < from) ? this : seekBefore(from);
+		long nxt = start.mTime;
+		long seed = start.mSeed;
+		long[] times = new long[16];
+		int count = 0;
+		while (nxt < to) {
+			if (nxt >= from) {
+				if (count == times.length) {
+					long[] grown = new long[count * 2];
+					System.arraycopy(times, 0, grown, 0, count);
+					times = grown;
+				}
+				times[count++] = nxt;
+			}
+			seed = ran0(seed);
+			nxt = nextTime(nxt, seed, mGap);
+		}
+		long[] result = new long[count];
+		System.arraycopy(times, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Mutable position on the ping schedule, for loops that walk the
+	 * schedule ping by ping. step() advances in place and does not allocate.
+	 * Not thread-safe.
+	 */
+	public static final class Stepper {
+		private long mTime;
+		private long mSeed;
+		private final int mGap;
+
+		public Stepper(long time, long seed, int gap) {
+			mTime = time;
+			mSeed = seed;
+			mGap = gap;
+		}
+
+		public long getTime() {
+			return mTime;
+		}
+
+		public long getSeed() {
+			return mSeed;
+		}
+
+		public int getGap() {
+			return mGap;
+		}
+
+		/** Advances to the following ping and returns its time. */
+		public long step() {
+			mSeed = ran0(mSeed);
+			mTime = nextTime(mTime, mSeed, mGap);
+			return mTime;
+		}
+
+		/** Moves to the given time, keeping the RNG state. */
+		public void setTime(long time) {
+			mTime = time;
+		}
+
+		/** Returns the current position as an immutable value. */
+		public PingSchedule toSchedule() {
+			return new PingSchedule(mTime, mSeed, mGap);
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof PingSchedule)) return false;
+		PingSchedule s = (PingSchedule) o;
+		return s.mTime == mTime && s.mSeed == mSeed && s.mGap == mGap;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (mTime ^ (mTime >>> 32)) * 31 + (int) (mSeed ^ (mSeed >>> 32)) * 17 + mGap;
+	}
+
+	@Override
+	public String toString() {
+		return "PingSchedule(" + mTime + ", " + mSeed + ", " + mGap + ")";
+	}
+}
@@ -8,7 +8,6 @@ import android.app.Service;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Binder;
@@ -49,13 +48,14 @@ public class PingService extends Service {
 
 	public static final String KEY_NEXT = "nextping";
 	public static final String KEY_SEED = "RNG_seed";
+
+	// separate preference file holding the ping schedule checkpoints, so
+	// that they survive data deletion
+	private static final String CHECKPOINT_PREFS = "bsoule.tagtime.checkpoints";
+	private static final String KEY_CHECKPOINTS = "gap_";
 	private boolean mNotify;
 	private int mGap;
 
-	// seed is a variable that is really the state of the RNG.
-	private static long SEED;
-	private static long NEXT;
-
 	private static final long RETROTHRESH = 60;
 
 	public static PingService getInstance() {
@@ -77,8 +77,9 @@ public class PingService extends Service {
 		mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
 		mNotify = mPrefs.getBoolean(TPController.KEY_RUNNING, true);
 
-		NEXT = mPrefs.getLong(KEY_NEXT, -1);
-		SEED = mPrefs.getLong(KEY_SEED, -1);
+		long next = mPrefs.getLong(KEY_NEXT, -1);
+		// seed is really the state of the RNG.
+		long seed = mPrefs.getLong(KEY_SEED, -1);
 
 		try {
 			mGap = Integer.parseInt(mPrefs.getString("pingGap", "45"));
@@ -88,11 +89,11 @@ public class PingService extends Service {
 		}
 
 		// First do a quick check to see if next ping is still in the future...
-		if (NEXT > launchTime) {
+		if (next > launchTime) {
 			// note: if we already set an alarm for this ping, it's
 			// no big deal because this set will cancel the old one
 			// ie the system enforces only one alarm at a time per setter
-			setAlarm(NEXT);
+			setAlarm(next);
 			wl.release();
 			this.stopSelf();
 			return;
@@ -100,8 +101,14 @@ public class PingService extends Service {
 
 		// If we make it here then it's time to do something
 		// ---------------------
-		if (NEXT == -1 || SEED == -1) { // then need to recalc from beg.
-			NEXT = nextping(prevping(launchTime, mGap), mGap);
+		PingSchedule.Stepper sched;
+		if (next == -1 || seed == -1) { // then need to recalc from beg.
+			loadCheckpoints(mGap);
+			sched = prevping(launchTime, mGap).stepper();
+			nextping(sched);
+			saveCheckpoints(mGap);
+		} else {
+			sched = new PingSchedule.Stepper(next, seed, mGap);
 		}
 
 		pingsDB = PingsDbAdapter.getInstance();
@@ -109,36 +116,63 @@ public class PingService extends Service {
 
 		// First, if we missed any pings by more than $retrothresh seconds for
 		// no
-		// apparent reason, then assume the computer was off and auto-log them.
-		while (NEXT < launchTime - RETROTHRESH) {
-			logPing(NEXT, "", Arrays.asList(new String[] { "OFF" }));
-			NEXT = nextping(NEXT, mGap);
+		// apparent reason, then assume the computer was off and auto-log them
+		// all at once.
+		long[] missed = new long[16];
+		int nmissed = 0;
+		while (sched.getTime() < launchTime - RETROTHRESH) {
+			if (nmissed == missed.length) {
+				long[] grown = new long[nmissed * 2];
+				System.arraycopy(missed, 0, grown, 0, nmissed);
+				missed = grown;
+			}
+			missed[nmissed++] = sched.getTime();
+			nextping(sched);
+		}
+		if (nmissed > 0) {
+			if (LOCAL_LOGV) Log.v(TAG, "onCreate: backfilling " + nmissed + " missed pings");
+			pingsDB.createPings(missed, nmissed, "OFF", mGap);
 		}
 		// Next, ping for any pings in the last retrothresh seconds.
 		do {
-			while (NEXT <= now()) {
-				if (NEXT < now() - RETROTHRESH) {
-					logPing(NEXT, "", Arrays.asList(new String[] { "OFF" }));
+			while (sched.getTime() <= now()) {
+				if (sched.getTime() < now() - RETROTHRESH) {
+					logPing(sched.getTime(), "", Arrays.asList(new String[] { "OFF" }));
 				} else {
 					String tag = (mNotify) ? "" : "OFF";
-					long rowID = logPing(NEXT, "", Arrays.asList(new String[] { tag }));
-					sendNote(NEXT, rowID);
+					long rowID = logPing(sched.getTime(), "", Arrays.asList(new String[] { tag }));
+					sendNote(sched.getTime(), rowID);
 				}
-				NEXT = nextping(NEXT, mGap);
+				nextping(sched);
 			}
-		} while (NEXT <= now());
+		} while (sched.getTime() <= now());
 
 		SharedPreferences.Editor editor = mPrefs.edit();
-		editor.putLong(KEY_NEXT, NEXT);
-		editor.putLong(KEY_SEED, SEED);
+		editor.putLong(KEY_NEXT, sched.getTime());
+		editor.putLong(KEY_SEED, sched.getSeed());
 		editor.commit();
 
-		setAlarm(NEXT);
+		setAlarm(sched.getTime());
 		pingsDB.closeDatabase();
 		wl.release();
 		this.stopSelf();
 	}
 
+	/** Loads persisted schedule checkpoints for the given gap, if not already loaded. */
+	private void loadCheckpoints(int gap) {
+		SharedPreferences cp = getSharedPreferences(CHECKPOINT_PREFS, MODE_PRIVATE);
+		PingSchedule.getCheckpoints().decode(gap, cp.getString(KEY_CHECKPOINTS + gap, null));
+	}
+
+	/** Persists schedule checkpoints for the given gap if new ones were found. */
+	private void saveCheckpoints(int gap) {
+		PingCheckpoints checkpoints = PingSchedule.getCheckpoints();
+		if (!checkpoints.takeDirty()) return;
+		SharedPreferences.Editor editor = getSharedPreferences(CHECKPOINT_PREFS, MODE_PRIVATE).edit();
+		editor.putString(KEY_CHECKPOINTS + gap, checkpoints.encode(gap));
+		editor.commit();
+	}
+
 	private long logPing(long time, String notes, List<String> tags) {
 		if (LOCAL_LOGV) Log.v(TAG, "logPing(" + tags + ")");
 		return pingsDB.createPing(time, notes, tags, mGap);
@@ -174,7 +208,7 @@ public class PingService extends Service {
 						.setContentIntent(contentIntent)
 						.setWhen(ping.getTime());
 
-		addTagActions(noteBuilder, rowID);
+		addTagActions(noteBuilder, rowID, pingtime);
 
 		// Set the info for the views that show in the notification panel.
 		// note.setLatestEventInfo(context, contentTitle, contentText,
@@ -263,25 +297,21 @@ public class PingService extends Service {
 	}
 
 	/**
-	 * Add an action to a notification for each tag in the database. Handles
-	 * opening/closing DB too.
+	 * Add an action to a notification for each of the tags most likely to be
+	 * used for the ping, given its time of day and recent tag use (see
+	 * PingsDbAdapter.fetchTopTags). Handles opening/closing DB too.
 	 *
 	 * @param noteBuilder the builder that will create the notification
 	 * @param rowId the ID of the ping that caused the notification
+	 * @param pingtime the time of the ping
 	 */
-	private void addTagActions(NotificationCompat.Builder noteBuilder, long rowId) {
+	private void addTagActions(NotificationCompat.Builder noteBuilder, long rowId, long pingtime) {
 		pingsDB = PingsDbAdapter.getInstance();
 		pingsDB.openDatabase();
-		Cursor cursor = pingsDB.fetchAllTags("FREQ");
-		cursor.moveToFirst();
-		int countActions = 0;
-		while (!cursor.isAfterLast() && countActions++ < 3) {
-			int index = cursor.getColumnIndex(PingsDbAdapter.KEY_TAG);
-			String name = cursor.getString(index);
+		for (String name : pingsDB.fetchTopTags(pingtime, 3)) {
 			PendingIntent pendingIntent = createBroadcastPendingIntent(rowId, name);
 			noteBuilder.addAction(0, name, pendingIntent)
 					.setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
-			cursor.moveToNext();
 		}
 		pingsDB.closeDatabase();
 	}
@@ -304,59 +334,32 @@ public class PingService extends Service {
 		}
 	}
 
-	private static final long IA = 16807;
-	private static final long IM = 2147483647;
-	private static final long INITSEED = 11193462;
+	/* ******************************************************** *
+	 * Ping schedule, see PingSchedule for the actual generator *
+	 * ******************************************************** */
 
-	/* *********************** *
-	 * Random number generator * ***********************
-	 */
+	private static final int TUES = 1261198800; // some random time more recent than that..
 
-	// Returns a random integer in [1,$IM-1]; changes $seed, ie, RNG state.
-	// (This is ran0 from Numerical Recipes and has a period of ~2 billion.)
-	private static long ran0() {
-		SEED = IA * SEED % IM;
-		return SEED;
+	// Advances sched from the previous ping to the next one (unix time). In
+	// debug mode, pings come every minute and the RNG state is left alone.
+	private static void nextping(PingSchedule.Stepper sched) {
+		if (TPController.DEBUG) sched.setTime(now() + 60);
+		else sched.step();
 	}
 
-	// Returns a U(0,1) random number.
-	private static double ran01() {
-		return ran0() / (IM * 1.0);
-	}
-
-	// Returns a random number drawn from an exponential
-	// distribution with mean gap. Gap is in minutes, we
-	// want seconds, so multiply by 60.
-	public static double exprand(int gap) {
-		return -1 * gap * 60 * Math.log(ran01());
-	}
-
-	// Takes previous ping time, returns random next ping time (unix time).
-	// NB: this has the side effect of changing the RNG state ($seed)
-	// and so should only be called once per next ping to calculate,
-	// after calling prevping.
-	public static long nextping(long prev, int gap) {
-		if (TPController.DEBUG) return now() + 60;
-		return Math.max(prev + 1, Math.round(prev + exprand(gap)));
-	}
-
-	// Computes the last scheduled ping time before time t.
-	public static long prevping(long t, int gap) {
-		SEED = INITSEED;
-		// Starting at the beginning of time, walk forward computing next pings
-		// until the next ping is >= t.
-		final int TUES = 1261198800; // some random time more recent than that..
-		final int BOT = 1184097393; // start at the birth of timepie!
-		long nxt = TPController.DEBUG ? TUES : BOT;
-		long lst = nxt;
-		long lstseed = SEED;
-		while (nxt < t) {
-			lst = nxt;
-			lstseed = SEED;
-			nxt = nextping(nxt, gap);
+	// Computes the last scheduled ping before time t.
+	private static PingSchedule prevping(long t, int gap) {
+		if (TPController.DEBUG) {
+			// Walk the debug schedule, one ping a minute from now on,
+			// starting at TUES
+			long nxt = TUES, lst = nxt;
+			while (nxt < t) {
+				lst = nxt;
+				nxt = now() + 60;
+			}
+			return new PingSchedule(lst, PingSchedule.INITSEED, gap);
 		}
-		SEED = lstseed;
-		return lst;
+		return PingSchedule.origin(gap).seekBefore(t);
 	}
 
 	@Override
@@ -1,15 +1,28 @@
 package bsoule.tagtime;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class PingsDbAdapter {
@@ -19,6 +32,8 @@ public class PingsDbAdapter {
 	// Private members to handle the Singleton pattern
     private static PingsDbAdapter instance;
 	private static DatabaseHelper mDbHelper = null;
+	private static String mDatabasePath = null;
+	private static String mBeeminderPath = null;
 	protected PingsDbAdapter() {}
 
 	/** This singleton initialization method should be called from Application::onCreate()*/
@@ -26,6 +41,8 @@ public class PingsDbAdapter {
         if (instance == null) {
             instance = new PingsDbAdapter();
     		if (mDbHelper == null) mDbHelper = new DatabaseHelper(ctx);
+    		mDatabasePath = ctx.getDatabasePath(DATABASE_NAME).getPath();
+    		mBeeminderPath = ctx.getDatabasePath(BeeminderDbAdapter.DATABASE_NAME).getPath();
         }
     }
 
@@ -40,19 +57,118 @@ public class PingsDbAdapter {
 	// Private members to handle the database reference counter
 	private SQLiteDatabase mDb = null;
 	private AtomicInteger mOpenCounter = new AtomicInteger();
+	// Set while the database file is being replaced, see beginReplace()
+	private boolean mReplacing = false;
+	// The Beeminder database is only attached to mDb while mAttachLock is
+	// held, see attachBeeminder(). mBeeminderCreated records that its tables
+	// exist.
+	private final Lock mAttachLock = new ReentrantLock();
+	private boolean mBeeminderCreated = false;
 	public synchronized SQLiteDatabase openDatabase() throws SQLException {
+		boolean interrupted = false;
+		while (mReplacing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
         if(mOpenCounter.incrementAndGet() == 1) {
     		mDb = mDbHelper.getWritableDatabase();
         }
 		return mDb;
 	}
 
+	/**
+	 * Attaches the Beeminder link database to our connection under the name
+	 * BEEMINDER_DB, so that queries can join pings and tags with goals and
+	 * points. The Beeminder database is opened through its own adapter the
+	 * first time to make sure its tables exist.
+	 * 
+	 * Must be called with mAttachLock held, outside of any transaction, and
+	 * followed by detachBeeminder() once the queries are done. A transaction
+	 * locks every database attached to the connection, so keeping the
+	 * Beeminder database attached would have every write to the pings lock
+	 * out the Beeminder adapter as well.
+	 * 
+	 * @return whether the database was attached. If not, queries that need
+	 *         the Beeminder tables leave them out or fail, see
+	 *         fetchPingRows() and cleanupUnusedTags().
+	 */
+	private boolean attachBeeminder() {
+		try {
+			if (!mBeeminderCreated) {
+				BeeminderDbAdapter bdb = BeeminderDbAdapter.getInstance();
+				bdb.openDatabase();
+				bdb.closeDatabase();
+				mBeeminderCreated = true;
+			}
+			mDb.execSQL("ATTACH DATABASE ? AS " + BEEMINDER_DB, new Object[] { mBeeminderPath });
+			return true;
+		} catch (SQLException e) {
+			Log.e(TAG, "attachBeeminder: could not attach " + mBeeminderPath + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void detachBeeminder() {
+		try {
+			mDb.execSQL("DETACH DATABASE " + BEEMINDER_DB);
+		} catch (SQLException e) {
+			Log.e(TAG, "detachBeeminder: could not detach: " + e.getMessage());
+		}
+	}
+
 	public void closeDatabase() {
         if(mOpenCounter.decrementAndGet() == 0) {
             mDbHelper.close();
             mDb = null;
         }
 	}
+
+	/**
+	 * Keeps the database from being opened until endReplace() is called, so
+	 * that its file can be replaced with replaceDatabase(). Callers of
+	 * openDatabase() wait meanwhile. Fails, changing nothing, if the
+	 * database is open: its users could still be using the connection that
+	 * replaceDatabase() closes.
+	 */
+	public synchronized boolean beginReplace() {
+		if (mOpenCounter.get() > 0) return false;
+		mReplacing = true;
+		return true;
+	}
+
+	/** Lets the database be opened again after beginReplace(). */
+	public synchronized void endReplace() {
+		mReplacing = false;
+		notifyAll();
+	}
+
+	/**
+	 * Replaces the database file with src, which must be a valid pings
+	 * database on the same filesystem (see DataBackupRestore). The current
+	 * file is moved to old, unless old is null, so that the swap can be
+	 * undone. If the swap fails, the current file stays in place. Must be
+	 * called between beginReplace() and endReplace().
+	 */
+	public synchronized boolean replaceDatabase(File src, File old) {
+		if (!mReplacing) throw new IllegalStateException("replaceDatabase: call beginReplace() first");
+		mDbHelper.close();
+		// The old connection was closed cleanly, any journal or log left is
+		// stale and must not be applied to the new file
+		File path = new File(mDatabasePath);
+		DataBackupRestore.deleteLogs(path);
+		boolean ok = old == null || path.renameTo(old);
+		if (ok && !src.renameTo(path)) {
+			if (old != null) old.renameTo(path);
+			ok = false;
+		}
+		if (!ok) Log.e(TAG, "replaceDatabase: could not rename " + src);
+		TagDictionary.getInstance().invalidate();
+		return ok;
+	}
     
 	// Column name for ID fields 
 	public static final String KEY_ROWID = "_id";
@@ -68,32 +184,260 @@ public class PingsDbAdapter {
 	public static final String KEY_TAGPING = "tag_ping";
 	public static final String KEY_PID = "ping_id";
 	public static final String KEY_TID = "tag_id";
+	// Computed columns for ping log rows
+	public static final String KEY_TAGS = "tags";
+	public static final String KEY_POINTS = "points";
+	public static final String KEY_GOALS = "goals";
+	// Computed columns for the ping month index
+	public static final String KEY_MONTH = "month";
+	public static final String KEY_COUNT = "count";
+	public static final String KEY_LAST = "last";
 
 	/* ****** SQL statements for database creation. ****** */
 
+	// Schema statements, table names and queries are package-private for
+	// QueryPlanTest, which checks the plans of the adapter queries.
+
 	// a ping is a timestamp with optional notes
-	private static final String CREATE_PINGS = "create table pings (_id integer primary key autoincrement, "
+	static final String CREATE_PINGS = "create table pings (_id integer primary key autoincrement, "
 			+ "ping long not null, notes text, period integer not null, UNIQUE(ping));";
 	// a tag is just a string (no spaces)
-	private static final String CREATE_TAGS = "create table tags (_id integer primary key autoincrement, "
+	static final String CREATE_TAGS = "create table tags (_id integer primary key autoincrement, "
 			+ "tag text not null, used_cache integer, UNIQUE (tag));";
 	// a tagging is a ping and a tag
-	private static final String CREATE_TAGPINGS = "create table tag_ping (_id integer primary key autoincrement, "
+	static final String CREATE_TAGPINGS = "create table tag_ping (_id integer primary key autoincrement, "
 			+ "ping_id integer not null, tag_id integer not null," + "UNIQUE (ping_id, tag_id));";
 
+	/* ****** Triggers, see DATABASE_VERSION 8 ****** */
+
+	// Tag usage counts (used_cache) follow inserts and deletes of taggings
+	static final String CREATE_TAGPINGS_INSERT_TRIGGER = "create trigger if not exists tag_ping_insert_cache "
+			+ "after insert on tag_ping begin update tags set used_cache = coalesce(used_cache, 0) + 1 "
+			+ "where _id = new.tag_id; end;";
+	static final String CREATE_TAGPINGS_DELETE_TRIGGER = "create trigger if not exists tag_ping_delete_cache "
+			+ "after delete on tag_ping begin update tags set used_cache = coalesce(used_cache, 0) - 1 "
+			+ "where _id = old.tag_id; end;";
+	// Recounts usage counts that differ from the actual number of taggings
+	static final String RECOUNT_TAG_CACHES = "update tags set used_cache = "
+			+ "(select count(*) from tag_ping where tag_id = tags._id) "
+			+ "where used_cache is not (select count(*) from tag_ping where tag_id = tags._id);";
+
+	/* ****** Tag ranking, see DATABASE_VERSION 9 and TagRanking ****** */
+
+	// Recency-weighted log score of each tag, per time-of-day bucket and
+	// over the whole day (TagRanking.GLOBAL). Tags without taggings in a
+	// bucket have no row for it.
+	static final String CREATE_TAGRANK = "create table if not exists tag_rank (tag_id integer not null, "
+			+ "bucket integer not null, score real not null, PRIMARY KEY (tag_id, bucket));";
+	// Top tags of a bucket, read in index order
+	static final String CREATE_TAGRANK_INDEX = "create index if not exists tag_rank_bucket_idx "
+			+ "on tag_rank (bucket, score);";
+
+	/* ****** Secondary indexes, see DATABASE_VERSION 7 ****** */
+
+	// Lookups of taggings by tag (cache counts, cleanup, goal matching). The
+	// UNIQUE constraint above only covers lookups by ping.
+	static final String CREATE_TAGPINGS_TAG_INDEX = "create index if not exists tag_ping_tag_idx "
+			+ "on tag_ping (tag_id, ping_id);";
+	// Tag lists sorted by frequency
+	static final String CREATE_TAGS_USED_INDEX = "create index if not exists tags_used_idx "
+			+ "on tags (used_cache);";
+
 	/* ****** Database and table names ****** */
 	
-	private static final String DATABASE_NAME = "timepiedata";
-	private static final String PINGS_TABLE = "pings";
-	private static final String TAGS_TABLE = "tags";
-	private static final String TAG_PING_TABLE = "tag_ping";
-	private static final int DATABASE_VERSION = 6;
+	static final String DATABASE_NAME = "timepiedata";
+	static final String PINGS_TABLE = "pings";
+	static final String TAGS_TABLE = "tags";
+	static final String TAG_PING_TABLE = "tag_ping";
+	static final String TAG_RANK_TABLE = "tag_rank";
+	private static final int DATABASE_VERSION = 9;
+
+	// Preference set while the tag ranking has to be rebuilt
+	private static final String KEY_RANK_STALE = "tagRankStale";
+
+	/* ****** Metrics, see DbMetrics ****** */
+
+	private static final DbMetrics.Timer T_LOAD_DICTIONARY = DbMetrics.timer("pings.loadTagDictionary");
+	private static final DbMetrics.Timer T_CREATE_PING = DbMetrics.timer("pings.createPing");
+	private static final DbMetrics.Timer T_CREATE_PINGS = DbMetrics.timer("pings.createPings");
+	private static final DbMetrics.Timer T_DELETE_PING = DbMetrics.timer("pings.deletePing");
+	private static final DbMetrics.Timer T_FETCH_ALL_PINGS = DbMetrics.timer("pings.fetchAllPings");
+	private static final DbMetrics.Timer T_FETCH_PING_ROWS = DbMetrics.timer("pings.fetchPingRows");
+	private static final DbMetrics.Timer T_FETCH_PING_MONTHS = DbMetrics.timer("pings.fetchPingMonths");
+	private static final DbMetrics.Timer T_FETCH_PINGS_WITH_TAGS = DbMetrics.timer("pings.fetchPingsWithTags");
+	private static final DbMetrics.Timer T_UPDATE_PING = DbMetrics.timer("pings.updatePing");
+	private static final DbMetrics.Timer T_NEW_TAG = DbMetrics.timer("pings.newTag");
+	private static final DbMetrics.Timer T_GET_TAG_NAME = DbMetrics.timer("pings.getTagName");
+	private static final DbMetrics.Timer T_GET_TID = DbMetrics.timer("pings.getTID");
+	private static final DbMetrics.Timer T_FETCH_ALL_TAGS = DbMetrics.timer("pings.fetchAllTags");
+	private static final DbMetrics.Timer T_FETCH_TOP_TAGS = DbMetrics.timer("pings.fetchTopTags");
+	private static final DbMetrics.Timer T_UPDATE_TAG = DbMetrics.timer("pings.updateTag");
+	private static final DbMetrics.Timer T_FETCH_TAGGINGS = DbMetrics.timer("pings.fetchTaggings");
+	private static final DbMetrics.Timer T_FETCH_PING = DbMetrics.timer("pings.fetchPing");
+	private static final DbMetrics.Timer T_FETCH_NEIGHBORS = DbMetrics.timer("pings.fetchNeighborPings");
+	private static final DbMetrics.Timer T_FETCH_TAG_STRING = DbMetrics.timer("pings.fetchTagString");
+	private static final DbMetrics.Timer T_UPDATE_TAG_CACHE = DbMetrics.timer("pings.updateTagCache");
+	private static final DbMetrics.Timer T_UPDATE_TAGGINGS = DbMetrics.timer("pings.updateTaggings");
+	private static final DbMetrics.Timer T_CLEANUP_TAGS = DbMetrics.timer("pings.cleanupUnusedTags");
+	private static final DbMetrics.Counter C_TRANSACTIONS = DbMetrics.counter("pings.transactions");
+	private static final DbMetrics.Counter C_ROLLBACKS = DbMetrics.counter("pings.rollbacks");
+
+	/** Name under which the Beeminder link database is attached */
+	private static final String BEEMINDER_DB = "bee";
+
+	/*
+	 * Ping log rows: each ping with its space separated tag names, the number
+	 * of Beeminder points submitted for it and the number of linked goals
+	 * matching its tags that were linked before the ping.
+	 */
+	static final String PING_ROWS_QUERY = "SELECT p._id AS _id, p.ping AS ping, p.notes AS notes, "
+			+ "p.period AS period, "
+			+ "(SELECT group_concat(t.tag, ' ') FROM tag_ping tp JOIN tags t ON t._id = tp.tag_id "
+			+ "WHERE tp.ping_id = p._id) AS tags, "
+			+ "(SELECT COUNT(*) FROM " + BEEMINDER_DB + ".pointpings pp WHERE pp.ping_id = p._id) AS points, "
+			+ "(SELECT COUNT(DISTINCT gt.goal_id) FROM tag_ping tp JOIN " + BEEMINDER_DB
+			+ ".goaltags gt ON gt.tag_id = tp.tag_id JOIN " + BEEMINDER_DB + ".goals g ON g._id = gt.goal_id "
+			+ "WHERE tp.ping_id = p._id AND g.updatedat < p.ping) AS goals "
+			+ "FROM pings p";
+
+	/*
+	 * Ping log rows when the Beeminder database is not attached: the same
+	 * columns, with no points and no goals.
+	 */
+	static final String PING_ROWS_LOCAL_QUERY = "SELECT p._id AS _id, p.ping AS ping, p.notes AS notes, "
+			+ "p.period AS period, "
+			+ "(SELECT group_concat(t.tag, ' ') FROM tag_ping tp JOIN tags t ON t._id = tp.tag_id "
+			+ "WHERE tp.ping_id = p._id) AS tags, 0 AS points, 0 AS goals "
+			+ "FROM pings p";
+
+	/* ****** Queries ****** */
+
+	// Selections by row id, for updates and deletes
+	static String rowIdWhere(long id) {
+		return KEY_ROWID + "=" + id;
+	}
+
+	static String pingsQuery(boolean reverse) {
+		return "SELECT " + KEY_ROWID + ", " + KEY_PING + ", " + KEY_NOTES + ", " + KEY_PERIOD + " FROM " + PINGS_TABLE
+				+ " ORDER BY " + KEY_PING + (reverse ? " DESC" : " ASC");
+	}
+
+	static String pingQuery(long pingid) {
+		return "SELECT DISTINCT " + KEY_ROWID + ", " + KEY_PING + ", " + KEY_NOTES + ", " + KEY_PERIOD + " FROM "
+				+ PINGS_TABLE + " WHERE " + rowIdWhere(pingid);
+	}
+
+	static String pingTimeQuery(long pingid) {
+		return "SELECT " + KEY_PING + " FROM " + PINGS_TABLE + " WHERE " + rowIdWhere(pingid);
+	}
+
+	static String pingRowsQuery(boolean attached, long before, int offset, int limit) {
+		return (attached ? PING_ROWS_QUERY : PING_ROWS_LOCAL_QUERY) + " WHERE p.ping < " + before
+				+ " ORDER BY p.ping DESC LIMIT " + limit + " OFFSET " + offset;
+	}
+
+	static final String PING_MONTHS_QUERY = "SELECT strftime('%Y.%m', " + KEY_PING + ", 'unixepoch', 'localtime') AS "
+			+ KEY_MONTH + ", COUNT(*) AS " + KEY_COUNT + ", MAX(" + KEY_PING + ") AS " + KEY_LAST + " FROM "
+			+ PINGS_TABLE + " GROUP BY " + KEY_MONTH + " ORDER BY " + KEY_LAST + " DESC";
+
+	static final String PINGS_WITH_TAGS_QUERY = "SELECT p." + KEY_ROWID + " AS " + KEY_ROWID + ", p." + KEY_PING
+			+ " AS " + KEY_PING + ", t." + KEY_TAG + " AS " + KEY_TAG + " FROM " + PINGS_TABLE + " p LEFT JOIN "
+			+ TAG_PING_TABLE + " tp ON tp." + KEY_PID + " = p." + KEY_ROWID + " LEFT JOIN " + TAGS_TABLE + " t ON t."
+			+ KEY_ROWID + " = tp." + KEY_TID + " ORDER BY p." + KEY_PING + " ASC, p." + KEY_ROWID + " ASC, tp."
+			+ KEY_ROWID + " ASC";
+
+	static String neighborPingsQuery(long pingtime) {
+		return "SELECT (SELECT " + KEY_ROWID + " FROM " + PINGS_TABLE + " WHERE " + KEY_PING + " < " + pingtime
+				+ " ORDER BY " + KEY_PING + " DESC LIMIT 1), (SELECT " + KEY_ROWID + " FROM " + PINGS_TABLE + " WHERE "
+				+ KEY_PING + " > " + pingtime + " ORDER BY " + KEY_PING + " ASC LIMIT 1)";
+	}
+
+	static final String ALL_TAGS_QUERY = "SELECT " + KEY_ROWID + ", " + KEY_TAG + " FROM " + TAGS_TABLE;
+
+	static String allTagsQuery(String ordering) {
+		if (ordering.equals("RANK")) {
+			return "SELECT t." + KEY_ROWID + " AS " + KEY_ROWID + ", t." + KEY_TAG + " AS " + KEY_TAG + " FROM "
+					+ TAGS_TABLE + " t LEFT JOIN " + TAG_RANK_TABLE + " r ON r.tag_id = t." + KEY_ROWID
+					+ " AND r.bucket = " + TagRanking.GLOBAL + " ORDER BY r.score IS NULL, r.score DESC, t."
+					+ KEY_USED_CACHE + " DESC";
+		}
+		String sort_key = KEY_TAG + " COLLATE NOCASE";
+		if (ordering.equals("FREQ")) {
+			sort_key = KEY_USED_CACHE + " DESC";
+		} else if (ordering.equals("ALPHA")) {
+			sort_key = KEY_TAG + " COLLATE NOCASE";
+		} else if (ordering.equals("ROWID")) {
+			sort_key = KEY_ROWID;
+		}
+		return ALL_TAGS_QUERY + " ORDER BY " + sort_key;
+	}
+
+	static String tagNameQuery(long tid) {
+		return "SELECT " + KEY_TAG + " FROM " + TAGS_TABLE + " WHERE " + rowIdWhere(tid);
+	}
+
+	// Binds the tag name
+	static final String TAG_ID_QUERY = "SELECT " + KEY_ROWID + " FROM " + TAGS_TABLE + " WHERE " + KEY_TAG + " = ?";
+
+	// Binds the tag id
+	static final String TAG_USE_COUNT_QUERY = "SELECT COUNT(" + KEY_ROWID + ") FROM " + TAG_PING_TABLE + " WHERE "
+			+ KEY_TID + " = ?";
+
+	static String topTagsQuery(int bucket, int limit) {
+		return "SELECT " + KEY_TID + " FROM " + TAG_RANK_TABLE + " WHERE bucket = " + bucket
+				+ " ORDER BY score DESC LIMIT " + limit;
+	}
+
+	static String tagPingWhere(long pingid, long tagid) {
+		return KEY_PID + "=" + pingid + " AND " + KEY_TID + "=" + tagid;
+	}
+
+	static String tagPingQuery(long pingid, long tagid) {
+		return "SELECT " + KEY_ROWID + " FROM " + TAG_PING_TABLE + " WHERE " + tagPingWhere(pingid, tagid);
+	}
+
+	// Taggings of a ping (col_key KEY_PID) or of a tag (col_key KEY_TID)
+	static String taggingsQuery(long id, String col_key) {
+		return "SELECT DISTINCT " + KEY_PID + ", " + KEY_TID + " FROM " + TAG_PING_TABLE + " WHERE " + col_key + " = "
+				+ id;
+	}
+
+	// Binds the ping and tag ids
+	static final String DELETE_TAGPING = "DELETE FROM " + TAG_PING_TABLE + " WHERE " + KEY_PID + " = ? AND "
+			+ KEY_TID + " = ?";
+
+	static String rankScoreQuery(long tid, int bucket) {
+		return "SELECT score FROM " + TAG_RANK_TABLE + " WHERE tag_id = " + tid + " AND bucket = " + bucket;
+	}
+
+	// Binds the tag id, the bucket and the score
+	static final String STORE_TAG_RANK = "INSERT OR REPLACE INTO " + TAG_RANK_TABLE
+			+ " (tag_id, bucket, score) VALUES (?, ?, ?)";
+	// Binds the tag id and the bucket
+	static final String DELETE_TAG_RANK = "DELETE FROM " + TAG_RANK_TABLE + " WHERE tag_id = ? AND bucket = ?";
+
+	// All taggings with the time of their ping, to build the tag ranking from
+	static final String TAG_RANK_SOURCE_QUERY = "SELECT tp." + KEY_TID + ", p." + KEY_PING + " FROM "
+			+ TAG_PING_TABLE + " tp JOIN " + PINGS_TABLE + " p ON p." + KEY_ROWID + " = tp." + KEY_PID;
+
+	// Tags neither used by a ping nor linked to a goal, needs the Beeminder
+	// database attached
+	static final String CLEANUP_TAGS = "DELETE FROM " + TAGS_TABLE + " WHERE NOT EXISTS (SELECT 1 FROM "
+			+ TAG_PING_TABLE + " tp WHERE tp." + KEY_TID + " = " + TAGS_TABLE + "." + KEY_ROWID
+			+ ") AND NOT EXISTS (SELECT 1 FROM " + BEEMINDER_DB + ".goaltags gt WHERE gt.tag_id = " + TAGS_TABLE + "."
+			+ KEY_ROWID + ")";
+	// Rankings of tags without taggings
+	static final String CLEANUP_TAG_RANK = "DELETE FROM " + TAG_RANK_TABLE + " WHERE NOT EXISTS (SELECT 1 FROM "
+			+ TAG_PING_TABLE + " tp WHERE tp." + KEY_TID + " = " + TAG_RANK_TABLE + ".tag_id)";
 
 	/** Database helper class for the Pings database. Handles creation, upgrade operations. */
 	private static class DatabaseHelper extends SQLiteOpenHelper {
 
+		private final Context mContext;
+
 		DatabaseHelper(Context context) {
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+			mContext = context;
 		}
 
 		@Override
@@ -101,6 +445,82 @@ public class PingsDbAdapter {
 			db.execSQL(CREATE_PINGS);
 			db.execSQL(CREATE_TAGS);
 			db.execSQL(CREATE_TAGPINGS);
+			createIndexes(db);
+			createTriggers(db);
+			createTagRank(db);
+		}
+
+		private void createTagRank(SQLiteDatabase db) {
+			db.execSQL(CREATE_TAGRANK);
+			db.execSQL(CREATE_TAGRANK_INDEX);
+		}
+
+		/**
+		 * Marks the tag ranking to be rebuilt by rebuildTagRankIfStale().
+		 * Building it reads all taggings, too slow for onUpgrade(), which may
+		 * run on the UI thread.
+		 */
+		private void setRankStale(boolean stale) {
+			PreferenceManager.getDefaultSharedPreferences(mContext).edit().putBoolean(KEY_RANK_STALE, stale)
+					.commit();
+		}
+
+		private boolean isRankStale() {
+			return PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(KEY_RANK_STALE, false);
+		}
+
+		/**
+		 * Computes the tag ranking from scratch out of all existing taggings.
+		 * Scores are accumulated in memory, one array per tag, and written at
+		 * the end.
+		 */
+		private void buildTagRank(SQLiteDatabase db) {
+			Map<Long, double[]> scores = new HashMap<Long, double[]>();
+			Cursor c = db.rawQuery(TAG_RANK_SOURCE_QUERY, null);
+			try {
+				while (c.moveToNext()) {
+					long tid = c.getLong(0);
+					long time = c.getLong(1);
+					double[] s = scores.get(tid);
+					if (s == null) {
+						s = new double[TagRanking.BUCKETS + 1];
+						Arrays.fill(s, Double.NEGATIVE_INFINITY);
+						scores.put(tid, s);
+					}
+					double w = TagRanking.logWeight(time);
+					int bucket = TagRanking.bucketOf(time);
+					s[bucket] = TagRanking.logAddExp(s[bucket], w);
+					s[TagRanking.GLOBAL] = TagRanking.logAddExp(s[TagRanking.GLOBAL], w);
+				}
+			} finally {
+				c.close();
+			}
+			db.execSQL("DELETE FROM " + TAG_RANK_TABLE);
+			SQLiteStatement insert = db.compileStatement(STORE_TAG_RANK);
+			try {
+				for (Map.Entry<Long, double[]> e : scores.entrySet()) {
+					double[] s = e.getValue();
+					for (int b = 0; b < s.length; b++) {
+						if (s[b] == Double.NEGATIVE_INFINITY) continue;
+						insert.bindLong(1, e.getKey());
+						insert.bindLong(2, b);
+						insert.bindDouble(3, s[b]);
+						insert.executeInsert();
+					}
+				}
+			} finally {
+				insert.close();
+			}
+		}
+
+		private void createTriggers(SQLiteDatabase db) {
+			db.execSQL(CREATE_TAGPINGS_INSERT_TRIGGER);
+			db.execSQL(CREATE_TAGPINGS_DELETE_TRIGGER);
+		}
+
+		private void createIndexes(SQLiteDatabase db) {
+			db.execSQL(CREATE_TAGPINGS_TAG_INDEX);
+			db.execSQL(CREATE_TAGS_USED_INDEX);
 		}
 
 		@Override
@@ -111,6 +531,7 @@ public class PingsDbAdapter {
 				db.execSQL("DROP TABLE IF EXISTS pings");
 				db.execSQL("DROP TABLE IF EXISTS tags");
 				db.execSQL("DROP TABLE IF EXISTS tag_ping");
+				db.execSQL("DROP TABLE IF EXISTS tag_rank");
 				onCreate(db);
 			} else {
 				if (oldVersion < 5 && newVersion >= 5) {
@@ -170,12 +591,75 @@ public class PingsDbAdapter {
 						db.endTransaction();
 					}
 				}
+
+				if (oldVersion < 7 && newVersion >= 7) {
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " adding secondary indexes...");
+					createIndexes(db);
+				}
+
+				if (oldVersion < 8 && newVersion >= 8) {
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " adding tag cache triggers...");
+					db.beginTransaction();
+					try {
+						createTriggers(db);
+						db.execSQL(RECOUNT_TAG_CACHES);
+						db.setTransactionSuccessful();
+					} finally {
+						db.endTransaction();
+					}
+				}
+
+				if (oldVersion < 9 && newVersion >= 9) {
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " adding the tag ranking, built later...");
+					createTagRank(db);
+					setRankStale(true);
+				}
 			}
 		}
 	}
 
 	protected void deleteAllData() {
 		mDbHelper.onUpgrade(mDb, 1, DATABASE_VERSION);
+		TagDictionary.getInstance().reset();
+	}
+
+	/**
+	 * Builds the tag ranking if a schema upgrade left it to be built, see
+	 * DATABASE_VERSION 9. Reads all taggings, so it should not be called from
+	 * the UI thread. Until it has run, the ranking only holds taggings made
+	 * since the upgrade.
+	 */
+	public void rebuildTagRankIfStale() {
+		if (!mDbHelper.isRankStale()) return;
+		Log.w(TAG, "rebuildTagRankIfStale: building the tag ranking...");
+		mDb.beginTransaction();
+		try {
+			mDbHelper.buildTagRank(mDb);
+			mDb.setTransactionSuccessful();
+			C_TRANSACTIONS.inc();
+		} catch (SQLException e) {
+			Log.e(TAG, "rebuildTagRankIfStale: " + e.getMessage());
+			C_ROLLBACKS.inc();
+			return;
+		} finally {
+			mDb.endTransaction();
+		}
+		mDbHelper.setRankStale(false);
+	}
+
+	/** Loads all tags into the process-wide TagDictionary. */
+	public void loadTagDictionary() {
+		long t0 = T_LOAD_DICTIONARY.start();
+		Cursor c = mDb.rawQuery(ALL_TAGS_QUERY, null);
+		try {
+			TagDictionary.getInstance().load(c);
+			T_LOAD_DICTIONARY.stop(t0, c.getCount());
+		} finally {
+			c.close();
+		}
 	}
 
 	// =============== Methods for the Pings table =====================
@@ -185,14 +669,74 @@ public class PingsDbAdapter {
 	 */
 	public long createPing(long pingtime, String notes, List<String> tags, int period) {
 		if (LOCAL_LOGV) Log.v(TAG, "createPing()");
+		long t0 = T_CREATE_PING.start();
 		long pid = newPing(pingtime, notes, period);
 		if (!updateTaggings(pid, tags)) {
 			Log.e(TAG, "createPing: error creating the tag-ping entries");
 		}
+		T_CREATE_PING.stop(t0, 1);
 		TagTime.broadcastPingUpdate( true );
 		return pid;
 	}
 
+	/**
+	 * Creates pings for the first count entries of pingtimes, all tagged with
+	 * the single supplied tag, within a single transaction. Intended for
+	 * backfilling pings that were missed while the device was off. Times
+	 * for which a ping already exists are skipped. A single ping update is
+	 * broadcast at the end.
+	 * 
+	 * @return the number of pings created, 0 if the transaction failed
+	 */
+	public int createPings(long[] pingtimes, int count, String tag, int period) {
+		if (LOCAL_LOGV) Log.v(TAG, "createPings(" + count + ", " + tag + ")");
+		if (count == 0) return 0;
+
+		long t0 = T_CREATE_PINGS.start();
+		int created = 0;
+		SQLiteStatement insertPing = mDb.compileStatement("INSERT INTO " + PINGS_TABLE + " (" + KEY_PING + ", "
+				+ KEY_NOTES + ", " + KEY_PERIOD + ") VALUES (?, '', ?)");
+		SQLiteStatement insertTagPing = mDb.compileStatement("INSERT INTO " + TAG_PING_TABLE + " (" + KEY_PID + ", "
+				+ KEY_TID + ") VALUES (?, ?)");
+		RankWriter rank = new RankWriter();
+		mDb.beginTransaction();
+		try {
+			long tid = getOrMakeNewTID(tag);
+			for (int i = 0; i < count; i++) {
+				long pid;
+				try {
+					insertPing.bindLong(1, pingtimes[i]);
+					insertPing.bindLong(2, period);
+					pid = insertPing.executeInsert();
+				} catch (SQLiteConstraintException e) {
+					Log.w(TAG, "createPings: ping at " + pingtimes[i] + " already exists, skipping");
+					continue;
+				}
+				insertTagPing.bindLong(1, pid);
+				insertTagPing.bindLong(2, tid);
+				insertTagPing.executeInsert();
+				rank.add(tid, pingtimes[i]);
+				created++;
+			}
+			mDb.setTransactionSuccessful();
+			C_TRANSACTIONS.inc();
+		} catch (SQLException e) {
+			Log.e(TAG, "createPings: error creating pings: " + e.getMessage());
+			C_ROLLBACKS.inc();
+			// The tag may have been created within the failed transaction
+			TagDictionary.getInstance().invalidate();
+			created = 0;
+		} finally {
+			mDb.endTransaction();
+			insertPing.close();
+			insertTagPing.close();
+			rank.close();
+		}
+		T_CREATE_PINGS.stop(t0, created);
+		if (created > 0) TagTime.broadcastPingUpdate(true);
+		return created;
+	}
+
 	/** Internal function to insert a new ping into the pings table */
 	private long newPing(long pingtime, String pingnotes, int period) {
 		ContentValues initialValues = new ContentValues();
@@ -207,7 +751,10 @@ public class PingsDbAdapter {
 	 * not update ping/tag pairs.
 	 */
 	public boolean deletePing(long pingid) {
-		return mDb.delete(PINGS_TABLE, KEY_ROWID + "=" + pingid, null) > 0;
+		long t0 = T_DELETE_PING.start();
+		int rows = mDb.delete(PINGS_TABLE, rowIdWhere(pingid), null);
+		T_DELETE_PING.stop(t0, rows);
+		return rows > 0;
 	}
 
 	/**
@@ -218,15 +765,72 @@ public class PingsDbAdapter {
 	 *            Returns pings in reverse order of their ping times.
 	 */
 	public Cursor fetchAllPings(boolean reverse) {
-		if (reverse) {
-			return mDb.query(PINGS_TABLE, new String[] { KEY_ROWID, KEY_PING, KEY_NOTES, KEY_PERIOD }, null, null,
-					null, null, KEY_PING + " DESC");
-		} else {
-			return mDb.query(PINGS_TABLE, new String[] { KEY_ROWID, KEY_PING, KEY_NOTES, KEY_PERIOD }, null, null,
-					null, null, KEY_PING + " ASC");
+		long t0 = T_FETCH_ALL_PINGS.start();
+		return T_FETCH_ALL_PINGS.stopUncounted(t0, mDb.rawQuery(pingsQuery(reverse), null));
+	}
+
+	/**
+	 * Queries the database for a window of pings in reverse order of their
+	 * ping times, together with the information needed to display them in
+	 * the ping log, computed in a single query: KEY_TAGS holds the space
+	 * separated tag names (null if untagged), KEY_POINTS the number of
+	 * Beeminder points submitted for the ping and KEY_GOALS the number of
+	 * goals the ping should have been submitted to. Both counts are 0 if the
+	 * Beeminder database could not be attached.
+	 * 
+	 * @param before
+	 *            Only pings strictly before this time are returned. Use
+	 *            Long.MAX_VALUE to start from the latest ping.
+	 * @param offset
+	 *            Number of pings before the given time to skip
+	 * @param limit
+	 *            Maximum number of pings to return
+	 */
+	public Cursor fetchPingRows(long before, int offset, int limit) {
+		long t0 = T_FETCH_PING_ROWS.start();
+		mAttachLock.lock();
+		boolean attached = attachBeeminder();
+		try {
+			Cursor c = mDb.rawQuery(pingRowsQuery(attached, before, offset, limit), null);
+			// Reads the rows while the Beeminder database is still attached.
+			// A page must fit in the cursor window, it can't be read again
+			// later.
+			c.getCount();
+			return T_FETCH_PING_ROWS.stopUncounted(t0, c);
+		} finally {
+			if (attached) detachBeeminder();
+			mAttachLock.unlock();
 		}
 	}
 
+	/**
+	 * Returns a Cursor with one row per calendar month (local time) that has
+	 * pings, latest month first. KEY_MONTH holds the month as yyyy.MM,
+	 * KEY_COUNT the number of pings in the month and KEY_LAST the time of
+	 * the latest ping in the month.
+	 */
+	public Cursor fetchPingMonths() {
+		long t0 = T_FETCH_PING_MONTHS.start();
+		return T_FETCH_PING_MONTHS.stop(t0, mDb.rawQuery(PING_MONTHS_QUERY, null));
+	}
+
+	/**
+	 * Returns a Cursor joining all pings with their tags in a single query,
+	 * ordered by ping time, for streaming exports. Each ping appears on one
+	 * row per tag, in the order the tags were added, consecutively and with
+	 * the same KEY_ROWID. Untagged pings appear on a single row with a null
+	 * KEY_TAG.
+	 */
+	public Cursor fetchPingsWithTags() {
+		long t0 = T_FETCH_PINGS_WITH_TAGS.start();
+		return T_FETCH_PINGS_WITH_TAGS.stopUncounted(t0, mDb.rawQuery(PINGS_WITH_TAGS_QUERY, null));
+	}
+
+	/** Returns the number of pings in the database. */
+	public long countPings() {
+		return DatabaseUtils.queryNumEntries(mDb, PINGS_TABLE);
+	}
+
 	/**
 	 * Update the indicated ping using the details provided.
 	 * 
@@ -239,7 +843,10 @@ public class PingsDbAdapter {
 	public boolean updatePing(long pingid, String pingnotes) {
 		ContentValues args = new ContentValues();
 		args.put(KEY_NOTES, pingnotes);
-		return mDb.update(PINGS_TABLE, args, KEY_ROWID + "=" + pingid, null) > 0;
+		long t0 = T_UPDATE_PING.start();
+		int rows = mDb.update(PINGS_TABLE, args, rowIdWhere(pingid), null);
+		T_UPDATE_PING.stop(t0, rows);
+		return rows > 0;
 	}
 
 	// =============== Methods for the Tags table =====================
@@ -252,7 +859,11 @@ public class PingsDbAdapter {
 		ContentValues initialValues = new ContentValues();
 		initialValues.put(KEY_TAG, tag);
 		initialValues.put(KEY_USED_CACHE, 0);
-		return mDb.insertOrThrow(TAGS_TABLE, null, initialValues);
+		long t0 = T_NEW_TAG.start();
+		long tid = mDb.insertOrThrow(TAGS_TABLE, null, initialValues);
+		T_NEW_TAG.stop(t0, 1);
+		TagDictionary.getInstance().put(tid, tag);
+		return tid;
 	}
 
 	/**
@@ -260,11 +871,13 @@ public class PingsDbAdapter {
 	 * creates a new one in the tags table and returns its ID.
 	 */
 	public long getOrMakeNewTID(String tag) {
-		long tid;
-		try {
-			tid = newTag(tag);
-		} catch (SQLException e) {
-			tid = getTID(tag);
+		long tid = getTID(tag);
+		if (tid == -1) {
+			try {
+				tid = newTag(tag);
+			} catch (SQLException e) {
+				Log.w(TAG, "getOrMakeNewTID: could not create tag " + tag);
+			}
 		}
 		return tid;
 	}
@@ -274,11 +887,18 @@ public class PingsDbAdapter {
 	 * given id.
 	 */
 	public String getTagName(long tid) {
-		String ret = "";
-		Cursor c = mDb.query(TAGS_TABLE, new String[] { KEY_TAG }, KEY_ROWID + "=" + tid, null, null, null, null);
+		TagDictionary dict = TagDictionary.getInstance();
+		String ret = dict.getName(tid);
+		if (ret != null) return ret;
+		if (dict.isComplete()) return "";
+
+		ret = "";
+		long t0 = T_GET_TAG_NAME.start();
+		Cursor c = T_GET_TAG_NAME.stop(t0, mDb.rawQuery(tagNameQuery(tid), null));
 		if (c.getCount() > 0) {
 			c.moveToFirst();
 			ret = c.getString(c.getColumnIndex(KEY_TAG));
+			dict.put(tid, ret);
 		}
 		c.close();
 		return ret;
@@ -293,14 +913,18 @@ public class PingsDbAdapter {
 	 */
 	public long getTID(String tag) {
 		if (LOCAL_LOGV) Log.v(TAG, "getTID(" + tag + ")");
+		TagDictionary dict = TagDictionary.getInstance();
 		// return -1 if not found
-		long tid = -1;
-		Cursor cursor = mDb.query(TAGS_TABLE, new String[] { KEY_ROWID, KEY_TAG }, KEY_TAG + "='" + tag + "'", null,
-				null, null, null, null);
+		long tid = dict.getId(tag);
+		if (tid != -1 || dict.isComplete()) return tid;
+
+		long t0 = T_GET_TID.start();
+		Cursor cursor = T_GET_TID.stop(t0, mDb.rawQuery(TAG_ID_QUERY, new String[] { tag }));
 		if (LOCAL_LOGV) Log.v(TAG, "getTID: queried for tag=" + tag);
 		if (cursor.getCount() > 0) {
 			cursor.moveToFirst();
 			tid = cursor.getLong(cursor.getColumnIndex(KEY_ROWID));
+			dict.put(tid, tag);
 		}
 		cursor.close();
 		return tid;
@@ -316,19 +940,47 @@ public class PingsDbAdapter {
 
 	/**
 	 * Returns a Cursor for all tags in the database, sorted by the indicated
-	 * method. "FREQ" sorts by occurence frequency, "ALPHA" chooses alphabetic
-	 * sort and "ROWID" sorts by the tag ID.
+	 * method. "FREQ" sorts by occurence frequency, "RANK" by recency-weighted
+	 * frequency (see TagRanking), "ALPHA" chooses alphabetic sort and "ROWID"
+	 * sorts by the tag ID.
 	 */
 	public Cursor fetchAllTags(String ordering) {
-		String sort_key = KEY_TAG + " COLLATE NOCASE";
-		if (ordering.equals("FREQ")) {
-			sort_key = KEY_USED_CACHE + " DESC";
-		} else if (ordering.equals("ALPHA")) {
-			sort_key = KEY_TAG + " COLLATE NOCASE";
-		} else if (ordering.equals("ROWID")) {
-			sort_key = KEY_ROWID;
+		long t0 = T_FETCH_ALL_TAGS.start();
+		return T_FETCH_ALL_TAGS.stop(t0, mDb.rawQuery(allTagsQuery(ordering), null));
+	}
+
+	/**
+	 * Returns the names of up to k tags most likely to be used for a ping at
+	 * the given time: the top ranked tags for the time of day of the ping,
+	 * followed if needed by the top ranked tags over the whole day. Both lists
+	 * are read in order from the tag_rank index, so the cost depends on k
+	 * rather than on the number of tags.
+	 */
+	public List<String> fetchTopTags(long pingtime, int k) {
+		long t0 = T_FETCH_TOP_TAGS.start();
+		List<String> ret = new ArrayList<String>(k);
+		Set<Long> seen = new HashSet<Long>();
+		int bucket = TagRanking.bucketOf(pingtime);
+		addTopTags(bucket, k, ret, seen);
+		if (ret.size() < k) addTopTags(TagRanking.GLOBAL, k, ret, seen);
+		T_FETCH_TOP_TAGS.stop(t0, ret.size());
+		return ret;
+	}
+
+	/** Internal function adding the top tags of a ranking bucket to ret */
+	private void addTopTags(int bucket, int k, List<String> ret, Set<Long> seen) {
+		// Tags in seen may come up again, fetch enough to fill up regardless
+		Cursor c = mDb.rawQuery(topTagsQuery(bucket, k + seen.size()), null);
+		try {
+			while (ret.size() < k && c.moveToNext()) {
+				long tid = c.getLong(0);
+				if (!seen.add(tid)) continue;
+				String name = getTagName(tid);
+				if (name.length() > 0) ret.add(name);
+			}
+		} finally {
+			c.close();
 		}
-		return mDb.query(TAGS_TABLE, new String[] { KEY_ROWID, KEY_TAG }, null, null, null, null, sort_key);
 	}
 
 	/**
@@ -353,7 +1005,12 @@ public class PingsDbAdapter {
 		}
 		ContentValues args = new ContentValues();
 		args.put(KEY_TAG, newtag);
-		return mDb.update(TAGS_TABLE, args, KEY_ROWID + "=" + tagid, null) > 0;
+		long t0 = T_UPDATE_TAG.start();
+		int rows = mDb.update(TAGS_TABLE, args, rowIdWhere(tagid), null);
+		T_UPDATE_TAG.stop(t0, rows);
+		boolean updated = rows > 0;
+		if (updated) TagDictionary.getInstance().put(tagid, newtag);
+		return updated;
 	}
 
 	/**
@@ -362,7 +1019,7 @@ public class PingsDbAdapter {
 	 * @return an array of tag IDs
 	 */
 	public long[] getAllTagIds() {
-		Cursor all_tids = mDb.query(TAGS_TABLE, new String[] { "_id" }, null, null, null, null, null);
+		Cursor all_tids = mDb.rawQuery(ALL_TAGS_QUERY, null);
 		long[] res = new long[all_tids.getCount()];
 		int index = 0;
 		all_tids.moveToFirst();
@@ -392,8 +1049,7 @@ public class PingsDbAdapter {
 	 * corresponding table
 	 */
 	public boolean isTagPing(long pingid, long tagid) {
-		Cursor c = mDb.query(TAG_PING_TABLE, new String[] { KEY_ROWID }, KEY_PID + "=" + pingid + " AND " + KEY_TID
-				+ "=" + tagid, null, null, null, null);
+		Cursor c = mDb.rawQuery(tagPingQuery(pingid, tagid), null);
 		boolean ret = c.getCount() > 0;
 		c.close();
 		return ret;
@@ -409,8 +1065,7 @@ public class PingsDbAdapter {
 
 	/** Removes the pair with the supplied ping and tag ids from the database. */
 	public boolean deleteTagPing(long pingid, long tagid) {
-		String query = KEY_PID + "=" + pingid + " AND " + KEY_TID + "=" + tagid;
-		return mDb.delete(TAG_PING_TABLE, query, null) > 0;
+		return mDb.delete(TAG_PING_TABLE, tagPingWhere(pingid, tagid), null) > 0;
 	}
 
 	/**
@@ -423,8 +1078,8 @@ public class PingsDbAdapter {
 	 *            a tag id.
 	 */
 	public Cursor fetchTaggings(long id, String col_key) {
-		return mDb.query(true, TAG_PING_TABLE, new String[] { KEY_PID, KEY_TID }, col_key + " = " + id, null, null,
-				null, null, null);
+		long t0 = T_FETCH_TAGGINGS.start();
+		return T_FETCH_TAGGINGS.stop(t0, mDb.rawQuery(taggingsQuery(id, col_key), null));
 	}
 
 	/**
@@ -437,8 +1092,8 @@ public class PingsDbAdapter {
 	 *             if note could not be found/retrieved
 	 */
 	public Cursor fetchPing(long pingid) throws SQLException {
-		Cursor pCursor = mDb.query(true, PINGS_TABLE, new String[] { KEY_ROWID, KEY_PING, KEY_NOTES, KEY_PERIOD },
-				KEY_ROWID + "=" + pingid, null, null, null, null, null);
+		long t0 = T_FETCH_PING.start();
+		Cursor pCursor = T_FETCH_PING.stop(t0, mDb.rawQuery(pingQuery(pingid), null));
 		if (pCursor != null) {
 			pCursor.moveToFirst();
 		}
@@ -446,6 +1101,30 @@ public class PingsDbAdapter {
 
 	}
 
+	/**
+	 * Finds the pings immediately before and after the given ping time in a
+	 * single query, using the index of the UNIQUE(ping) constraint. Unlike
+	 * row ids, ping times are ordered even when pings were deleted or
+	 * inserted out of order.
+	 * 
+	 * @return the ids of the previous and next pings, -1 where there is none
+	 */
+	public long[] fetchNeighborPings(long pingtime) {
+		long t0 = T_FETCH_NEIGHBORS.start();
+		Cursor c = mDb.rawQuery(neighborPingsQuery(pingtime), null);
+		long[] ret = new long[] { -1, -1 };
+		try {
+			if (c.moveToFirst()) {
+				if (!c.isNull(0)) ret[0] = c.getLong(0);
+				if (!c.isNull(1)) ret[1] = c.getLong(1);
+			}
+		} finally {
+			c.close();
+		}
+		T_FETCH_NEIGHBORS.stop(t0, 1);
+		return ret;
+	}
+
 	// ===================== Compound methods using multiple tables ============
 
 	/**
@@ -453,9 +1132,9 @@ public class PingsDbAdapter {
 	 * supplied id
 	 */
 	public String fetchTagString(long pingid) throws Exception {
-		Cursor c = mDb.query(TAG_PING_TABLE, new String[] { KEY_PID, KEY_TID }, KEY_PID + "=" + pingid, null, null,
-				null, null);
-		String s = "";
+		long t0 = T_FETCH_TAG_STRING.start();
+		Cursor c = T_FETCH_TAG_STRING.stop(t0, mDb.rawQuery(taggingsQuery(pingid, KEY_PID), null));
+		StringBuilder s = new StringBuilder();
 		try {
 			c.moveToFirst();
 			int idx = c.getColumnIndex(KEY_TID);
@@ -466,13 +1145,13 @@ public class PingsDbAdapter {
 					Exception e = new Exception("Could not find tag with id=" + tid);
 					throw e;
 				}
-				s += t + " ";
+				s.append(t).append(' ');
 				c.moveToNext();
 			}
 		} finally {
 			c.close();
 		}
-		return s;
+		return s.toString();
 	}
 
 	/**
@@ -522,97 +1201,236 @@ public class PingsDbAdapter {
 		return ret;
 	}
 
-	/** Updates usage counts for a specific tag in the database */
+	/**
+	 * Recounts the usage count of a specific tag. Usage counts are maintained
+	 * by triggers on the tag_ping table, so this is only needed to repair
+	 * them.
+	 */
 	public void updateTagCache(long tid) {
-		Cursor count_cr = mDb.rawQuery("SELECT COUNT(_id) FROM tag_ping WHERE tag_id = ?",
-				new String[] { Long.toString(tid) });
+		long t0 = T_UPDATE_TAG_CACHE.start();
+		Cursor count_cr = mDb.rawQuery(TAG_USE_COUNT_QUERY, new String[] { Long.toString(tid) });
 		count_cr.moveToFirst();
 		ContentValues uses_values = new ContentValues();
 		uses_values.put(KEY_USED_CACHE, count_cr.getInt(0));
 		count_cr.close();
-		mDb.update(TAGS_TABLE, uses_values, "_id = ?", new String[] { Long.toString(tid) });
+		mDb.update(TAGS_TABLE, uses_values, rowIdWhere(tid), null);
+		T_UPDATE_TAG_CACHE.stop(t0, 1);
 	}
 
 	/**
-	 * Update usage counts for all tages in the database.
+	 * Verifies the usage counts of all tags against the tag_ping table and
+	 * repairs the ones that are off. Usage counts are maintained by triggers,
+	 * so this should normally find nothing to do.
+	 * 
+	 * @return the number of tags whose count was repaired
 	 */
-	public void updateTagCaches() {
-		long[] tagIds = getAllTagIds();
-		for (long tid : tagIds) {
-			updateTagCache(tid);
-		}
+	public int updateTagCaches() {
+		mDb.execSQL(RECOUNT_TAG_CACHES);
+		int repaired = (int) DatabaseUtils.longForQuery(mDb, "SELECT changes()", null);
+		if (repaired > 0) Log.w(TAG, "updateTagCaches: repaired " + repaired + " tag usage counts");
+		return repaired;
 	}
 
 	/**
-	 * Updates the taggings of the ping pingid to be equal to newTags.
+	 * Updates the taggings of the ping pingid to be equal to newTags. Only the
+	 * differences between the old and new tag sets are written, all within a
+	 * single transaction. Usage counts of the affected tags are adjusted by
+	 * the tag_ping triggers.
 	 */
 	public boolean updateTaggings(long pingid, List<String> newTags) {
 		if (LOCAL_LOGV) Log.v(TAG, "updateTaggings(" + pingid + ")");
 
-		// Remove all the old tags.
-		mDb.delete(TAG_PING_TABLE, KEY_PID + "=" + pingid, null);
-
-		// Construct a list of tags for which usage count should be updated
-		List<String> cacheUpdates = new ArrayList<String>();
+		long t0 = T_UPDATE_TAGGINGS.start();
+		int changes = 0;
+		boolean result = true;
+		SQLiteStatement findTag = mDb.compileStatement(TAG_ID_QUERY);
+		SQLiteStatement insertTag = mDb.compileStatement("INSERT INTO " + TAGS_TABLE + " (" + KEY_TAG + ", "
+				+ KEY_USED_CACHE + ") VALUES (?, 0)");
+		SQLiteStatement insertTagPing = mDb.compileStatement("INSERT INTO " + TAG_PING_TABLE + " (" + KEY_PID
+				+ ", " + KEY_TID + ") VALUES (?, ?)");
+		SQLiteStatement deleteTagPing = mDb.compileStatement(DELETE_TAGPING);
+		RankWriter rank = new RankWriter();
+		mDb.beginTransaction();
 		try {
-			cacheUpdates = fetchTagNamesForPing(pingid);
-		} catch (Exception e) {
-			Log.w(TAG, "updateTaggings: Some problem getting tags for this ping!");
-			e.printStackTrace();
-		}
-		cacheUpdates.addAll(newTags);
-
-		// Now, insert new taggings
-		for (String t : newTags) {
-			if (t.trim().length() == 0) continue;
-			long tid = getOrMakeNewTID(t);
-			if (tid == -1) Log.e(TAG, "updateTaggings: ERROR: about to insert tid -1");
+			long pingtime = DatabaseUtils.longForQuery(mDb, pingTimeQuery(pingid), null);
+
+			// Tags currently attached to the ping. Whatever is left in this
+			// set after going through the new tags must be removed.
+			Set<Long> oldTids = new HashSet<Long>();
+			Cursor c = fetchTaggings(pingid, KEY_PID);
+			try {
+				int idx = c.getColumnIndex(KEY_TID);
+				while (c.moveToNext())
+					oldTids.add(c.getLong(idx));
+			} finally {
+				c.close();
+			}
+
+			// Now, insert new taggings
+			Set<Long> newTids = new HashSet<Long>();
+			for (String t : newTags) {
+				if (t.trim().length() == 0) continue;
+				long tid = findOrInsertTag(findTag, insertTag, t);
+				if (!newTids.add(tid)) continue;
+				if (oldTids.remove(tid)) continue;
+				insertTagPing.bindLong(1, pingid);
+				insertTagPing.bindLong(2, tid);
+				insertTagPing.executeInsert();
+				rank.add(tid, pingtime);
+				changes++;
+			}
+
+			// Remove taggings that are no longer present
+			for (long tid : oldTids) {
+				deleteTagPing.bindLong(1, pingid);
+				deleteTagPing.bindLong(2, tid);
+				deleteTagPing.execute();
+				rank.remove(tid, pingtime);
+				changes++;
+			}
+			mDb.setTransactionSuccessful();
+			C_TRANSACTIONS.inc();
+		} catch (SQLException e) {
+			Log.e(TAG, "updateTaggings: error updating taggings for ping " + pingid + ": " + e.getMessage());
+			C_ROLLBACKS.inc();
+			// Tags created within the failed transaction may be in the
+			// dictionary
+			TagDictionary.getInstance().invalidate();
+			result = false;
+		} finally {
+			mDb.endTransaction();
+			findTag.close();
+			insertTag.close();
+			insertTagPing.close();
+			deleteTagPing.close();
+			rank.close();
+		}
+		T_UPDATE_TAGGINGS.stop(t0, changes);
+		return result;
+	}
+
+	/**
+	 * Keeps the tag_rank table in step with taggings added and removed within
+	 * a transaction, touching only the rows of the affected tag. Must be
+	 * closed after use.
+	 */
+	private class RankWriter {
+		private final SQLiteStatement mStore = mDb.compileStatement(STORE_TAG_RANK);
+		private final SQLiteStatement mDelete = mDb.compileStatement(DELETE_TAG_RANK);
+
+		/** Accounts for a new tagging of tag tid on a ping at the given time */
+		void add(long tid, long pingtime) {
+			double w = TagRanking.logWeight(pingtime);
+			update(tid, TagRanking.bucketOf(pingtime), w, true);
+			update(tid, TagRanking.GLOBAL, w, true);
+		}
+
+		/** Accounts for a removed tagging of tag tid on a ping at the given time */
+		void remove(long tid, long pingtime) {
+			double w = TagRanking.logWeight(pingtime);
+			update(tid, TagRanking.bucketOf(pingtime), w, false);
+			update(tid, TagRanking.GLOBAL, w, false);
+		}
+
+		private void update(long tid, int bucket, double w, boolean add) {
+			// Read through a cursor, simpleQueryForString() would round the
+			// score to 15 digits and leave removed taggings behind
+			double score = Double.NEGATIVE_INFINITY;
+			Cursor c = mDb.rawQuery(rankScoreQuery(tid, bucket), null);
 			try {
-				newTagPing(pingid, tid);
-			} catch (Exception e) {
-				Log.w(TAG, "updateTaggings: error inserting newTagPing(" + pingid + "," + tid + ") in updateTaggings()");
+				if (c.moveToFirst()) score = c.getDouble(0);
+			} finally {
+				c.close();
+			}
+			score = add ? TagRanking.logAddExp(score, w) : TagRanking.logSubExp(score, w);
+			if (score == Double.NEGATIVE_INFINITY) {
+				mDelete.bindLong(1, tid);
+				mDelete.bindLong(2, bucket);
+				mDelete.execute();
+			} else {
+				mStore.bindLong(1, tid);
+				mStore.bindLong(2, bucket);
+				mStore.bindDouble(3, score);
+				mStore.executeInsert();
 			}
 		}
 
-		// Update usage counts for all tags affected
-		for (String tag : cacheUpdates) {
-			updateTagCache(getTID(tag));
+		void close() {
+			mStore.close();
+			mDelete.close();
 		}
-		return true;
 	}
 
-	/** Cleans up the tags database, removing all unused tags */
-	public void cleanupUnusedTags() {
-		BeeminderDbAdapter bdb = BeeminderDbAdapter.getInstance();
-		bdb.openDatabase();
+	/**
+	 * Internal function returning the id of a tag using the supplied compiled
+	 * statements, inserting the tag first if it does not exist yet.
+	 */
+	private long findOrInsertTag(SQLiteStatement findTag, SQLiteStatement insertTag, String tag) {
+		TagDictionary dict = TagDictionary.getInstance();
+		long tid = dict.getId(tag);
+		if (tid != -1) return tid;
+		if (!dict.isComplete()) {
+			findTag.bindString(1, tag);
+			try {
+				tid = findTag.simpleQueryForLong();
+				dict.put(tid, tag);
+				return tid;
+			} catch (SQLiteDoneException e) {
+				// Not found, insert below
+			}
+		}
+		if (LOCAL_LOGV) Log.v(TAG, "findOrInsertTag: new tag " + tag);
+		insertTag.bindString(1, tag);
+		tid = insertTag.executeInsert();
+		dict.put(tid, tag);
+		return tid;
+	}
 
-		Cursor c = fetchAllTags();
-		c.moveToFirst();
-		int idx = c.getColumnIndex(KEY_ROWID);
-		int tagIdx = c.getColumnIndex(KEY_TAG);
-		while (!c.isAfterLast()) {
-			long tagid = c.getLong(idx);
-			// Check ping tag pairs
-			Cursor tids = mDb.query(TAG_PING_TABLE, new String[] { KEY_ROWID }, KEY_TID + "=" + tagid, null, null,
-					null, null);
-			int usecount = tids.getCount();
-			tids.close();
-
-			// Check goal tag pairs
-			Cursor gtids = bdb.fetchGoalTags(tagid, BeeminderDbAdapter.KEY_TID);
-			usecount += gtids.getCount();
-			gtids.close();
-
-			if (LOCAL_LOGV) Log.v(TAG, "cleanupUnusedTags: tag " + c.getString(tagIdx) + " is used " + usecount
-					+ " times");
-			if (usecount == 0) {
-				if (LOCAL_LOGV) Log.i(TAG, "cleanupUnusedTags: removing tag " + c.getString(tagIdx)
-						+ " noone is using it.");
-				mDb.delete(TAGS_TABLE, KEY_ROWID + "=" + tagid, null);
+	/**
+	 * Cleans up the tags database, removing all tags that are neither used by
+	 * a ping nor linked to a Beeminder goal. Runs as a single delete across
+	 * both databases within a transaction, with the Beeminder database
+	 * attached for its duration, and may take a while on large databases, so
+	 * it should not be called from the UI thread.
+	 * 
+	 * @return the number of tags removed, or -1 if the cleanup failed or the
+	 *         Beeminder database could not be attached
+	 */
+	public int cleanupUnusedTags() {
+		long t0 = T_CLEANUP_TAGS.start();
+		int removed = -1;
+		mAttachLock.lock();
+		try {
+			if (!attachBeeminder()) {
+				// Without the goal links, tags only used by goals would go
+				// away
+				Log.e(TAG, "cleanupUnusedTags: Beeminder database not attached");
+				T_CLEANUP_TAGS.stop(t0);
+				return removed;
 			}
-			c.moveToNext();
+			mDb.beginTransaction();
+			try {
+				mDb.execSQL(CLEANUP_TAGS);
+				removed = (int) DatabaseUtils.longForQuery(mDb, "SELECT changes()", null);
+				// Rankings of tags whose last tagging was removed may be left
+				// with a score lost in rounding
+				mDb.execSQL(CLEANUP_TAG_RANK);
+				mDb.setTransactionSuccessful();
+				C_TRANSACTIONS.inc();
+			} catch (SQLException e) {
+				Log.e(TAG, "cleanupUnusedTags: " + e.getMessage());
+				C_ROLLBACKS.inc();
+			} finally {
+				mDb.endTransaction();
+				detachBeeminder();
+			}
+		} finally {
+			mAttachLock.unlock();
 		}
-		c.close();
-		bdb.closeDatabase();
+		if (LOCAL_LOGV) Log.v(TAG, "cleanupUnusedTags: removed " + removed + " tags");
+		// Cheaper than finding out which tags went away
+		if (removed > 0) loadTagDictionary();
+		T_CLEANUP_TAGS.stop(t0, Math.max(removed, 0));
+		return removed;
 	}
 }
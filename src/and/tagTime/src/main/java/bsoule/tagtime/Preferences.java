@@ -1,14 +1,21 @@
 package bsoule.tagtime;
 
+import java.io.File;
 import java.util.Arrays;
 
+import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Vibrator;
 import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
+import android.widget.Toast;
 
 import com.actionbarsherlock.app.ActionBar;
 import com.actionbarsherlock.app.SherlockPreferenceActivity;
@@ -20,6 +27,11 @@ public class Preferences extends SherlockPreferenceActivity {
 	
     // Dialog IDs
     public static final int ABOUT_DIALOG = 0;
+    public static final int RESTORE_DIALOG = 1;
+
+    private static final String BACKUP_FNAME = "timepie.backup";
+
+    private BackupTask mBackupTask = null;
 
     @Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -61,6 +73,7 @@ public class Preferences extends SherlockPreferenceActivity {
         	backup.setOnPreferenceClickListener( new Preference.OnPreferenceClickListener() {
 
                 public boolean onPreferenceClick( Preference preference ) {
+                    startBackup( false );
                     return true;
                 }
             } );
@@ -71,6 +84,7 @@ public class Preferences extends SherlockPreferenceActivity {
         	restore.setOnPreferenceClickListener( new Preference.OnPreferenceClickListener() {
 
                 public boolean onPreferenceClick( Preference preference ) {
+                    showDialog( RESTORE_DIALOG );
                     return true;
                 }
             } );
@@ -94,10 +108,64 @@ public class Preferences extends SherlockPreferenceActivity {
         case ABOUT_DIALOG:
             Dialog about = new DialogAbout( Preferences.this, R.style.about_dialog );
             return about;
+        case RESTORE_DIALOG:
+            return new AlertDialog.Builder( Preferences.this )
+            .setTitle( "Restore data?" )
+            .setMessage( "All current pings, tags and Beeminder links will be replaced with the contents of the backup." )
+            .setPositiveButton( "Restore", new DialogInterface.OnClickListener() {
+                public void onClick( DialogInterface dialog, int which ) {
+                    startBackup( true );
+                }
+            } )
+            .setNegativeButton( "Cancel", new DialogInterface.OnClickListener() {
+                public void onClick( DialogInterface dialog, int which ) {}
+            } ).create();
         }
         return null;
     }
 
+    private void startBackup( boolean restore ) {
+        if (!Environment.getExternalStorageState().equals( Environment.MEDIA_MOUNTED )) {
+            Toast.makeText( this, "No SD card mounted!", Toast.LENGTH_SHORT ).show();
+            return;
+        }
+        if (mBackupTask != null && mBackupTask.getStatus() != AsyncTask.Status.FINISHED) return;
+        mBackupTask = new BackupTask( restore );
+        mBackupTask.execute( new File( Environment.getExternalStorageDirectory(), BACKUP_FNAME ) );
+    }
+
+    /** Runs a backup or restore with DataBackupRestore off the UI thread. */
+    private class BackupTask extends AsyncTask<File, Void, Boolean> {
+        private final boolean mRestore;
+        private ProgressDialog mProgress;
+
+        public BackupTask( boolean restore ) {
+            mRestore = restore;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mProgress = ProgressDialog.show( Preferences.this, null, mRestore ? "Restoring data..." : "Backing up data...",
+                    true, false );
+        }
+
+        @Override
+        protected Boolean doInBackground( File... files ) {
+            if (mRestore) return DataBackupRestore.restoreBackup( getApplicationContext(), files[0] );
+            else return DataBackupRestore.saveBackup( getApplicationContext(), files[0] );
+        }
+
+        @Override
+        protected void onPostExecute( Boolean ok ) {
+            if (mProgress.isShowing()) mProgress.dismiss();
+            String msg;
+            if (mRestore) msg = ok ? "Data restored." : "Could not restore data from " + BACKUP_FNAME + ".";
+            else msg = ok ? "Data saved to " + BACKUP_FNAME + "." : "Could not save backup.";
+            Toast.makeText( getApplicationContext(), msg, Toast.LENGTH_LONG ).show();
+            if (mRestore && ok) sendBroadcast( new Intent( TagTime.PING_UPDATE_EVENT ) );
+        }
+    }
+
     /** Handles menu item selections */
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
@@ -21,6 +21,9 @@ public class TPStartUp extends BroadcastReceiver {
 				// something really wrong here
 				Log.e(TAG, "Could not start service " + comp.toString());
 			}
+			// Alarms do not survive reboots, resume sending pending Beeminder points
+			context.startService(new Intent(context, BeeminderService.class)
+					.setAction(BeeminderService.ACTION_DRAIN));
 		} else {
 			Log.e(TAG, "Received unexpected intent " + intent.getAction());   
 		}
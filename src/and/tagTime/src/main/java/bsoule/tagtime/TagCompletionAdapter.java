@@ -0,0 +1,106 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.MultiAutoCompleteTextView;
+import android.widget.TextView;
+
+/**
+ * Suggests existing tags for the word being typed in a space separated tag
+ * list, as in the EditPing text entry. Suggestions come from the prefix index
+ * of the TagDictionary, searched on the filter thread for each keystroke.
+ */
+public class TagCompletionAdapter extends BaseAdapter implements Filterable {
+
+	/** Maximum number of suggestions shown */
+	private static final int MAX_SUGGESTIONS = 20;
+
+	private final LayoutInflater mInflater;
+	private List<String> mSuggestions = new ArrayList<String>();
+
+	public TagCompletionAdapter(Context context) {
+		mInflater = LayoutInflater.from(context);
+	}
+
+	/** Sets up the given view to complete space separated tags. */
+	public static void attach(MultiAutoCompleteTextView view) {
+		view.setAdapter(new TagCompletionAdapter(view.getContext()));
+		view.setTokenizer(new SpaceTokenizer());
+		view.setThreshold(1);
+	}
+
+	public int getCount() {
+		return mSuggestions.size();
+	}
+
+	public String getItem(int position) {
+		return mSuggestions.get(position);
+	}
+
+	public long getItemId(int position) {
+		return position;
+	}
+
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView tv = (TextView) convertView;
+		if (tv == null)
+			tv = (TextView) mInflater.inflate(android.R.layout.simple_dropdown_item_1line, parent, false);
+		tv.setText(mSuggestions.get(position));
+		return tv;
+	}
+
+	public Filter getFilter() {
+		return mFilter;
+	}
+
+	private final Filter mFilter = new Filter() {
+		@Override
+		protected FilterResults performFiltering(CharSequence prefix) {
+			FilterResults results = new FilterResults();
+			List<String> list = (prefix == null) ? new ArrayList<String>() : TagDictionary.getInstance().complete(
+					prefix.toString(), MAX_SUGGESTIONS);
+			results.values = list;
+			results.count = list.size();
+			return results;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected void publishResults(CharSequence prefix, FilterResults results) {
+			mSuggestions = (List<String>) results.values;
+			if (results.count > 0) notifyDataSetChanged();
+			else notifyDataSetInvalidated();
+		}
+	};
+
+	/** Splits the text into tags at whitespace, adding a space after each. */
+	public static class SpaceTokenizer implements MultiAutoCompleteTextView.Tokenizer {
+
+		public int findTokenStart(CharSequence text, int cursor) {
+			int i = cursor;
+			while (i > 0 && !Character.isWhitespace(text.charAt(i - 1)))
+				i--;
+			return i;
+		}
+
+		public int findTokenEnd(CharSequence text, int cursor) {
+			int i = cursor;
+			int len = text.length();
+			while (i < len && !Character.isWhitespace(text.charAt(i)))
+				i++;
+			return i;
+		}
+
+		public CharSequence terminateToken(CharSequence text) {
+			return text + " ";
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+/**
+ * Process-wide, bidirectional cache of the tags table, mapping tag ids to tag
+ * strings and back. It is loaded once on a background thread started from
+ * TagTime.onCreate() and kept coherent by the PingsDbAdapter methods that
+ * create, rename or remove tags, so lookups in loops (log rendering, export,
+ * goal matching) do not need a query per tag. Transactions that fail after
+ * creating tags invalidate it.
+ *
+ * Until the dictionary is loaded (or after it has been invalidated), it only
+ * holds the entries seen so far and a missing entry must be looked up in the
+ * database. Once loaded, a missing entry means the tag does not exist.
+ *
+ * Tag names can also be searched by prefix through a TagIndex. The index is
+ * built on first use, preferably off the UI thread with buildIndex(), and is
+ * then updated along with the dictionary.
+ */
+public class TagDictionary {
+	private static final String TAG = "TagDictionary";
+	private static final boolean LOCAL_LOGV = true && !TagTime.DISABLE_LOGV;
+
+	private static final TagDictionary sInstance = new TagDictionary();
+
+	public static TagDictionary getInstance() {
+		return sInstance;
+	}
+
+	private final LongSparseArray<String> mNames = new LongSparseArray<String>();
+	private final Map<String, Long> mIds = new HashMap<String, Long>();
+	private boolean mComplete = false;
+	private TagIndex mIndex = null;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+
+	private TagDictionary() {}
+
+	/**
+	 * Replaces the contents of the dictionary with the tags in the supplied
+	 * cursor, which must hold all tags with their _id and tag columns.
+	 */
+	public synchronized void load(Cursor c) {
+		clear();
+		int idxrow = c.getColumnIndex(PingsDbAdapter.KEY_ROWID);
+		int idxtag = c.getColumnIndex(PingsDbAdapter.KEY_TAG);
+		while (c.moveToNext()) {
+			put(c.getLong(idxrow), c.getString(idxtag));
+		}
+		mComplete = true;
+		if (LOCAL_LOGV) Log.v(TAG, "load: " + mIds.size() + " tags");
+	}
+
+	/** Removes all entries, marking the dictionary as complete but empty. */
+	public synchronized void reset() {
+		clear();
+		mComplete = true;
+	}
+
+	/**
+	 * Forgets all entries, for example after a failed transaction left the
+	 * dictionary out of sync with the database. Lookups fall back to the
+	 * database until the next load().
+	 */
+	public synchronized void invalidate() {
+		clear();
+		mComplete = false;
+	}
+
+	private void clear() {
+		mNames.clear();
+		mIds.clear();
+		mIndex = null;
+	}
+
+	/** Returns true if a missing entry means the tag does not exist. */
+	public synchronized boolean isComplete() {
+		return mComplete;
+	}
+
+	/**
+	 * Returns the name of the tag with the given id, or null if it is not in
+	 * the dictionary.
+	 */
+	public synchronized String getName(long tid) {
+		String name = mNames.get(tid);
+		if (name != null || mComplete) mHits++;
+		else mMisses++;
+		return name;
+	}
+
+	/**
+	 * Returns the id of the given tag, or -1 if it is not in the dictionary.
+	 */
+	public synchronized long getId(String tag) {
+		Long tid = mIds.get(tag);
+		if (tid != null || mComplete) mHits++;
+		else mMisses++;
+		return (tid == null) ? -1 : tid;
+	}
+
+	/** Records a tag, replacing any previous name for the same id. */
+	public synchronized void put(long tid, String tag) {
+		String old = mNames.get(tid);
+		if (old != null) {
+			mIds.remove(old);
+			if (mIndex != null) mIndex.remove(old);
+		}
+		mNames.put(tid, tag);
+		mIds.put(tag, tid);
+		if (mIndex != null) mIndex.add(tag);
+	}
+
+	/** Removes the tag with the given id. */
+	public synchronized void remove(long tid) {
+		String old = mNames.get(tid);
+		if (old != null) {
+			mIds.remove(old);
+			if (mIndex != null) mIndex.remove(old);
+		}
+		mNames.remove(tid);
+	}
+
+	/**
+	 * Builds the prefix index of tag names if needed. Takes a few
+	 * milliseconds for large dictionaries, so call it from a background
+	 * thread before the first search.
+	 */
+	public synchronized void buildIndex() {
+		if (mIndex == null) mIndex = new TagIndex(mIds.keySet());
+	}
+
+	/**
+	 * Returns up to max tag names starting with the given prefix, ignoring
+	 * case, in alphabetical order. Only tags in the dictionary are found, so
+	 * results may be partial until it is loaded.
+	 */
+	public synchronized List<String> complete(String prefix, int max) {
+		buildIndex();
+		return (max > 0) ? mIndex.complete(prefix, max) : new ArrayList<String>();
+	}
+
+	/** Returns the number of tag names starting with the given prefix. */
+	public synchronized int countPrefix(String prefix) {
+		buildIndex();
+		return mIndex.count(prefix);
+	}
+
+	/** Number of lookups answered without going to the database. */
+	public synchronized long getHits() {
+		return mHits;
+	}
+
+	/** Number of lookups that had to go to the database. */
+	public synchronized long getMisses() {
+		return mMisses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TagDictionary(" + mIds.size() + " tags, " + mHits + " hits, " + mMisses + " misses)";
+	}
+}
@@ -0,0 +1,213 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.Gravity;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+
+/**
+ * Shows tags as TagToggle buttons flowing into centered rows, as in EditPing.
+ * The rows are items of a ListView, so only the visible rows have views and
+ * those are recycled while scrolling, along with their buttons. Row contents
+ * are computed up front from the text width of each tag (see
+ * TagToggle.measureWidthFor), so tags are measured once without creating
+ * a button for each. A filter can restrict the buttons to a subset of the
+ * tags, keeping their order.
+ */
+public class TagFlowView extends ListView {
+
+	private final TagRowAdapter mAdapter = new TagRowAdapter();
+	private TagToggle mPrototype;
+	private OnClickListener mTagListener;
+
+	// All tags in display order and their measured widths
+	private String[] mNames = new String[0];
+	private long[] mIds = new long[0];
+	private int[] mWidths = new int[0];
+	private List<String> mChecked = new ArrayList<String>();
+	private Set<String> mFilter = null;
+
+	// Indices into mNames of the tags shown, and index into mShown of the
+	// first tag of each row, plus one past the last
+	private int[] mShown = new int[0];
+	private int[] mRowStarts = new int[] { 0 };
+	private int mRowWidth = 0;
+
+	// Buttons taken out of recycled rows, to be reused in other rows
+	private final List<TagToggle> mScrap = new ArrayList<TagToggle>();
+
+	public TagFlowView(Context context) {
+		super(context);
+		init();
+	}
+
+	public TagFlowView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init();
+	}
+
+	public TagFlowView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+		init();
+	}
+
+	private void init() {
+		mPrototype = new TagToggle(getContext(), "", -1, false);
+		setDivider(null);
+		setItemsCanFocus(true);
+		setAdapter(mAdapter);
+	}
+
+	/** Sets the listener called after a tag button was toggled. */
+	public void setOnTagClickListener(OnClickListener l) {
+		mTagListener = l;
+	}
+
+	/**
+	 * Shows the given tags in order, with ids[i] the id of names[i]. Both
+	 * arrays are used as is, not copied.
+	 */
+	public void setTags(String[] names, long[] ids) {
+		int n = names.length;
+		mNames = names;
+		mIds = ids;
+		mWidths = new int[n];
+		for (int i = 0; i < n; i++)
+			mWidths[i] = mPrototype.measureWidthFor(names[i]);
+		layoutRows();
+	}
+
+	/**
+	 * Sets the list of selected tags. The list is used as is, not copied, so
+	 * that the buttons reflect later changes once they are rebound.
+	 */
+	public void setCheckedTags(List<String> checked) {
+		mChecked = (checked != null) ? checked : new ArrayList<String>();
+		mAdapter.notifyDataSetChanged();
+	}
+
+	/**
+	 * Only shows the tags in the given set, or all tags if it is null.
+	 */
+	public void setFilter(Set<String> shown) {
+		mFilter = shown;
+		layoutRows();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		if (w != oldw) layoutRows();
+	}
+
+	/** Splits the tags into rows fitting the current width. */
+	private void layoutRows() {
+		mRowWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+		int n = 0;
+		mShown = new int[mNames.length];
+		for (int i = 0; i < mNames.length; i++) {
+			if (mFilter == null || mFilter.contains(mNames[i])) mShown[n++] = i;
+		}
+		if (mRowWidth <= 0 || n == 0) {
+			mRowStarts = new int[] { 0 };
+			mAdapter.notifyDataSetChanged();
+			return;
+		}
+		int[] starts = new int[n + 1];
+		int rows = 0;
+		int used = 0;
+		for (int i = 0; i < n; i++) {
+			// Tags wider than a row get a row of their own
+			int w = mWidths[mShown[i]];
+			if (i == 0 || used + w > mRowWidth) {
+				starts[rows++] = i;
+				used = 0;
+			}
+			used += w;
+		}
+		starts[rows] = n;
+		mRowStarts = new int[rows + 1];
+		System.arraycopy(starts, 0, mRowStarts, 0, rows + 1);
+		mAdapter.notifyDataSetChanged();
+	}
+
+	private OnClickListener mToggleListener = new OnClickListener() {
+		public void onClick(View v) {
+			if (mTagListener != null) mTagListener.onClick(v);
+		}
+	};
+
+	private TagToggle obtainToggle() {
+		int n = mScrap.size();
+		if (n > 0) return mScrap.remove(n - 1);
+		TagToggle tog = new TagToggle(getContext(), "", -1, false);
+		tog.setOnClickListener(mToggleListener);
+		return tog;
+	}
+
+	/** One item per row, each a horizontal LinearLayout of TagToggles */
+	private class TagRowAdapter extends BaseAdapter {
+
+		public int getCount() {
+			return mRowStarts.length - 1;
+		}
+
+		public Object getItem(int position) {
+			return null;
+		}
+
+		public long getItemId(int position) {
+			return position;
+		}
+
+		@Override
+		public boolean areAllItemsEnabled() {
+			return false;
+		}
+
+		@Override
+		public boolean isEnabled(int position) {
+			// Rows are containers, only their buttons are clickable
+			return false;
+		}
+
+		public View getView(int position, View convertView, ViewGroup parent) {
+			LinearLayout row = (LinearLayout) convertView;
+			if (row == null) {
+				row = new LinearLayout(getContext());
+				row.setOrientation(LinearLayout.HORIZONTAL);
+				row.setGravity(Gravity.CENTER_HORIZONTAL);
+				row.setLayoutParams(new AbsListView.LayoutParams(AbsListView.LayoutParams.MATCH_PARENT,
+						AbsListView.LayoutParams.WRAP_CONTENT));
+			}
+			int start = mRowStarts[position];
+			int count = mRowStarts[position + 1] - start;
+			while (row.getChildCount() > count) {
+				int last = row.getChildCount() - 1;
+				mScrap.add((TagToggle) row.getChildAt(last));
+				row.removeViewAt(last);
+			}
+			while (row.getChildCount() < count)
+				row.addView(obtainToggle());
+			for (int i = 0; i < count; i++) {
+				TagToggle tog = (TagToggle) row.getChildAt(i);
+				int tag = mShown[start + i];
+				String name = mNames[tag];
+				tog.setText(name);
+				tog.setTId(mIds[tag]);
+				tog.setChecked(mChecked.contains(name));
+			}
+			return row;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Sorted index of tag names for case-insensitive prefix search, used for tag
+ * filtering and completion in EditPing. Names are kept in a sorted array, so
+ * a prefix lookup is two binary searches and the matches are contiguous.
+ * Adding or removing a name shifts the array, which is cheap for the few
+ * thousand tags of even a large database.
+ *
+ * Pure Java so it can be used (and benchmarked) outside of Android. Not
+ * thread safe, see TagDictionary for synchronized access.
+ */
+public final class TagIndex {
+
+	// Lowercased names in sorted order, and the names themselves
+	private String[] mKeys;
+	private String[] mNames;
+	private int mSize;
+
+	public TagIndex() {
+		mKeys = new String[16];
+		mNames = new String[16];
+		mSize = 0;
+	}
+
+	/** Builds an index of the given names, sorting them once. */
+	public TagIndex(Collection<String> names) {
+		int n = names.size();
+		Entry[] entries = new Entry[n];
+		int i = 0;
+		for (String name : names)
+			entries[i++] = new Entry(name);
+		Arrays.sort(entries);
+		mKeys = new String[Math.max(n, 16)];
+		mNames = new String[mKeys.length];
+		for (i = 0; i < n; i++) {
+			mKeys[i] = entries[i].key;
+			mNames[i] = entries[i].name;
+		}
+		mSize = n;
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final String key, name;
+
+		Entry(String name) {
+			this.name = name;
+			this.key = keyOf(name);
+		}
+
+		public int compareTo(Entry o) {
+			int c = key.compareTo(o.key);
+			return (c != 0) ? c : name.compareTo(o.name);
+		}
+	}
+
+	private static String keyOf(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	// Position of the given name, or -(insertion point) - 1 if absent
+	private int find(String key, String name) {
+		int lo = 0, hi = mSize - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = mKeys[mid].compareTo(key);
+			if (c == 0) c = mNames[mid].compareTo(name);
+			if (c < 0) lo = mid + 1;
+			else if (c > 0) hi = mid - 1;
+			else return mid;
+		}
+		return -(lo + 1);
+	}
+
+	/** Adds a name, doing nothing if it is already present. */
+	public void add(String name) {
+		String key = keyOf(name);
+		int pos = find(key, name);
+		if (pos >= 0) return;
+		pos = -(pos + 1);
+		if (mSize == mKeys.length) {
+			// Arrays.copyOf() needs API level 9
+			String[] keys = new String[mSize * 2];
+			String[] names = new String[mSize * 2];
+			System.arraycopy(mKeys, 0, keys, 0, mSize);
+			System.arraycopy(mNames, 0, names, 0, mSize);
+			mKeys = keys;
+			mNames = names;
+		}
+		System.arraycopy(mKeys, pos, mKeys, pos + 1, mSize - pos);
+		System.arraycopy(mNames, pos, mNames, pos + 1, mSize - pos);
+		mKeys[pos] = key;
+		mNames[pos] = name;
+		mSize++;
+	}
+
+	/** Removes a name, doing nothing if it is not present. */
+	public void remove(String name) {
+		int pos = find(keyOf(name), name);
+		if (pos < 0) return;
+		mSize--;
+		System.arraycopy(mKeys, pos + 1, mKeys, pos, mSize - pos);
+		System.arraycopy(mNames, pos + 1, mNames, pos, mSize - pos);
+		mKeys[mSize] = null;
+		mNames[mSize] = null;
+	}
+
+	// Compares key with prefix, considering keys starting with it as equal
+	private static int comparePrefix(String key, String prefix) {
+		int n = Math.min(key.length(), prefix.length());
+		for (int i = 0; i < n; i++) {
+			int c = key.charAt(i) - prefix.charAt(i);
+			if (c != 0) return c;
+		}
+		return (key.length() < prefix.length()) ? -1 : 0;
+	}
+
+	// First position whose key compares to prefix at or above bound
+	private int search(String prefix, int bound) {
+		int lo = 0, hi = mSize;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (comparePrefix(mKeys[mid], prefix) < bound) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns up to max names starting with the given prefix, ignoring case,
+	 * in alphabetical order.
+	 */
+	public List<String> complete(String prefix, int max) {
+		String p = keyOf(prefix);
+		int lo = search(p, 0);
+		int hi = Math.min(search(p, 1), lo + max);
+		List<String> ret = new ArrayList<String>(Math.max(hi - lo, 0));
+		for (int i = lo; i < hi; i++)
+			ret.add(mNames[i]);
+		return ret;
+	}
+
+	/** Returns the number of names starting with the given prefix. */
+	public int count(String prefix) {
+		String p = keyOf(prefix);
+		return search(p, 1) - search(p, 0);
+	}
+}
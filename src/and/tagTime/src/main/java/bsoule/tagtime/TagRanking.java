@@ -0,0 +1,69 @@
+package bsoule.tagtime;
+
+/*
+ * Arithmetic for recency-weighted tag ranking. The score of a tag is the sum
+ * of exp(-age/TAU) over its taggings, so recent taggings count more and old
+ * habits fade with a half-life of HALF_LIFE_DAYS. Scores are kept for each
+ * time-of-day bucket and for the whole day. Buckets are taken in UTC rather
+ * than local time, so that a tagging is always removed from the bucket it
+ * was added to, even if the time zone or daylight saving time changed in
+ * between.
+ *
+ * Since all scores decay at the same rate, their order never changes with
+ * time. We therefore store log(sum(exp((t - BOT)/TAU))) over the ping times t,
+ * which is the log score up to a constant shared by all tags: a new tagging
+ * is added with logAddExp() and a removed one taken out with logSubExp(),
+ * without ever touching the scores of other tags. Working in the log domain
+ * keeps the values small even though exp(t/TAU) itself grows without bound.
+ *
+ * Pure Java so it can be used outside of Android. See PingsDbAdapter for the
+ * tag_rank table holding the scores.
+ */
+public final class TagRanking {
+
+	public static final double HALF_LIFE_DAYS = 14;
+	private static final double TAU = HALF_LIFE_DAYS * 86400 / Math.log(2);
+
+	/** Number of time-of-day buckets, each covering 24/BUCKETS hours */
+	public static final int BUCKETS = 6;
+	/** Bucket holding scores over the whole day */
+	public static final int GLOBAL = BUCKETS;
+
+	// Scores this far below the previous score after a removal are treated
+	// as zero. Rounding leaves up to about 1e-14 of the previous score, i.e.
+	// 31 below it in the log domain. The margin also drops remainders made
+	// of taggings more than 25 TAUs (about 500 days) older than the removed
+	// one, which rank last anyway.
+	private static final double ZERO_MARGIN = 25;
+
+	private TagRanking() {}
+
+	/** Returns the log weight of a tagging of a ping at the given time. */
+	public static double logWeight(long time) {
+		return (time - PingSchedule.BOT) / TAU;
+	}
+
+	/** Returns the time-of-day bucket of the given time. */
+	public static int bucketOf(long time) {
+		long secOfDay = ((time % 86400) + 86400) % 86400;
+		return (int) (secOfDay * BUCKETS / 86400);
+	}
+
+	/** Returns log(exp(a) + exp(b)). */
+	public static double logAddExp(double a, double b) {
+		if (a == Double.NEGATIVE_INFINITY) return b;
+		if (b == Double.NEGATIVE_INFINITY) return a;
+		double max = Math.max(a, b);
+		return max + Math.log1p(Math.exp(-Math.abs(a - b)));
+	}
+
+	/**
+	 * Returns log(exp(a) - exp(b)), or negative infinity if the difference is
+	 * zero (up to rounding) or negative.
+	 */
+	public static double logSubExp(double a, double b) {
+		if (b >= a) return Double.NEGATIVE_INFINITY;
+		double r = a + Math.log1p(-Math.exp(b - a));
+		return (r < a - ZERO_MARGIN) ? Double.NEGATIVE_INFINITY : r;
+	}
+}
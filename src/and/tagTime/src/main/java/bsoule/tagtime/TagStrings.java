@@ -0,0 +1,59 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Splitting and joining of space separated tag strings, as typed by the user
+ * or stored in intents. Pure Java so it can be used (and benchmarked) outside
+ * of Android.
+ */
+public final class TagStrings {
+
+	private TagStrings() {}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Splits a tag string on runs of whitespace, ignoring leading and
+	 * trailing whitespace. Gives the same result as s.trim().split("\\s+")
+	 * without compiling a regular expression, including a single empty tag
+	 * for a blank string.
+	 */
+	public static List<String> split(String s) {
+		int start = 0, end = s.length();
+		// trim() strips all control characters, not just whitespace
+		while (start < end && s.charAt(start) <= ' ') start++;
+		while (end > start && s.charAt(end - 1) <= ' ') end--;
+
+		List<String> tags = new ArrayList<String>();
+		int i = start;
+		while (i < end) {
+			int j = i;
+			while (j < end && !isSpace(s.charAt(j))) j++;
+			tags.add(s.substring(i, j));
+			while (j < end && isSpace(s.charAt(j))) j++;
+			i = j;
+		}
+		if (tags.isEmpty()) tags.add("");
+		return tags;
+	}
+
+	/** Joins tags with single spaces. */
+	public static String join(List<String> tags) {
+		int n = tags.size();
+		if (n == 0) return "";
+		if (n == 1) return tags.get(0);
+		int len = n - 1;
+		for (int i = 0; i < n; i++)
+			len += tags.get(i).length();
+		StringBuilder sb = new StringBuilder(len);
+		for (int i = 0; i < n; i++) {
+			if (i > 0) sb.append(' ');
+			sb.append(tags.get(i));
+		}
+		return sb.toString();
+	}
+}
@@ -46,6 +46,22 @@ public class TagTime extends Application {
 		BeeminderDbAdapter.initializeInstance(this);
 		PingsDbAdapter.initializeInstance(this);
 
+		// Opening the database may run schema upgrades, and loading the
+		// dictionary reads all tags, both too slow for the UI thread. Tags
+		// are looked up in the database until the dictionary is loaded.
+		new Thread(new Runnable() {
+			public void run() {
+				PingsDbAdapter db = PingsDbAdapter.getInstance();
+				db.openDatabase();
+				try {
+					db.loadTagDictionary();
+					db.rebuildTagRankIfStale();
+				} finally {
+					db.closeDatabase();
+				}
+			}
+		}, "TagTimeStartup").start();
+
 		Log.v(TAG, "Starting TagTime. Package=" + pkgname + ", Version=" + version);
 	}
 	
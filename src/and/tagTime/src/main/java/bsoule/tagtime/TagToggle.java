@@ -64,4 +64,14 @@ public class TagToggle extends Button {
 	public boolean isSelected() {
 		return selected;
 	}
+
+	/**
+	 * Returns the width this button would measure to with the given text,
+	 * computed from the text width and the padding of the background without
+	 * laying the text out.
+	 */
+	public int measureWidthFor(String text) {
+		int w = (int) Math.ceil(getPaint().measureText(text)) + getCompoundPaddingLeft() + getCompoundPaddingRight();
+		return Math.max(w, getSuggestedMinimumWidth());
+	}
 }
@@ -0,0 +1,152 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * Process-wide queue writing tag edits from the ping editor to the database
+ * on a single background thread, so that the UI thread never waits for a
+ * write. Edits of the same ping that are still waiting are coalesced: only
+ * the latest tag list is written, once. Writes happen in the order they were
+ * queued, so a reader that calls flush() first sees all earlier edits.
+ * <p>
+ * The queue lives in memory only: edits still waiting when the process dies
+ * are lost. A write that fails is reported to the user and its actions are
+ * not run.
+ */
+public class TaggingWriter {
+	private static final String TAG = "TaggingWriter";
+	private static final boolean LOCAL_LOGV = true && !TagTime.DISABLE_LOGV;
+
+	private static final TaggingWriter sInstance = new TaggingWriter();
+
+	public static TaggingWriter getInstance() {
+		return sInstance;
+	}
+
+	private static final DbMetrics.Counter C_COALESCED = DbMetrics.counter("writer.coalesced");
+
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+	// Edits waiting to be written, by ping id, with the actions to run once
+	// they are. Guarded by this.
+	private final Map<Long, List<String>> mPending = new LinkedHashMap<Long, List<String>>();
+	private final Map<Long, List<Runnable>> mCallbacks = new LinkedHashMap<Long, List<Runnable>>();
+
+	private TaggingWriter() {}
+
+	/**
+	 * Queues an update of the taggings of ping pingid to the given tags, see
+	 * PingsDbAdapter.updateTaggings(). Replaces any update of the same ping
+	 * that has not been written yet.
+	 *
+	 * @param then
+	 *            Optional action run on the writer thread once the tags are
+	 *            written. Not run if writing them fails.
+	 */
+	public synchronized void save(long pingid, List<String> tags, Runnable then) {
+		boolean idle = mPending.isEmpty();
+		if (mPending.put(pingid, new ArrayList<String>(tags)) != null) C_COALESCED.inc();
+		if (then != null) {
+			List<Runnable> l = mCallbacks.get(pingid);
+			if (l == null) {
+				l = new ArrayList<Runnable>();
+				mCallbacks.put(pingid, l);
+			}
+			l.add(then);
+		}
+		if (idle) mExecutor.execute(mDrain);
+	}
+
+	/** Queues the creation of the given tags, skipping existing ones. */
+	public void createTags(List<String> tags) {
+		final List<String> copy = new ArrayList<String>(tags);
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				PingsDbAdapter db = PingsDbAdapter.getInstance();
+				db.openDatabase();
+				try {
+					for (String t : copy) {
+						if (t.trim().length() == 0) continue;
+						if (LOCAL_LOGV) Log.v(TAG, "createTags: Storing tag \"" + t + "\"");
+						db.getOrMakeNewTID(t);
+					}
+				} finally {
+					db.closeDatabase();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits until everything queued so far has been written. Must not be
+	 * called from the UI thread.
+	 */
+	public void flush() {
+		try {
+			mExecutor.submit(new Runnable() {
+				public void run() {}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "flush: " + e.getMessage());
+		}
+	}
+
+	private final Runnable mDrain = new Runnable() {
+		public void run() {
+			Map<Long, List<String>> pending;
+			Map<Long, List<Runnable>> callbacks;
+			synchronized (TaggingWriter.this) {
+				pending = new LinkedHashMap<Long, List<String>>(mPending);
+				callbacks = new LinkedHashMap<Long, List<Runnable>>(mCallbacks);
+				mPending.clear();
+				mCallbacks.clear();
+			}
+			PingsDbAdapter db = PingsDbAdapter.getInstance();
+			db.openDatabase();
+			try {
+				for (Map.Entry<Long, List<String>> e : pending.entrySet()) {
+					if (LOCAL_LOGV) Log.v(TAG, "drain: writing tags of ping " + e.getKey());
+					if (!db.updateTaggings(e.getKey(), e.getValue())) {
+						// Whatever depends on the new tags must not happen
+						callbacks.remove(e.getKey());
+						reportFailure(e.getKey(), e.getValue());
+					}
+				}
+			} finally {
+				db.closeDatabase();
+			}
+			for (List<Runnable> l : callbacks.values()) {
+				for (Runnable r : l)
+					r.run();
+			}
+		}
+	};
+
+	/** Tells the user that the tags of a ping could not be saved. */
+	private void reportFailure(final long pingid, List<String> tags) {
+		Log.e(TAG, "drain: Could not write tags of ping " + pingid);
+		final Context ctx = TagTime.getAppContext();
+		if (ctx == null) return;
+		final String tagstr = TagStrings.join(tags);
+		new Handler(Looper.getMainLooper()).post(new Runnable() {
+			public void run() {
+				String msg = ctx.getString(R.string.ping_saving_failure, pingid, tagstr);
+				Toast.makeText(ctx, msg, Toast.LENGTH_LONG).show();
+			}
+		});
+	}
+}
@@ -0,0 +1,40 @@
+package bsoule.tagtime;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/*
+ * Formatting of timepie.log lines, compatible with the desktop TagTime log:
+ * the ping time in unix seconds, the tags each followed by a space, and the
+ * local date and time in brackets. Pure Java so it can be used (and
+ * benchmarked) outside of Android.
+ *
+ * Instances keep a date formatter and are not thread safe.
+ */
+public final class TimepieLog {
+
+	private final SimpleDateFormat mSDF;
+	private final Date mDate = new Date();
+
+	public TimepieLog(Locale locale) {
+		mSDF = new SimpleDateFormat("[yyyy.MM.dd HH:mm:ss EEE]", locale);
+	}
+
+	/**
+	 * Appends the log line for a ping, including the trailing newline.
+	 *
+	 * @param tags
+	 *            The ping's tags, each followed by a single space
+	 */
+	public void appendLine(Appendable out, long pt, CharSequence tags) throws IOException {
+		mDate.setTime(pt * 1000);
+		out.append(Long.toString(pt));
+		out.append(' ');
+		out.append(tags);
+		out.append(' ');
+		out.append(mSDF.format(mDate));
+		out.append('\n');
+	}
+}
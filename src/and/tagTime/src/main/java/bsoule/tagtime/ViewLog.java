@@ -1,9 +1,10 @@
 package bsoule.tagtime;
 
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -13,18 +14,20 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
-import android.support.v4.widget.CursorAdapter;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
 import android.widget.ProgressBar;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.actionbarsherlock.app.ActionBar;
@@ -37,56 +40,107 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 	private static final String TAG = "ViewLog";
 	private static final boolean LOCAL_LOGV = true && !TagTime.DISABLE_LOGV;
 
+	// Loader ids
+	private static final int LOADER_FIRSTPAGE = 0;
+	private static final int LOADER_MONTHS = 1;
+
+	/** Number of pings loaded from the database at a time */
+	private static final int PAGE_SIZE = 200;
+	/** Maximum number of pages kept in memory */
+	private static final int MAX_PAGES = 8;
+
 	private PingsDbAdapter mDbHelper;
-	private BeeminderDbAdapter mBeeDb;
-	private PingCursorAdapter mPingAdapter;
+	private PingLogAdapter mPingAdapter;
 
 	private SimpleDateFormat mSDF;
-	private Map<Long, String> mTagList = new HashMap<Long, String>();
 	private ListView mListView;
 	private ProgressBar mProgress;
 	private TextView mNoData;
 
 	private ActionBar mAction;
 
-	private void refreshTagList() {
-		Cursor c = mDbHelper.fetchAllTags("ROWID");
-		mTagList.clear();
+	/** Loads the first page of the ping log */
+	public static final class PingsCursorLoader extends SimpleCursorLoader {
 
-		int idxrow = c.getColumnIndex(PingsDbAdapter.KEY_ROWID);
-		int idxtag = c.getColumnIndex(PingsDbAdapter.KEY_TAG);
+		private PingsDbAdapter mHelper;
 
-		try {
-			c.moveToFirst();
-			while (!c.isAfterLast()) {
-				mTagList.put(c.getLong(idxrow), c.getString(idxtag));
-				c.moveToNext();
-			}
-		} finally {
-			c.close();
+		public PingsCursorLoader(Context context, PingsDbAdapter helper) {
+			super(context);
+			mHelper = helper;
+		}
+
+		@Override
+		public Cursor loadInBackground() {
+			return mHelper.fetchPingRows(Long.MAX_VALUE, 0, PAGE_SIZE);
 		}
+
 	}
 
-	public static final class PingsCursorLoader extends SimpleCursorLoader {
+	/** Loads the month index used for fast scrolling */
+	public static final class MonthsCursorLoader extends SimpleCursorLoader {
 
 		private PingsDbAdapter mHelper;
 
-		public PingsCursorLoader(Context context, PingsDbAdapter helper) {
+		public MonthsCursorLoader(Context context, PingsDbAdapter helper) {
 			super(context);
 			mHelper = helper;
 		}
 
 		@Override
 		public Cursor loadInBackground() {
-			return mHelper.fetchAllPings(true);
+			return mHelper.fetchPingMonths();
 		}
 
 	}
 
-	public final class PingCursorAdapter extends CursorAdapter {
+	/** A ping log entry copied out of the database */
+	private static final class PingRow {
+		long id;
+		long ping;
+		String tags;
+		int points;
+		int goals;
+	}
+
+	/**
+	 * Adapter presenting the ping log in windows of PAGE_SIZE pings, loaded
+	 * on demand as the list scrolls. The next page is normally found by ping
+	 * time from the last row of the previous page. Once the month index is
+	 * available, it provides the total count, the fast scroll sections and
+	 * a starting point for loading pages far away from loaded ones.
+	 *
+	 * Pages are loaded in the background by a PageTask. Rows of a page that
+	 * is still loading are shown blank until it arrives.
+	 */
+	public final class PingLogAdapter extends BaseAdapter implements SectionIndexer {
 
 		private Context mContext;
 
+		// Recently used pages, indexed by page number
+		private final Map<Integer, PingRow[]> mPages = new LinkedHashMap<Integer, PingRow[]>(MAX_PAGES, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, PingRow[]> eldest) {
+				return size() > MAX_PAGES;
+			}
+		};
+		// Number of rows known without the month index, and whether the
+		// last of them is the oldest ping
+		private int mKnownCount = 0;
+		private boolean mExhausted = false;
+		// Pages being loaded, and a counter telling results of loads started
+		// before the content was replaced apart
+		private final Set<Integer> mLoading = new HashSet<Integer>();
+		private int mGeneration = 0;
+
+		// Month index: labels, position of the first ping of each month,
+		// time of the last ping of each month, total count
+		private String[] mMonths = null;
+		private int[] mMonthStarts = null;
+		private long[] mMonthLasts = null;
+		private int mTotal = 0;
+
 		public class ViewHolder {
 			TextView pingText;
 			TextView tagText;
@@ -94,107 +148,300 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 			TextView redBeeText;
 		}
 
-		public PingCursorAdapter(Context context, Cursor c, int flags) {
-			super(context, c, flags);
+		public PingLogAdapter(Context context) {
 			mContext = context;
 		}
 
-		public PingCursorAdapter(Context context, Cursor c, boolean autoRequery) {
-			super(context, c, autoRequery);
-			mContext = context;
+		/** Replaces all content with the rows of the first page */
+		public void setFirstPage(Cursor c) {
+			mPages.clear();
+			mLoading.clear();
+			mGeneration++;
+			PingRow[] rows = readRows(c);
+			mPages.put(0, rows);
+			mKnownCount = rows.length;
+			mExhausted = rows.length < PAGE_SIZE;
+			notifyDataSetChanged();
+		}
+
+		/** Installs the month index */
+		public void setMonths(Cursor c) {
+			int n = c.getCount();
+			mMonths = new String[n];
+			mMonthStarts = new int[n];
+			mMonthLasts = new long[n];
+			int monthIdx = c.getColumnIndex(PingsDbAdapter.KEY_MONTH);
+			int countIdx = c.getColumnIndex(PingsDbAdapter.KEY_COUNT);
+			int lastIdx = c.getColumnIndex(PingsDbAdapter.KEY_LAST);
+			int pos = 0, i = 0;
+			c.moveToPosition(-1);
+			while (c.moveToNext()) {
+				mMonths[i] = c.getString(monthIdx);
+				mMonthStarts[i] = pos;
+				mMonthLasts[i] = c.getLong(lastIdx);
+				pos += c.getInt(countIdx);
+				i++;
+			}
+			mTotal = pos;
+			notifyDataSetChanged();
+		}
+
+		public void clear() {
+			mPages.clear();
+			mLoading.clear();
+			mGeneration++;
+			mKnownCount = 0;
+			mExhausted = false;
+			mMonths = null;
+			mMonthStarts = null;
+			mMonthLasts = null;
+			mTotal = 0;
+			notifyDataSetChanged();
+		}
+
+		private PingRow[] readRows(Cursor c) {
+			// Called on the loader and page task threads, only touches c
+			PingRow[] rows = new PingRow[c.getCount()];
+			int idIdx = c.getColumnIndex(PingsDbAdapter.KEY_ROWID);
+			int pingIdx = c.getColumnIndex(PingsDbAdapter.KEY_PING);
+			int tagsIdx = c.getColumnIndex(PingsDbAdapter.KEY_TAGS);
+			int pointsIdx = c.getColumnIndex(PingsDbAdapter.KEY_POINTS);
+			int goalsIdx = c.getColumnIndex(PingsDbAdapter.KEY_GOALS);
+			int i = 0;
+			c.moveToPosition(-1);
+			while (c.moveToNext()) {
+				PingRow row = new PingRow();
+				row.id = c.getLong(idIdx);
+				row.ping = c.getLong(pingIdx);
+				row.tags = c.getString(tagsIdx);
+				row.points = c.getInt(pointsIdx);
+				row.goals = c.getInt(goalsIdx);
+				rows[i++] = row;
+			}
+			return rows;
+		}
+
+		/**
+		 * Starts loading a page in the background unless it is already
+		 * loading, preferring to continue from the previous page.
+		 */
+		private void requestPage(int page) {
+			if (!mLoading.add(page)) return;
+			if (LOCAL_LOGV) Log.v(TAG, "requestPage(" + page + ")");
+			int start = page * PAGE_SIZE;
+			PingRow[] prev = (page > 0) ? mPages.get(page - 1) : null;
+			PageTask task;
+			if (prev != null && prev.length == PAGE_SIZE) {
+				task = new PageTask(page, prev[PAGE_SIZE - 1].ping, 0);
+			} else if (mMonthStarts != null && mMonthStarts.length > 0) {
+				int m = getSectionForPosition(start);
+				task = new PageTask(page, mMonthLasts[m] + 1, start - mMonthStarts[m]);
+			} else {
+				task = new PageTask(page, Long.MAX_VALUE, start);
+			}
+			task.execute();
+		}
+
+		/** Installs a page loaded by a PageTask started at generation */
+		private void setPage(int page, int generation, PingRow[] rows) {
+			if (generation != mGeneration) return;
+			mLoading.remove(page);
+			if (rows == null) return;
+			int start = page * PAGE_SIZE;
+			mPages.put(page, rows);
+			if (start + rows.length > mKnownCount) mKnownCount = start + rows.length;
+			if (rows.length < PAGE_SIZE) mExhausted = true;
+			notifyDataSetChanged();
+		}
+
+		/** Returns the row at position, or null if its page is not loaded yet */
+		private PingRow getRow(int position) {
+			int page = position / PAGE_SIZE;
+			PingRow[] rows = mPages.get(page);
+			if (rows == null) {
+				requestPage(page);
+				return null;
+			}
+			int offset = position % PAGE_SIZE;
+			return (offset < rows.length) ? rows[offset] : null;
+		}
+
+		/** Loads one page of rows off the UI thread */
+		private class PageTask extends AsyncTask<Void, Void, PingRow[]> {
+			private final int mPage;
+			private final int mStartGeneration = mGeneration;
+			private final long mBefore;
+			private final int mOffset;
+
+			PageTask(int page, long before, int offset) {
+				mPage = page;
+				mBefore = before;
+				mOffset = offset;
+			}
+
+			@Override
+			protected void onPreExecute() {
+				// Hold our own reference in case the activity goes away
+				mDbHelper.openDatabase();
+			}
+
+			@Override
+			protected PingRow[] doInBackground(Void... params) {
+				try {
+					Cursor c = mDbHelper.fetchPingRows(mBefore, mOffset, PAGE_SIZE);
+					try {
+						return readRows(c);
+					} finally {
+						c.close();
+					}
+				} catch (Exception e) {
+					Log.e(TAG, "PageTask: " + e.getMessage());
+					return null;
+				} finally {
+					mDbHelper.closeDatabase();
+				}
+			}
+
+			@Override
+			protected void onPostExecute(PingRow[] rows) {
+				setPage(mPage, mStartGeneration, rows);
+			}
 		}
 
 		@Override
-		public View newView(Context context, Cursor cursor, ViewGroup parent) {
-			View view = LayoutInflater.from(mContext).inflate(R.layout.tagtime_viewlog_ping_row, parent, false);
-			ViewHolder viewHolder = new ViewHolder();
-			viewHolder.pingText = (TextView) view.findViewById(R.id.viewlog_row_time);
-			viewHolder.tagText = (TextView) view.findViewById(R.id.viewlog_row_tags);
-			viewHolder.yellowBeeText = (TextView) view.findViewById(R.id.viewlog_row_beeminder);
-			viewHolder.redBeeText = (TextView) view.findViewById(R.id.viewlog_row_beeminder_red);
-			view.setTag(viewHolder);
-			return view;
+		public int getCount() {
+			if (mMonths != null) return mTotal;
+			return mKnownCount;
+		}
+
+		@Override
+		public Object getItem(int position) {
+			return getRow(position);
 		}
 
 		@Override
-		public void bindView(View view, Context context, Cursor cursor) {
+		public long getItemId(int position) {
+			PingRow row = getRow(position);
+			return (row == null) ? -1 : row.id;
+		}
+
+		@Override
+		public boolean hasStableIds() {
+			return true;
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			View view = convertView;
+			if (view == null) {
+				view = LayoutInflater.from(mContext).inflate(R.layout.tagtime_viewlog_ping_row, parent, false);
+				ViewHolder viewHolder = new ViewHolder();
+				viewHolder.pingText = (TextView) view.findViewById(R.id.viewlog_row_time);
+				viewHolder.tagText = (TextView) view.findViewById(R.id.viewlog_row_tags);
+				viewHolder.yellowBeeText = (TextView) view.findViewById(R.id.viewlog_row_beeminder);
+				viewHolder.redBeeText = (TextView) view.findViewById(R.id.viewlog_row_beeminder_red);
+				view.setTag(viewHolder);
+			}
 			ViewHolder vh = (ViewHolder) view.getTag();
 
+			PingRow row = getRow(position);
+			// Reached the end of what we know without the month index, make
+			// the next page available once it is loaded
+			if (mMonths == null && !mExhausted && position == mKnownCount - 1) {
+				requestPage(mKnownCount / PAGE_SIZE);
+			}
+			if (row == null) {
+				// Page still loading, or the month index is stale and the
+				// ping must have been removed
+				vh.pingText.setText("");
+				vh.tagText.setText("");
+				vh.yellowBeeText.setVisibility(View.GONE);
+				vh.redBeeText.setVisibility(View.GONE);
+				return view;
+			}
+
 			// Convert ping time to readable text
-			int pingidx = cursor.getColumnIndex(PingsDbAdapter.KEY_PING);
-			long pingtime = cursor.getLong(pingidx);
-			vh.pingText.setText(mSDF.format(new Date(pingtime * 1000)));
-
-			// Figure out Beeminder submission status and update icons, also
-			// setting the tag string
-			try {
-				Cursor c = mBeeDb.fetchPointPings(cursor.getLong(0), BeeminderDbAdapter.KEY_PID);
-				List<Long> tags = mDbHelper.fetchTagsForPing(cursor.getLong(0));
-				Set<Long> goals = mBeeDb.findGoalsForTags(tags);
-				int numgoals = 0;
-				for (long gid : goals) {
-					// If goal was updated later than the ping, skip this goal
-					long updated_at = mBeeDb.getGoalUpdatedAt(gid);
-					if (updated_at < pingtime) numgoals++;
-				}
+			vh.pingText.setText(mSDF.format(new Date(row.ping * 1000)));
+
+			// Beeminder submission status was computed by the query. Points
+			// should have been submitted for all goals matching the tags.
+			if (row.points != row.goals) {
+				// TODO: We should check whether existing points and
+				// goals match exactly instead of just checking the
+				// count
+				vh.yellowBeeText.setVisibility(View.GONE);
+				vh.redBeeText.setVisibility(View.VISIBLE);
+			} else if (row.points != 0) {
+				vh.yellowBeeText.setVisibility(View.VISIBLE);
+				vh.redBeeText.setVisibility(View.GONE);
+			} else {
+				vh.yellowBeeText.setVisibility(View.GONE);
+				vh.redBeeText.setVisibility(View.GONE);
+			}
+			vh.tagText.setText(row.tags == null ? "" : " " + row.tags);
+			return view;
+		}
 
-				if (c.getCount() != numgoals) {
-					// TODO: We should check whether existing points and
-					// goals match exactly instead of just checking the
-					// count
-					vh.yellowBeeText.setVisibility(View.GONE);
-					vh.redBeeText.setVisibility(View.VISIBLE);
-				} else if (c.getCount() != 0) {
-					vh.yellowBeeText.setVisibility(View.VISIBLE);
-					vh.redBeeText.setVisibility(View.GONE);
-				} else {
-					vh.yellowBeeText.setVisibility(View.GONE);
-					vh.redBeeText.setVisibility(View.GONE);
-				}
-				c.close();
-				String tagstr = "";
-				for (long tag : tags)
-					tagstr = tagstr + " " + mTagList.get(tag);
-				vh.tagText.setText(tagstr);
-			} catch (Exception e) {}
+		@Override
+		public Object[] getSections() {
+			return (mMonths == null) ? new String[0] : mMonths;
 		}
 
+		@Override
+		public int getPositionForSection(int section) {
+			if (mMonthStarts == null || mMonthStarts.length == 0) return 0;
+			if (section >= mMonthStarts.length) section = mMonthStarts.length - 1;
+			return mMonthStarts[section];
+		}
+
+		@Override
+		public int getSectionForPosition(int position) {
+			if (mMonthStarts == null || mMonthStarts.length == 0) return 0;
+			int idx = Arrays.binarySearch(mMonthStarts, position);
+			if (idx < 0) idx = -idx - 2;
+			return Math.max(0, idx);
+		}
 	}
 
 	// Called when a new Loader needs to be created
 	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
 		// Now create and return a CursorLoader that will take care of
 		// creating a Cursor for the data being displayed.
+		if (id == LOADER_MONTHS) return new MonthsCursorLoader(ViewLog.this, mDbHelper);
 		return new PingsCursorLoader(ViewLog.this, mDbHelper);
 	}
 
 	// Called when a previously created loader has finished loading
 	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-		// Swap the new cursor in. (The framework will take care of closing the
-		// old cursor once we return.)
-		mProgress.setVisibility(View.GONE);
-		mListView.setEmptyView(mNoData);
-		mPingAdapter.swapCursor(data);
+		// Rows are copied out of the cursor, the framework will take care of
+		// closing it.
+		if (loader.getId() == LOADER_MONTHS) {
+			mPingAdapter.setMonths(data);
+			// Refresh fast scroll sections
+			mListView.setFastScrollEnabled(false);
+			mListView.setFastScrollEnabled(true);
+		} else {
+			mProgress.setVisibility(View.GONE);
+			mListView.setEmptyView(mNoData);
+			mPingAdapter.setFirstPage(data);
+			// Only build the month index once the first rows are showing
+			getSupportLoaderManager().restartLoader(LOADER_MONTHS, null, this);
+		}
 	}
 
 	// Called when a previously created loader is reset, making the data
 	// unavailable
 	public void onLoaderReset(Loader<Cursor> loader) {
-		// This is called when the last Cursor provided to onLoadFinished()
-		// above is about to be closed. We need to make sure we are no
-		// longer using it.
-		mPingAdapter.swapCursor(null);
+		// Nothing to do here since rows were copied out of the cursor
 	}
 
 	private BroadcastReceiver pingUpdateReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			if (LOCAL_LOGV) Log.v(TAG, "ping update");
-			Bundle extras = intent.getExtras();
-			boolean newping = false;
-			if (extras != null) newping = intent.getBooleanExtra(TagTime.KEY_PING_ISNEW, true);
-			if (newping) getSupportLoaderManager().restartLoader(0, null, ViewLog.this);
-			else mPingAdapter.notifyDataSetChanged();
+			// Tags and Beeminder status are part of the loaded rows, so
+			// edits to existing pings need a reload too
+			getSupportLoaderManager().restartLoader(LOADER_FIRSTPAGE, null, ViewLog.this);
 		}
 	};
 
@@ -209,18 +456,16 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 
 		mDbHelper = PingsDbAdapter.getInstance();
 		mDbHelper.openDatabase();
-		mBeeDb = BeeminderDbAdapter.getInstance();
-		mBeeDb.openDatabase();
 
 		mSDF = new SimpleDateFormat("yyyy.MM.dd'\n'HH:mm:ss", Locale.getDefault());
-		mPingAdapter = new PingCursorAdapter(this, null, true);
+		mPingAdapter = new PingLogAdapter(this);
 		mListView = (ListView) findViewById(R.id.listview);
-		mListView.setFastScrollEnabled(true);
 		mListView.setAdapter(mPingAdapter);
 		mListView.setOnItemClickListener(new OnItemClickListener() {
 
 			@Override
 			public void onItemClick(AdapterView<?> arg0, View view, int position, long id) {
+				if (id < 0) return;
 				Intent i = new Intent(ViewLog.this, EditPing.class);
 				i.putExtra(PingsDbAdapter.KEY_ROWID, id);
 				startActivityForResult(i, ACTIVITY_EDIT);
@@ -230,8 +475,7 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 		mProgress = (ProgressBar) findViewById(R.id.progressbar);
 		mListView.setEmptyView(mProgress);
 
-		getSupportLoaderManager().initLoader(0, null, this);
-		refreshTagList();
+		getSupportLoaderManager().initLoader(LOADER_FIRSTPAGE, null, this);
 
 		registerReceiver(pingUpdateReceiver, new IntentFilter(TagTime.PING_UPDATE_EVENT));
 	}
@@ -239,7 +483,6 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
 		super.onActivityResult(requestCode, resultCode, intent);
-		refreshTagList();
 		// mPingAdapter.notifyDataSetChanged(); // Uluc: Subsumed by
 		// pingUpdateReceiver
 	}
@@ -247,7 +490,6 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 	@Override
 	protected void onDestroy() {
 		unregisterReceiver(pingUpdateReceiver);
-		mBeeDb.closeDatabase();
 		mDbHelper.closeDatabase();
 		super.onDestroy();
 	}
@@ -0,0 +1,300 @@
+package bsoule.tagtime;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Latencies of the database adapter methods on a synthetic multi-year
+ * database: 100k pings on the real ping schedule (about nine years at a 45
+ * minute gap), 500 tags with skewed popularity and 50 Beeminder goals with
+ * their points. The data is drawn from a fixed seed, so every run measures
+ * the same database.
+ *
+ * The adapters run under Robolectric, on the SQLite of sqlite4java instead
+ * of the one of the device. Numbers are only comparable between runs on
+ * the same machine. The benchmark takes a few minutes and is skipped unless
+ * asked for:
+ *
+ * ./gradlew :tagTime:testDebugUnitTest --tests bsoule.tagtime.DbAdapterBenchmark -Dtagtime.benchmark=true
+ *
+ * writes the p50/p90/p99 latencies of each method, in microseconds, to
+ * build/db-benchmark.json. Compare with
+ * benchmarks/baseline/db-benchmark-baseline.json when reworking the adapters.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23, application = TagTime.class)
+public class DbAdapterBenchmark {
+
+	private static final long SEED = 20070710;
+	private static final int PINGS = 100000;
+	private static final int TAGS = 500;
+	private static final int GOALS = 50;
+	private static final int GAP = 45;
+	/** Rows per page of the ping log, see ViewLog.PAGE_SIZE */
+	private static final int PAGE_SIZE = 200;
+	/** Tags left unused before each call of cleanupUnusedTags() */
+	private static final int ORPHANS = 20;
+
+	private static final int WARMUP = 100;
+	private static final int SAMPLES = 1000;
+	/** Fewer calls for the methods going through all tags or pings */
+	private static final int SLOW_WARMUP = 5;
+	private static final int SLOW_SAMPLES = 50;
+
+	/** A timed adapter call, with untimed preparation */
+	private static abstract class Call {
+		void prepare() throws Exception {}
+
+		abstract void run() throws Exception;
+	}
+
+	private PingsDbAdapter mPingsDB;
+	private BeeminderDbAdapter mBeeDB;
+
+	private final List<String> mTags = new ArrayList<String>();
+	private long[] mPingTimes;
+	private PingSchedule mNextPing;
+	// Drives the choice of pings and tags in the benchmarks, seeded as well
+	private Random mRandom;
+	private int mOrphans = 0;
+
+	private final Map<String, long[]> mResults = new LinkedHashMap<String, long[]>();
+
+	@Before
+	public void setUp() throws Exception {
+		Assume.assumeTrue("run with -Dtagtime.benchmark=true", Boolean.getBoolean("tagtime.benchmark"));
+		// Let TagTime finish opening the database and loading the tag
+		// dictionary first
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			if (t.getName().equals("TagTimeStartup")) t.join();
+		mPingsDB = PingsDbAdapter.getInstance();
+		mBeeDB = BeeminderDbAdapter.getInstance();
+		mPingsDB.openDatabase();
+		mBeeDB.openDatabase();
+		seed(new Random(SEED));
+		mRandom = new Random(SEED + 1);
+	}
+
+	@After
+	public void tearDown() {
+		if (mPingsDB != null) mPingsDB.closeDatabase();
+		if (mBeeDB != null) mBeeDB.closeDatabase();
+	}
+
+	// Popular tags come first, so that a few tags carry most taggings
+	private static int skewed(Random r, int n) {
+		double x = r.nextDouble();
+		return (int) (n * x * x * x);
+	}
+
+	private List<String> randomTags(Random r) {
+		int n = 1 + r.nextInt(4);
+		Set<String> tags = new HashSet<String>();
+		while (tags.size() < n)
+			tags.add(mTags.get(skewed(r, TAGS)));
+		return new ArrayList<String>(tags);
+	}
+
+	private long randomPing() {
+		return 1 + mRandom.nextInt(PINGS);
+	}
+
+	/**
+	 * Fills both databases through the adapters. Each database is filled
+	 * within a single transaction, in which the transactions of the adapter
+	 * methods nest.
+	 */
+	private void seed(Random r) throws Exception {
+		SQLiteDatabase db = mPingsDB.openDatabase();
+		mPingTimes = new long[PINGS];
+		List<List<String>> pingTags = new ArrayList<List<String>>(PINGS);
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < TAGS; i++) {
+				String name = "tag" + i;
+				mPingsDB.newTag(name);
+				mTags.add(name);
+			}
+			mNextPing = PingSchedule.origin(GAP);
+			for (int i = 0; i < PINGS; i++) {
+				mNextPing = mNextPing.next();
+				List<String> tags = randomTags(r);
+				mPingTimes[i] = mNextPing.getTime();
+				mPingsDB.createPing(mPingTimes[i], "", tags, GAP);
+				pingTags.add(tags);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			mPingsDB.closeDatabase();
+		}
+
+		// Goals linked to one to three tags each, and the points sent to
+		// them for the pings with these tags
+		db = mBeeDB.openDatabase();
+		db.beginTransaction();
+		try {
+			List<List<Long>> tagGoals = new ArrayList<List<Long>>(TAGS);
+			for (int i = 0; i < TAGS; i++)
+				tagGoals.add(new ArrayList<Long>());
+			for (int g = 0; g < GOALS; g++) {
+				Set<Integer> links = new HashSet<Integer>();
+				int n = 1 + r.nextInt(3);
+				while (links.size() < n)
+					links.add(skewed(r, TAGS));
+				List<String> tags = new ArrayList<String>();
+				for (int t : links)
+					tags.add(mTags.get(t));
+				long gid = mBeeDB.createGoal("alice", "goal" + g, "token", tags);
+				for (int t : links)
+					tagGoals.get(t).add(gid);
+			}
+			for (int i = 0; i < PINGS; i++) {
+				Set<Long> goals = new HashSet<Long>();
+				for (String tag : pingTags.get(i))
+					goals.addAll(tagGoals.get(Integer.parseInt(tag.substring(3))));
+				for (long gid : goals) {
+					long point = mBeeDB.createPoint("req" + i + "." + gid, GAP / 60.0, mPingTimes[i], "TagTime ping",
+							gid);
+					mBeeDB.newPointPing(point, i + 1);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			mBeeDB.closeDatabase();
+		}
+	}
+
+	/** Runs the call warmup times, then samples times, and keeps the latencies */
+	private void measure(String method, int warmup, int samples, Call call) throws Exception {
+		long[] nanos = new long[samples];
+		for (int i = -warmup; i < samples; i++) {
+			call.prepare();
+			long start = System.nanoTime();
+			call.run();
+			if (i >= 0) nanos[i] = System.nanoTime() - start;
+		}
+		mResults.put(method, nanos);
+	}
+
+	private static long count(Cursor c) {
+		try {
+			long rows = 0;
+			while (c.moveToNext())
+				rows++;
+			return rows;
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void benchmark() throws Exception {
+		measure("createPing", WARMUP, SAMPLES, new Call() {
+			void run() {
+				mNextPing = mNextPing.next();
+				mPingsDB.createPing(mNextPing.getTime(), "", randomTags(mRandom), GAP);
+			}
+		});
+		measure("updateTaggings", WARMUP, SAMPLES, new Call() {
+			void run() {
+				mPingsDB.updateTaggings(randomPing(), randomTags(mRandom));
+			}
+		});
+		measure("fetchTagString", WARMUP, SAMPLES, new Call() {
+			void run() throws Exception {
+				mPingsDB.fetchTagString(randomPing());
+			}
+		});
+		measure("cleanupUnusedTags", SLOW_WARMUP, SLOW_SAMPLES, new Call() {
+			// Every call has tags to remove, not only the first one
+			void prepare() {
+				for (int i = 0; i < ORPHANS; i++)
+					mPingsDB.newTag("orphan" + mOrphans++);
+			}
+
+			void run() {
+				mPingsDB.cleanupUnusedTags();
+			}
+		});
+		measure("findGoalsForTagNames", WARMUP, SAMPLES, new Call() {
+			void run() {
+				mBeeDB.findGoalsForTagNames(randomTags(mRandom));
+			}
+		});
+		// The first page of the ping log
+		measure("fetchPingRowsFirst", WARMUP, SAMPLES, new Call() {
+			void run() {
+				count(mPingsDB.fetchPingRows(Long.MAX_VALUE, 0, PAGE_SIZE));
+			}
+		});
+		// A page further back, continuing from the last ping of the previous
+		// one
+		measure("fetchPingRowsOlder", WARMUP, SAMPLES, new Call() {
+			void run() {
+				count(mPingsDB.fetchPingRows(mPingTimes[(int) randomPing() - 1], 0, PAGE_SIZE));
+			}
+		});
+		measure("fetchPingMonths", SLOW_WARMUP, SLOW_SAMPLES, new Call() {
+			void run() {
+				count(mPingsDB.fetchPingMonths());
+			}
+		});
+		write(new File("build/db-benchmark.json"));
+	}
+
+	// Nearest rank percentile of sorted latencies, in microseconds
+	private static double percentile(long[] sorted, double p) {
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1] / 1000.0;
+	}
+
+	private void write(File file) throws IOException {
+		file.getParentFile().mkdirs();
+		Writer w = new FileWriter(file);
+		try {
+			w.write("{\n");
+			w.write("  \"pings\" : " + PINGS + ",\n");
+			w.write("  \"tags\" : " + TAGS + ",\n");
+			w.write("  \"goals\" : " + GOALS + ",\n");
+			w.write("  \"unit\" : \"us\",\n");
+			w.write("  \"methods\" : {");
+			String sep = "\n";
+			for (Map.Entry<String, long[]> e : mResults.entrySet()) {
+				long[] nanos = e.getValue();
+				Arrays.sort(nanos);
+				w.write(String.format(Locale.US,
+						"%s    \"%s\" : { \"samples\" : %d, \"p50\" : %.1f, \"p90\" : %.1f, \"p99\" : %.1f }", sep,
+						e.getKey(), nanos.length, percentile(nanos, 50), percentile(nanos, 90),
+						percentile(nanos, 99)));
+				sep = ",\n";
+			}
+			w.write("\n  }\n}\n");
+		} finally {
+			w.close();
+		}
+	}
+}
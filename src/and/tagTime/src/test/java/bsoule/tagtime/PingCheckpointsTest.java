@@ -0,0 +1,97 @@
+package bsoule.tagtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PingCheckpointsTest {
+
+	private static final long ORIGIN = 1000;
+	private static final long SEED = 7;
+	private static final int GAP = 45;
+
+	private static PingCheckpoints filled(int count) {
+		PingCheckpoints cps = new PingCheckpoints(ORIGIN, SEED);
+		for (int i = 1; i <= count; i++)
+			cps.add(GAP, i, ORIGIN + 100 * i, SEED + i);
+		return cps;
+	}
+
+	@Test
+	public void originOnly() {
+		PingCheckpoints cps = new PingCheckpoints(ORIGIN, SEED);
+		assertEquals(0, cps.floor(GAP, Long.MAX_VALUE));
+		assertEquals(ORIGIN, cps.getTime(GAP, 0));
+		assertEquals(SEED, cps.getSeed(GAP, 0));
+		assertEquals("", cps.encode(GAP));
+		assertFalse(cps.takeDirty());
+	}
+
+	@Test
+	public void floorIsStrictlyBefore() {
+		PingCheckpoints cps = filled(40);
+		assertEquals(0, cps.floor(GAP, ORIGIN));
+		assertEquals(0, cps.floor(GAP, ORIGIN + 100));
+		assertEquals(1, cps.floor(GAP, ORIGIN + 101));
+		assertEquals(39, cps.floor(GAP, ORIGIN + 4000));
+		assertEquals(40, cps.floor(GAP, ORIGIN + 4001));
+		assertEquals(ORIGIN + 2500, cps.getTime(GAP, 25));
+		assertEquals(SEED + 25, cps.getSeed(GAP, 25));
+	}
+
+	@Test
+	public void gapsAreIndependent() {
+		PingCheckpoints cps = filled(5);
+		assertEquals(0, cps.floor(GAP + 1, Long.MAX_VALUE));
+		assertEquals(5, cps.floor(GAP, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void addOnlyAppends() {
+		PingCheckpoints cps = filled(3);
+		assertTrue(cps.takeDirty());
+		assertFalse(cps.takeDirty());
+		// Known already, and beyond the next one
+		cps.add(GAP, 2, 1, 1);
+		cps.add(GAP, 5, ORIGIN + 500, SEED + 5);
+		assertFalse(cps.takeDirty());
+		assertEquals(3, cps.floor(GAP, Long.MAX_VALUE));
+		assertEquals(ORIGIN + 200, cps.getTime(GAP, 2));
+	}
+
+	@Test
+	public void encodeDecode() {
+		PingCheckpoints cps = filled(20);
+		String data = cps.encode(GAP);
+		PingCheckpoints restored = new PingCheckpoints(ORIGIN, SEED);
+		restored.decode(GAP, data);
+		assertEquals(data, restored.encode(GAP));
+		assertEquals(20, restored.floor(GAP, Long.MAX_VALUE));
+		assertFalse(restored.takeDirty());
+	}
+
+	@Test
+	public void decodeKeepsValidPrefix() {
+		PingCheckpoints cps = new PingCheckpoints(ORIGIN, SEED);
+		cps.decode(GAP, "1100:8,1200:9,junk,1400:11");
+		assertEquals("1100:8,1200:9", cps.encode(GAP));
+
+		cps = new PingCheckpoints(ORIGIN, SEED);
+		cps.decode(GAP, "1100:8,1050:9");
+		assertEquals("1100:8", cps.encode(GAP));
+
+		cps = new PingCheckpoints(ORIGIN, SEED);
+		cps.decode(GAP, null);
+		cps.decode(GAP, "");
+		assertEquals(0, cps.floor(GAP, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void decodeDoesNotReplaceCheckpoints() {
+		PingCheckpoints cps = filled(2);
+		cps.decode(GAP, "5000:1,6000:2,7000:3");
+		assertEquals(2, cps.floor(GAP, Long.MAX_VALUE));
+	}
+}
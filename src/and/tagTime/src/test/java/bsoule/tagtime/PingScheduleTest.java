@@ -0,0 +1,101 @@
+package bsoule.tagtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PingScheduleTest {
+
+	private static final int GAP = 45;
+
+	// Ping times from the origin, walked with next() one ping at a time
+	private static List<PingSchedule> walk(int gap, int count) {
+		List<PingSchedule> pings = new ArrayList<PingSchedule>(count);
+		PingSchedule s = PingSchedule.origin(gap);
+		for (int i = 0; i < count; i++) {
+			pings.add(s);
+			s = s.next();
+		}
+		return pings;
+	}
+
+	@Test
+	public void ran0() {
+		assertEquals(16807L * PingSchedule.INITSEED % 2147483647L, PingSchedule.ran0(PingSchedule.INITSEED));
+		long seed = PingSchedule.INITSEED;
+		for (int i = 0; i < 10000; i++) {
+			seed = PingSchedule.ran0(seed);
+			assertTrue(seed > 0 && seed < 2147483647L);
+		}
+	}
+
+	@Test
+	public void pingsMoveForward() {
+		List<PingSchedule> pings = walk(GAP, 3000);
+		for (int i = 1; i < pings.size(); i++)
+			assertTrue(pings.get(i).getTime() > pings.get(i - 1).getTime());
+		// About GAP minutes apart on average
+		double mean = (pings.get(pings.size() - 1).getTime() - PingSchedule.BOT) / (pings.size() - 1.0);
+		assertEquals(GAP * 60, mean, GAP * 60 * 0.1);
+	}
+
+	@Test
+	public void stepperFollowsNext() {
+		PingSchedule.Stepper stepper = PingSchedule.origin(GAP).stepper();
+		for (PingSchedule s : walk(GAP, 3000)) {
+			assertEquals(s, stepper.toSchedule());
+			assertEquals(s.next().getTime(), stepper.step());
+		}
+	}
+
+	@Test
+	public void seekBeforeMatchesWalk() {
+		List<PingSchedule> pings = walk(GAP, 5000);
+		PingSchedule origin = PingSchedule.origin(GAP);
+		for (int i : new int[] { 1, 999, 1000, 1001, 2500, 4999 }) {
+			long t = pings.get(i).getTime();
+			// Twice, without and then with the checkpoints of the first walk
+			assertEquals(pings.get(i - 1), origin.seekBefore(t));
+			assertEquals(pings.get(i - 1), origin.seekBefore(t));
+			assertEquals(pings.get(i), origin.seekBefore(t + 1));
+			// Starting from a later position gives the same result
+			assertEquals(pings.get(i - 1), pings.get(i).seekBefore(t));
+			assertEquals(pings.get(i - 1), pings.get(i / 2).seekBefore(t));
+		}
+	}
+
+	@Test
+	public void seekBeforeOrigin() {
+		PingSchedule origin = PingSchedule.origin(GAP);
+		assertEquals(origin, origin.seekBefore(PingSchedule.BOT));
+	}
+
+	@Test
+	public void rangeMatchesWalk() {
+		List<PingSchedule> pings = walk(GAP, 3000);
+		long from = pings.get(1200).getTime();
+		long to = pings.get(1300).getTime();
+		long[] expected = new long[100];
+		for (int i = 0; i < 100; i++)
+			expected[i] = pings.get(1200 + i).getTime();
+		assertArrayEquals(expected, PingSchedule.origin(GAP).range(from, to));
+		assertArrayEquals(expected, pings.get(2000).range(from, to));
+		assertArrayEquals(expected, pings.get(10).range(from, to));
+		assertEquals(0, PingSchedule.origin(GAP).range(to, to).length);
+	}
+
+	@Test
+	public void withGapKeepsPosition() {
+		PingSchedule s = walk(GAP, 10).get(9);
+		PingSchedule other = s.withGap(GAP * 2);
+		assertEquals(s.getTime(), other.getTime());
+		assertEquals(s.getSeed(), other.getSeed());
+		assertEquals(GAP * 2, other.getGap());
+		assertEquals(s.next().getSeed(), other.next().getSeed());
+	}
+}
@@ -0,0 +1,295 @@
+package bsoule.tagtime;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * Checks the query plans of the database adapter queries with EXPLAIN QUERY
+ * PLAN, on the schemas of both databases as created by the adapters. A query
+ * that scans a whole table fails the test, unless it is meant to read the
+ * whole table, so a schema change or a new query can't silently lose its
+ * index.
+ *
+ * Runs on the desktop JVM with the SQLite engine of sqlite-jdbc. The queries
+ * are the ones the adapters build, taken from their package-private query
+ * constants and builders. Deletes and updates are put together from the
+ * selections the adapters pass to SQLiteDatabase, as it does.
+ */
+public class QueryPlanTest {
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	// The pings database with the Beeminder database attached as "bee", as
+	// PingsDbAdapter uses it, and the Beeminder database on its own, as
+	// BeeminderDbAdapter uses it
+	private Connection mPings;
+	private Connection mBee;
+
+	@Before
+	public void setUp() throws Exception {
+		File bee = mFolder.newFile(BeeminderDbAdapter.DATABASE_NAME);
+		mBee = DriverManager.getConnection("jdbc:sqlite:" + bee.getPath());
+		execute(mBee, BeeminderDbAdapter.CREATE_GOALS, BeeminderDbAdapter.CREATE_GOALTAGS,
+				BeeminderDbAdapter.CREATE_POINTS, BeeminderDbAdapter.CREATE_POINTPINGS,
+				BeeminderDbAdapter.CREATE_GOALTAGS_TAG_INDEX, BeeminderDbAdapter.CREATE_POINTPINGS_PING_INDEX,
+				BeeminderDbAdapter.CREATE_POINTS_GOAL_INDEX, BeeminderDbAdapter.CREATE_OUTBOX,
+				BeeminderDbAdapter.CREATE_OUTBOX_DUE_INDEX);
+
+		File pings = mFolder.newFile(PingsDbAdapter.DATABASE_NAME);
+		mPings = DriverManager.getConnection("jdbc:sqlite:" + pings.getPath());
+		execute(mPings, PingsDbAdapter.CREATE_PINGS, PingsDbAdapter.CREATE_TAGS, PingsDbAdapter.CREATE_TAGPINGS,
+				PingsDbAdapter.CREATE_TAGPINGS_TAG_INDEX, PingsDbAdapter.CREATE_TAGS_USED_INDEX,
+				PingsDbAdapter.CREATE_TAGPINGS_INSERT_TRIGGER, PingsDbAdapter.CREATE_TAGPINGS_DELETE_TRIGGER,
+				PingsDbAdapter.CREATE_TAGRANK, PingsDbAdapter.CREATE_TAGRANK_INDEX);
+		execute(mPings, "ATTACH DATABASE '" + bee.getPath() + "' AS bee");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (mPings != null) mPings.close();
+		if (mBee != null) mBee.close();
+	}
+
+	private static void execute(Connection db, String... sql) throws SQLException {
+		Statement st = db.createStatement();
+		try {
+			for (String s : sql)
+				st.execute(s);
+		} finally {
+			st.close();
+		}
+	}
+
+	/** Returns the detail column of the query plan of sql. */
+	private static List<String> plan(Connection db, String sql) throws SQLException {
+		List<String> details = new ArrayList<String>();
+		Statement st = db.createStatement();
+		try {
+			ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN " + sql);
+			while (rs.next())
+				details.add(rs.getString("detail"));
+			rs.close();
+		} finally {
+			st.close();
+		}
+		return details;
+	}
+
+	/**
+	 * Returns the table scanned by a plan step, or null if the step does not
+	 * scan a table. Scans of subqueries and constant rows don't count.
+	 */
+	private static String scannedTable(String detail) {
+		if (!detail.startsWith("SCAN ")) return null;
+		String rest = detail.substring(5);
+		if (rest.startsWith("TABLE ")) rest = rest.substring(6);
+		else if (rest.startsWith("SUBQUERY") || rest.startsWith("CONSTANT")) return null;
+		int end = rest.indexOf(' ');
+		return (end < 0) ? rest : rest.substring(0, end);
+	}
+
+	/**
+	 * Fails if the query scans any table other than wholeTable, which may be
+	 * null for queries that must not scan at all.
+	 */
+	private static void assertPlan(Connection db, String method, String wholeTable, String sql)
+			throws SQLException {
+		List<String> details = plan(db, sql);
+		assertFalse(method + ": no plan for " + sql, details.isEmpty());
+		for (String detail : details) {
+			String table = scannedTable(detail);
+			if (table != null && !table.equals(wholeTable))
+				fail(method + ": full scan of " + table + " (" + detail + ") in " + sql);
+		}
+	}
+
+	// Statements as SQLiteDatabase.delete() and update() put them together
+	private static String delete(String table, String where) {
+		return "DELETE FROM " + table + " WHERE " + where;
+	}
+
+	private static String update(String table, String column, String where) {
+		return "UPDATE " + table + " SET " + column + "=1 WHERE " + where;
+	}
+
+	// Binds the arguments of a query, which EXPLAIN can't take separately
+	private static String bind(String sql, Object... args) {
+		for (Object arg : args) {
+			String value = (arg instanceof String) ? "'" + arg + "'" : String.valueOf(arg);
+			sql = sql.replaceFirst("\\?", value);
+		}
+		return sql;
+	}
+
+	// The statement of a trigger, for the row with the given id
+	private static String triggerBody(String trigger, String row, long id) {
+		String body = trigger.substring(trigger.indexOf(" begin ") + 7, trigger.lastIndexOf("; end;"));
+		return body.replace(row + ".tag_id", Long.toString(id));
+	}
+
+	private void assertIndexed(String method, String sql) throws SQLException {
+		assertPlan(mPings, method, null, sql);
+	}
+
+	private void assertWholeTable(String method, String table, String sql) throws SQLException {
+		assertPlan(mPings, method, table, sql);
+	}
+
+	private void assertBeeIndexed(String method, String sql) throws SQLException {
+		assertPlan(mBee, method, null, sql);
+	}
+
+	private void assertBeeWholeTable(String method, String table, String sql) throws SQLException {
+		assertPlan(mBee, method, table, sql);
+	}
+
+	@Test
+	public void detectsFullScans() throws Exception {
+		List<String> details = plan(mPings, "SELECT _id FROM pings WHERE notes = 'x'");
+		boolean scanned = false;
+		for (String detail : details)
+			scanned |= "pings".equals(scannedTable(detail));
+		assertTrue("Expected a scan of pings in " + details, scanned);
+		assertTrue(plan(mPings, "SELECT _id FROM pings WHERE ping = 1").toString().contains("INDEX"));
+	}
+
+	@Test
+	public void pingQueries() throws Exception {
+		assertIndexed("deletePing", delete(PingsDbAdapter.PINGS_TABLE, PingsDbAdapter.rowIdWhere(1)));
+		assertIndexed("updatePing", update(PingsDbAdapter.PINGS_TABLE, PingsDbAdapter.KEY_NOTES,
+				PingsDbAdapter.rowIdWhere(1)));
+		assertIndexed("fetchPing", PingsDbAdapter.pingQuery(1));
+		assertIndexed("updateTaggings", PingsDbAdapter.pingTimeQuery(1));
+		assertIndexed("fetchNeighborPings", PingsDbAdapter.neighborPingsQuery(1300000000));
+
+		assertWholeTable("fetchAllPings", "pings", PingsDbAdapter.pingsQuery(true));
+		assertWholeTable("fetchAllPings", "pings", PingsDbAdapter.pingsQuery(false));
+		assertWholeTable("fetchPingMonths", "pings", PingsDbAdapter.PING_MONTHS_QUERY);
+		assertWholeTable("fetchPingsWithTags", "pings", PingsDbAdapter.PINGS_WITH_TAGS_QUERY);
+	}
+
+	@Test
+	public void pingLogQueries() throws Exception {
+		assertIndexed("fetchPingRows", PingsDbAdapter.pingRowsQuery(true, 1300000000, 0, 50));
+		assertIndexed("fetchPingRows", PingsDbAdapter.pingRowsQuery(false, 1300000000, 0, 50));
+		// The latest pings, read backwards from the end of the ping index
+		assertIndexed("fetchPingRows", PingsDbAdapter.pingRowsQuery(true, Long.MAX_VALUE, 100, 50));
+	}
+
+	@Test
+	public void tagQueries() throws Exception {
+		assertIndexed("getTagName", PingsDbAdapter.tagNameQuery(1));
+		assertIndexed("getTID", bind(PingsDbAdapter.TAG_ID_QUERY, "work"));
+		assertIndexed("updateTag", update(PingsDbAdapter.TAGS_TABLE, PingsDbAdapter.KEY_TAG,
+				PingsDbAdapter.rowIdWhere(1)));
+		assertIndexed("updateTagCache", bind(PingsDbAdapter.TAG_USE_COUNT_QUERY, 1));
+		assertIndexed("updateTagCache", update(PingsDbAdapter.TAGS_TABLE, PingsDbAdapter.KEY_USED_CACHE,
+				PingsDbAdapter.rowIdWhere(1)));
+		assertIndexed("tag_ping_insert_cache",
+				triggerBody(PingsDbAdapter.CREATE_TAGPINGS_INSERT_TRIGGER, "new", 1));
+		assertIndexed("tag_ping_delete_cache",
+				triggerBody(PingsDbAdapter.CREATE_TAGPINGS_DELETE_TRIGGER, "old", 1));
+
+		assertWholeTable("loadTagDictionary", "tags", PingsDbAdapter.ALL_TAGS_QUERY);
+		for (String ordering : new String[] { "RANK", "FREQ", "ALPHA", "ROWID" })
+			assertWholeTable("fetchAllTags", "tags", PingsDbAdapter.allTagsQuery(ordering));
+		assertWholeTable("updateTagCaches", "tags", PingsDbAdapter.RECOUNT_TAG_CACHES);
+		assertWholeTable("cleanupUnusedTags", "tags", PingsDbAdapter.CLEANUP_TAGS);
+	}
+
+	@Test
+	public void taggingQueries() throws Exception {
+		assertIndexed("isTagPing", PingsDbAdapter.tagPingQuery(1, 2));
+		assertIndexed("deleteTagPing", delete(PingsDbAdapter.TAG_PING_TABLE, PingsDbAdapter.tagPingWhere(1, 2)));
+		assertIndexed("updateTaggings", bind(PingsDbAdapter.DELETE_TAGPING, 1, 2));
+		assertIndexed("fetchTaggings", PingsDbAdapter.taggingsQuery(1, PingsDbAdapter.KEY_PID));
+		assertIndexed("fetchTaggings", PingsDbAdapter.taggingsQuery(1, PingsDbAdapter.KEY_TID));
+	}
+
+	@Test
+	public void tagRankQueries() throws Exception {
+		assertIndexed("fetchTopTags", PingsDbAdapter.topTagsQuery(2, 10));
+		assertIndexed("RankWriter", PingsDbAdapter.rankScoreQuery(1, 2));
+		assertIndexed("RankWriter", bind(PingsDbAdapter.DELETE_TAG_RANK, 1, 2));
+
+		assertWholeTable("rebuildTagRank", "tag_ping", PingsDbAdapter.TAG_RANK_SOURCE_QUERY);
+		assertWholeTable("cleanupUnusedTags", "tag_rank", PingsDbAdapter.CLEANUP_TAG_RANK);
+	}
+
+	@Test
+	public void goalQueries() throws Exception {
+		assertBeeIndexed("getGoalID", bind(BeeminderDbAdapter.GOAL_ID_QUERY, "u", "s"));
+		assertBeeIndexed("getGoalUpdatedAt", BeeminderDbAdapter.goalUpdatedAtQuery(1));
+		assertBeeIndexed("fetchGoal", BeeminderDbAdapter.goalQuery(1));
+		assertBeeIndexed("updateGoal", update(BeeminderDbAdapter.GOALS_TABLE, BeeminderDbAdapter.KEY_TOKEN,
+				BeeminderDbAdapter.rowIdWhere(1)));
+		assertBeeIndexed("deleteGoal", delete(BeeminderDbAdapter.GOALS_TABLE, BeeminderDbAdapter.rowIdWhere(1)));
+		assertBeeIndexed("fetchGoalTags", BeeminderDbAdapter.goalTagsQuery(1, BeeminderDbAdapter.KEY_TID));
+		assertBeeIndexed("fetchGoalTags", BeeminderDbAdapter.goalTagsQuery(1, BeeminderDbAdapter.KEY_GID));
+		assertBeeIndexed("isGoalTag", BeeminderDbAdapter.goalTagQuery(1, 2));
+		assertBeeIndexed("deleteGoalTag", delete(BeeminderDbAdapter.GOALTAGS_TABLE,
+				BeeminderDbAdapter.goalTagWhere(1, 2)));
+		assertBeeIndexed("updateGoalTags", delete(BeeminderDbAdapter.GOALTAGS_TABLE,
+				BeeminderDbAdapter.goalWhere(1)));
+
+		assertBeeWholeTable("fetchAllGoals", "goals", BeeminderDbAdapter.ALL_GOALS_QUERY);
+	}
+
+	@Test
+	public void pointQueries() throws Exception {
+		assertBeeIndexed("getPointID", bind(BeeminderDbAdapter.POINT_ID_QUERY, "r"));
+		assertBeeIndexed("fetchPoint", BeeminderDbAdapter.pointQuery(1));
+		assertBeeIndexed("removeGoalPoints", BeeminderDbAdapter.goalPointsQuery(1));
+		assertBeeIndexed("deletePoint", delete(BeeminderDbAdapter.POINTS_TABLE, BeeminderDbAdapter.rowIdWhere(1)));
+		assertBeeIndexed("isPointPing", BeeminderDbAdapter.pointPingQuery(1, 2));
+		assertBeeIndexed("deleteAllPointPings", delete(BeeminderDbAdapter.POINTPINGS_TABLE,
+				BeeminderDbAdapter.KEY_POINTID + "=1"));
+		assertBeeIndexed("deletePointPing", delete(BeeminderDbAdapter.POINTPINGS_TABLE,
+				BeeminderDbAdapter.pointPingWhere(1, 2)));
+		assertBeeIndexed("fetchPointPings", BeeminderDbAdapter.pointPingsQuery(1, BeeminderDbAdapter.KEY_POINTID));
+		assertBeeIndexed("fetchPointPings", BeeminderDbAdapter.pointPingsQuery(1, BeeminderDbAdapter.KEY_PID));
+
+		assertBeeWholeTable("fetchAllPoints", "points", BeeminderDbAdapter.ALL_POINTS_QUERY);
+	}
+
+	@Test
+	public void outboxQueries() throws Exception {
+		assertBeeIndexed("queueOutbox", update(BeeminderDbAdapter.OUTBOX_TABLE, BeeminderDbAdapter.KEY_VALUE,
+				BeeminderDbAdapter.queuedOutboxWhere(1, 2, BeeminderDbAdapter.OUTBOX_CREATE)));
+		assertBeeIndexed("cancelOutbox", delete(BeeminderDbAdapter.OUTBOX_TABLE,
+				BeeminderDbAdapter.outboxWhere(1, 2)));
+		assertBeeIndexed("removeOutbox", delete(BeeminderDbAdapter.OUTBOX_TABLE, BeeminderDbAdapter.rowIdWhere(1)));
+		assertBeeIndexed("fetchPingOutbox", BeeminderDbAdapter.pingOutboxQuery(1));
+		assertBeeIndexed("fetchDueOutbox", BeeminderDbAdapter.dueOutboxQuery(1300000000, 200));
+		assertBeeIndexed("getNextOutboxTime", BeeminderDbAdapter.NEXT_OUTBOX_TIME_QUERY);
+		assertBeeIndexed("setOutboxState", update(BeeminderDbAdapter.OUTBOX_TABLE, BeeminderDbAdapter.KEY_STATE,
+				BeeminderDbAdapter.rowIdWhere(1)));
+		assertBeeIndexed("resetOutboxSending", BeeminderDbAdapter.SENDING_CREATES_QUERY);
+		assertBeeIndexed("resetOutboxSending", update(BeeminderDbAdapter.OUTBOX_TABLE,
+				BeeminderDbAdapter.KEY_STATE, BeeminderDbAdapter.SENDING_CREATES_WHERE));
+		assertBeeIndexed("resetOutboxSending", update(BeeminderDbAdapter.OUTBOX_TABLE,
+				BeeminderDbAdapter.KEY_STATE, BeeminderDbAdapter.SENDING_OUTBOX_WHERE));
+
+		// Goals are rarely deleted and the outbox only holds operations not
+		// yet sent, so this one is not worth an index
+		assertBeeWholeTable("deleteGoal", "outbox", delete(BeeminderDbAdapter.OUTBOX_TABLE,
+				BeeminderDbAdapter.goalWhere(1)));
+	}
+}
@@ -0,0 +1,75 @@
+package bsoule.tagtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TagIndexTest {
+
+	private static final List<String> NAMES = Arrays.asList("work", "Email", "email", "walk", "WebDev", "sleep",
+			"wash", "lunch");
+
+	@Test
+	public void completeIgnoresCaseInOrder() {
+		TagIndex index = new TagIndex(NAMES);
+		assertEquals(Arrays.asList("walk", "wash", "WebDev", "work"), index.complete("w", 10));
+		assertEquals(Arrays.asList("walk", "wash", "WebDev", "work"), index.complete("W", 10));
+		assertEquals(Arrays.asList("WebDev"), index.complete("web", 10));
+		assertEquals(Arrays.asList("Email", "email"), index.complete("EM", 10));
+		assertTrue(index.complete("x", 10).isEmpty());
+	}
+
+	@Test
+	public void completeLimitsResults() {
+		TagIndex index = new TagIndex(NAMES);
+		assertEquals(Arrays.asList("walk", "wash"), index.complete("w", 2));
+		assertTrue(index.complete("w", 0).isEmpty());
+		assertEquals(NAMES.size(), index.complete("", 100).size());
+	}
+
+	@Test
+	public void count() {
+		TagIndex index = new TagIndex(NAMES);
+		assertEquals(4, index.count("w"));
+		assertEquals(2, index.count("wa"));
+		assertEquals(0, index.count("walks"));
+		assertEquals(NAMES.size(), index.count(""));
+	}
+
+	@Test
+	public void addAndRemove() {
+		TagIndex index = new TagIndex();
+		for (String name : NAMES)
+			index.add(name);
+		index.add("work");
+		assertEquals(NAMES.size(), index.size());
+		assertEquals(new TagIndex(NAMES).complete("", 100), index.complete("", 100));
+
+		index.remove("work");
+		index.remove("missing");
+		assertEquals(NAMES.size() - 1, index.size());
+		assertEquals(Arrays.asList("walk", "wash", "WebDev"), index.complete("w", 10));
+		index.remove("email");
+		assertEquals(Arrays.asList("Email"), index.complete("e", 10));
+	}
+
+	@Test
+	public void grows() {
+		TagIndex index = new TagIndex();
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			String name = "tag" + (1000 + (i * 37) % 100);
+			names.add(name);
+			index.add(name);
+		}
+		assertEquals(100, index.size());
+		assertEquals(10, index.count("tag105"));
+		assertEquals(Arrays.asList("tag1000", "tag1001", "tag1002"), index.complete("TAG", 3));
+		assertEquals(new TagIndex(names).complete("", 100), index.complete("", 100));
+	}
+}
@@ -0,0 +1,46 @@
+package bsoule.tagtime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class TagStringsTest {
+
+	// split() promises the result of the regular expression it replaces
+	private static void assertSplitsLikeRegex(String s) {
+		assertEquals("split(\"" + s + "\")", Arrays.asList(s.trim().split("\\s+")), TagStrings.split(s));
+	}
+
+	@Test
+	public void splitMatchesRegex() {
+		assertSplitsLikeRegex("work");
+		assertSplitsLikeRegex("work email");
+		assertSplitsLikeRegex("  work   email  ");
+		assertSplitsLikeRegex("work\temail\nphone\r\nlunch");
+		assertSplitsLikeRegex("\u0001work email\u0002");
+		assertSplitsLikeRegex("work\u000Bemail\fphone");
+	}
+
+	@Test
+	public void splitBlank() {
+		assertEquals(Collections.singletonList(""), TagStrings.split(""));
+		assertEquals(Collections.singletonList(""), TagStrings.split("  \t "));
+	}
+
+	@Test
+	public void join() {
+		assertEquals("", TagStrings.join(new ArrayList<String>()));
+		assertEquals("work", TagStrings.join(Arrays.asList("work")));
+		assertEquals("work email phone", TagStrings.join(Arrays.asList("work", "email", "phone")));
+	}
+
+	@Test
+	public void joinSplitRoundTrip() {
+		String s = "sleep work email lunch";
+		assertEquals(s, TagStrings.join(TagStrings.split(s)));
+	}
+}